@@ -0,0 +1,75 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the audio receive path that replaced the 16-bit to 8-bit
+ * conversion and WAV file assembly: converting a 4000 byte packet of
+ * little-endian samples into the ring buffer and reading it back out in
+ * the chunks that AudioPlayer hands to the AudioTrack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AudioBufferBenchmark {
+	private static final int PACKET_SIZE = 4000;
+	private static final int CHUNK_SAMPLES = 320;
+
+	private PcmRingBuffer mRing;
+	private JitterBuffer mJitterBuffer;
+	private byte[] mPacket;
+	private short[] mChunk;
+
+	@Setup
+	public void setup() {
+		mRing = new PcmRingBuffer(16000);
+		mJitterBuffer = new JitterBuffer(16000, 16000);
+		mPacket = new byte[PACKET_SIZE];
+		for (int i = 0; i < PACKET_SIZE; i += 2) {
+			short sample = (short) (Math.sin(i * 0.01) * 8000);
+			mPacket[i] = (byte) sample;
+			mPacket[i + 1] = (byte) (sample >> 8);
+		}
+		mChunk = new short[CHUNK_SAMPLES];
+	}
+
+	@Benchmark
+	public int ringWriteRead() throws InterruptedException {
+		mRing.write(mPacket, 0, PACKET_SIZE);
+		int total = 0;
+		while (mRing.available() > 0) {
+			total += mRing.read(mChunk, 0, 1, CHUNK_SAMPLES);
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int jitterBufferWrite() {
+		// The buffer is never drained here, so this also covers the
+		// overrun path that discards the oldest samples.
+		mJitterBuffer.write(mPacket, 0, PACKET_SIZE, System.nanoTime());
+		return mJitterBuffer.getDepthMillis();
+	}
+}
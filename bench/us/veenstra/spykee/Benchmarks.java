@@ -0,0 +1,44 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks for the per-packet paths with the GC profiler
+ * enabled, so that each result also reports the bytes allocated per
+ * operation.  Any extra arguments are passed on to JMH, for example a
+ * regular expression selecting the benchmarks to run.
+ *
+ * The benchmarks live outside of src/ so that they are not part of the
+ * application.  To build and run them (JMH_JARS holds jmh-core,
+ * jmh-generator-annprocess and their dependencies):
+ *   javac -cp $JMH_JARS -d out -sourcepath src:tools:bench bench/us/veenstra/spykee/*.java
+ *   java -cp out:$JMH_JARS us.veenstra.spykee.Benchmarks
+ */
+public class Benchmarks {
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include("us\\.veenstra\\.spykee\\..*Benchmark")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
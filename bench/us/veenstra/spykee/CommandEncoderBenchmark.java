@@ -0,0 +1,48 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures building the command packets, including the login packet that
+ * SpykeeClient.sendLogin() writes and the move command sent at the drive rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandEncoderBenchmark {
+	private String mLogin = "admin";
+	private String mPassword = "admin";
+	private int mSpeed;
+
+	@Benchmark
+	public byte[] login() {
+		return CommandEncoder.login(mLogin, mPassword);
+	}
+
+	@Benchmark
+	public byte[] move() {
+		mSpeed = (mSpeed + 1) & 0x7f;
+		return CommandEncoder.move(mSpeed, -mSpeed);
+	}
+}
@@ -0,0 +1,147 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures decoding camera frames with and without the options that the
+ * video decoder uses: a reduced sample size, and decoding into a reused
+ * image instead of a new one.  BitmapFactory only exists on a device, so
+ * this uses the desktop JPEG decoder with the equivalent settings (source
+ * subsampling and a destination image); the relative costs and the bytes
+ * allocated per frame carry over.
+ *
+ * The frames are read from a capture made with RecordingProxy, given with
+ * -Dspykee.capture=FILE (or -jvmArgsAppend to JMH).  Without a capture,
+ * synthetic 320x240 frames are used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JpegDecodeBenchmark {
+	// The packet type of a video frame.
+	private static final int CMD_VIDEO_FRAME = 2;
+
+	// The most frames read from a capture.
+	private static final int MAX_FRAMES = 200;
+
+	@Param({ "1", "2" })
+	int sampleSize;
+
+	@Param({ "false", "true" })
+	boolean reuse;
+
+	private final List<byte[]> mFrames = new ArrayList<byte[]>();
+	private int mNext;
+	private ImageReader mReader;
+	private ImageReadParam mParam;
+	private BufferedImage mReused;
+
+	@Setup
+	public void setup() throws IOException {
+		String capture = System.getProperty("spykee.capture");
+		if (capture != null) {
+			readCapture(new File(capture));
+		}
+		if (mFrames.isEmpty()) {
+			makeFrames();
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+		mReader = readers.next();
+		mParam = mReader.getDefaultReadParam();
+		mParam.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+	}
+
+	private void readCapture(File file) throws IOException {
+		CaptureFile.Reader reader = new CaptureFile.Reader(file);
+		try {
+			while (mFrames.size() < MAX_FRAMES && reader.next()) {
+				byte[] packet = reader.getPacket();
+				if ((packet[2] & 0xff) != CMD_VIDEO_FRAME) {
+					continue;
+				}
+				int len = reader.getPacketLength() - PacketParser.HEADER_SIZE;
+				byte[] frame = new byte[len];
+				System.arraycopy(packet, PacketParser.HEADER_SIZE, frame, 0, len);
+				mFrames.add(frame);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Encodes a few frames of a noisy gradient, which compress to about the
+	 * size of real camera frames.
+	 */
+	private void makeFrames() throws IOException {
+		Random random = new Random(1);
+		for (int i = 0; i < 10; i++) {
+			BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < 240; y++) {
+				for (int x = 0; x < 320; x++) {
+					int v = (x + y + i * 8) & 0xff;
+					int noise = random.nextInt(32);
+					image.setRGB(x, y, (v << 16) | ((255 - v) << 8) | noise);
+				}
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(image, "jpeg", out);
+			mFrames.add(out.toByteArray());
+		}
+	}
+
+	@Benchmark
+	public BufferedImage decode() throws IOException {
+		byte[] frame = mFrames.get(mNext);
+		mNext = (mNext + 1) % mFrames.size();
+		ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(frame));
+		try {
+			mReader.setInput(in, true, true);
+			mParam.setDestination(reuse ? mReused : null);
+			BufferedImage image = mReader.read(0, mParam);
+			if (reuse) {
+				mReused = image;
+			}
+			return image;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the receive path of SpykeeClient.readFromSpykee(): reading from
+ * a stream straight into the parser buffer and splitting it into packets,
+ * and then splitting the packets into streams with a StreamDemux.
+ * The stream is an in-memory copy of one second of typical robot traffic
+ * (video frames, audio packets and a battery report), read in chunks of
+ * "chunkSize" bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PacketParserBenchmark {
+	@Param({ "1460", "8192" })
+	int chunkSize;
+
+	private byte[] mStream;
+	private int mNumPackets;
+
+	@Setup
+	public void setup() {
+		// 10 video frames, 8 audio packets and one battery packet.
+		byte[] video = packet(2, 8000);
+		byte[] audio = packet(1, 4000);
+		byte[] battery = packet(3, 1);
+		mNumPackets = 19;
+		mStream = new byte[10 * video.length + 8 * audio.length + battery.length];
+		int pos = 0;
+		for (int i = 0; i < 10; i++) {
+			System.arraycopy(video, 0, mStream, pos, video.length);
+			pos += video.length;
+			if (i < 8) {
+				System.arraycopy(audio, 0, mStream, pos, audio.length);
+				pos += audio.length;
+			}
+		}
+		System.arraycopy(battery, 0, mStream, pos, battery.length);
+	}
+
+	private static byte[] packet(int cmd, int len) {
+		byte[] bytes = new byte[PacketParser.HEADER_SIZE + len];
+		bytes[0] = 'P';
+		bytes[1] = 'K';
+		bytes[2] = (byte) cmd;
+		bytes[3] = (byte) (len >> 8);
+		bytes[4] = (byte) len;
+		for (int i = PacketParser.HEADER_SIZE; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		return bytes;
+	}
+
+	@Benchmark
+	public long parseStream(final Blackhole blackhole) throws IOException {
+		return parse(new PacketListener() {
+			public void onPacket(int cmd, byte[] data, int offset, int len) {
+				blackhole.consume(len);
+			}
+		});
+	}
+
+	@Benchmark
+	public long parseAndDemux(final Blackhole blackhole) throws IOException {
+		StreamDemux demux = new StreamDemux();
+		demux.setVideoSink(new VideoSink() {
+			public void writeVideoFrame(byte[] data, int offset, int len, long arrivalNanos) {
+				blackhole.consume(len);
+			}
+		});
+		demux.setAudioSink(new AudioSink() {
+			public void writeAudio(byte[] data, int offset, int len, long arrivalNanos) {
+				blackhole.consume(len);
+			}
+		});
+		demux.setTelemetrySink(new TelemetrySink() {
+			public void onBatteryLevel(int level) {
+				blackhole.consume(level);
+			}
+
+			public void onDockState(int state) {
+				blackhole.consume(state);
+			}
+		});
+		return parse(demux);
+	}
+
+	private long parse(PacketListener listener) throws IOException {
+		PacketParser parser = new PacketParser(listener);
+		ByteArrayInputStream in = new ByteArrayInputStream(mStream);
+		while (true) {
+			int space = Math.min(chunkSize, parser.getWriteSpace());
+			int num = in.read(parser.getBuffer(), parser.getWriteOffset(), space);
+			if (num < 0) {
+				break;
+			}
+			parser.bytesWritten(num);
+		}
+		if (parser.getNumPackets() != mNumPackets) {
+			throw new IllegalStateException("parsed " + parser.getNumPackets() + " packets");
+		}
+		return parser.getNumPackets();
+	}
+}
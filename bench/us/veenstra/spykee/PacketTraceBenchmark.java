@@ -0,0 +1,68 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the packet trace that replaced Spykee.showBuffer(): dumping a
+ * packet as hex and ascii lines, and the cost of the filter check for the
+ * packets that are not traced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketTraceBenchmark {
+	@Param({ "16", "256" })
+	int len;
+
+	private PacketTrace mTrace;
+	private byte[] mPacket;
+
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		mTrace = new PacketTrace(new PacketTrace.Output() {
+			public void println(char[] line, int len) {
+				blackhole.consume(line);
+				blackhole.consume(len);
+			}
+		});
+		mTrace.setCommand(2, false);
+		mPacket = new byte[len];
+		for (int i = 0; i < len; i++) {
+			mPacket[i] = (byte) i;
+		}
+	}
+
+	@Benchmark
+	public void tracePacket() {
+		mTrace.tracePacket("Spykee", 3, mPacket, 0, len);
+	}
+
+	@Benchmark
+	public boolean shouldTraceFiltered() {
+		return mTrace.shouldTrace(2);
+	}
+}
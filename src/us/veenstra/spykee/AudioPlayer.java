@@ -0,0 +1,165 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+
+/**
+ * Plays the audio stream from Spykee.  Audio packets from the network
+ * reader thread are copied into an adaptive jitter buffer, and a playback
+ * thread feeds the samples to a streaming AudioTrack that runs
+ * continuously.  No files are written and no player has to be prepared
+ * for each packet.
+ */
+class AudioPlayer implements AudioSink {
+	private static final String TAG = "AudioPlayer";
+
+	// Spykee sends 16-bit mono samples at 16 KHz.
+	static final int SAMPLE_RATE = 16000;
+
+	// The jitter buffer holds at most one second of audio.
+	private static final int BUFFER_CAPACITY = SAMPLE_RATE;
+
+	// The number of samples handed to the AudioTrack at a time (20 ms).
+	private static final int CHUNK_SAMPLES = SAMPLE_RATE / 50;
+
+	private final JitterBuffer mJitterBuffer = new JitterBuffer(SAMPLE_RATE, BUFFER_CAPACITY);
+	private AudioTrack mTrack;
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	// The number of samples that the AudioTrack buffers internally, which
+	// adds to the latency from the jitter buffer to the speaker.
+	private int mTrackBufferSamples;
+
+	// Records the audio latencies, or null.
+	private volatile LatencyTracker mLatencyTracker;
+
+	/**
+	 * Creates the AudioTrack and starts the playback thread.
+	 */
+	void start() {
+		if (mRunning) {
+			return;
+		}
+		int minSize = AudioTrack.getMinBufferSize(SAMPLE_RATE,
+				AudioFormat.CHANNEL_CONFIGURATION_MONO, AudioFormat.ENCODING_PCM_16BIT);
+		int bufferSize = Math.max(minSize, CHUNK_SAMPLES * 2 * 2);
+		mTrackBufferSamples = bufferSize / 2;
+		mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLE_RATE,
+				AudioFormat.CHANNEL_CONFIGURATION_MONO, AudioFormat.ENCODING_PCM_16BIT,
+				bufferSize, AudioTrack.MODE_STREAM);
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				playLoop();
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the playback thread and releases the AudioTrack.
+	 */
+	void release() {
+		if (!mRunning) {
+			return;
+		}
+		mRunning = false;
+		mJitterBuffer.close();
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+		}
+		mTrack.stop();
+		mTrack.release();
+		mTrack = null;
+		mThread = null;
+	}
+
+	public void writeAudio(byte[] bytes, int offset, int len, long arrivalNanos) {
+		mJitterBuffer.write(bytes, offset, len, arrivalNanos);
+	}
+
+	/**
+	 * Sets the tracker that records how long audio takes from the socket to
+	 * the speaker.
+	 * @param tracker the latency tracker, or null to stop recording
+	 */
+	void setLatencyTracker(LatencyTracker tracker) {
+		mLatencyTracker = tracker;
+	}
+
+	/**
+	 * Returns the jitter buffer, which keeps statistics on buffer depth,
+	 * underruns, overruns and latency.
+	 */
+	JitterBuffer getJitterBuffer() {
+		return mJitterBuffer;
+	}
+
+	/**
+	 * Returns the estimated time in milliseconds from the arrival of an
+	 * audio packet to when it is played, including the AudioTrack buffer.
+	 */
+	int getLatencyMillis() {
+		return mJitterBuffer.getLatencyMillis() + mTrackBufferSamples * 1000 / SAMPLE_RATE;
+	}
+
+	/**
+	 * Copies samples from the jitter buffer to the AudioTrack.  This runs in
+	 * the playback thread.  AudioTrack.write() blocks while the track's
+	 * buffer is full, which paces this loop to the output sample rate.
+	 */
+	private void playLoop() {
+		short[] chunk = new short[CHUNK_SAMPLES];
+		long trackBufferNanos = mTrackBufferSamples * 1000000000L / SAMPLE_RATE;
+		mTrack.play();
+		while (mRunning) {
+			int num;
+			try {
+				num = mJitterBuffer.read(chunk, CHUNK_SAMPLES);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (num < 0) {
+				break;
+			}
+			LatencyTracker tracker = mLatencyTracker;
+			long arrival = mJitterBuffer.getLastReadArrivalNanos();
+			if (tracker != null && arrival != 0) {
+				// The track's buffer is normally full when a chunk is written,
+				// so the chunk reaches the speaker about one buffer's worth of
+				// time after it leaves the jitter buffer.
+				long now = System.nanoTime();
+				tracker.record(LatencyTracker.Stage.AUDIO_READ_TO_DEQUEUED, arrival, now);
+				tracker.record(LatencyTracker.Stage.AUDIO_READ_TO_PLAYED, arrival,
+						now + trackBufferNanos);
+			}
+			mTrack.write(chunk, 0, num);
+		}
+		JitterBuffer jb = mJitterBuffer;
+		Log.d(TAG, "audio underruns: " + jb.getNumUnderruns()
+				+ " overruns: " + jb.getNumOverruns()
+				+ " dropped samples: " + jb.getNumDroppedSamples()
+				+ " target: " + jb.getTargetMillis() + "ms"
+				+ " jitter: " + jb.getJitterMillis() + "ms"
+				+ " latency: " + getLatencyMillis() + "ms"
+				+ " max: " + jb.getMaxLatencyMillis() + "ms");
+	}
+}
@@ -0,0 +1,33 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Receives the audio packets that Spykee streams to us.  The audio is a
+ * stream of signed 16-bit little-endian samples at 16000 Hz (mono).
+ */
+public interface AudioSink {
+	/**
+	 * Called from the network reader thread for every audio packet.  The
+	 * bytes are only valid for the duration of the call.
+	 *
+	 * @param bytes the array containing the 16-bit audio samples
+	 * @param offset the index of the first byte of audio
+	 * @param len the number of bytes of audio
+	 * @param arrivalNanos the time the packet was read from the socket, from
+	 *     System.nanoTime()
+	 */
+	void writeAudio(byte[] bytes, int offset, int len, long arrivalNanos);
+}
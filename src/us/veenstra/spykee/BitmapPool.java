@@ -0,0 +1,96 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import android.graphics.Bitmap;
+
+/**
+ * A pool of mutable Bitmaps that video frames can be decoded into, so that
+ * a new Bitmap does not have to be allocated for every frame.  All of the
+ * Bitmaps in the pool have the same size and pixel format; asking for a
+ * different size or format empties the pool.
+ */
+class BitmapPool {
+	private final Bitmap[] mFree;
+	private int mNumFree;
+
+	// The size and format of the Bitmaps in the pool.
+	private int mWidth;
+	private int mHeight;
+	private Bitmap.Config mConfig;
+
+	private int mHits;
+	private int mMisses;
+
+	/**
+	 * @param capacity the maximum number of free Bitmaps kept for reuse
+	 */
+	BitmapPool(int capacity) {
+		mFree = new Bitmap[capacity];
+	}
+
+	/**
+	 * Returns a free Bitmap of the given size and format, or null if there
+	 * isn't one.
+	 */
+	synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+		if (width != mWidth || height != mHeight || config != mConfig) {
+			clear();
+			mWidth = width;
+			mHeight = height;
+			mConfig = config;
+		}
+		if (mNumFree == 0) {
+			mMisses += 1;
+			return null;
+		}
+		mHits += 1;
+		Bitmap bitmap = mFree[--mNumFree];
+		mFree[mNumFree] = null;
+		return bitmap;
+	}
+
+	/**
+	 * Gives a Bitmap back to the pool.  Bitmaps that can't be reused, or
+	 * that do not fit in the pool, are recycled.
+	 */
+	synchronized void release(Bitmap bitmap) {
+		if (bitmap.isMutable() && mNumFree < mFree.length
+				&& bitmap.getWidth() == mWidth && bitmap.getHeight() == mHeight
+				&& bitmap.getConfig() == mConfig) {
+			mFree[mNumFree++] = bitmap;
+		} else {
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Recycles all of the free Bitmaps.
+	 */
+	synchronized void clear() {
+		while (mNumFree > 0) {
+			mFree[--mNumFree].recycle();
+			mFree[mNumFree] = null;
+		}
+	}
+
+	synchronized int getHits() {
+		return mHits;
+	}
+
+	synchronized int getMisses() {
+		return mMisses;
+	}
+}
@@ -0,0 +1,166 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * Shows the video from Spykee.  The video decoder thread draws each frame
+ * straight into the view's surface with drawFrame(), so showing a frame
+ * does not involve the UI thread at all: there is no message, no layout
+ * pass and no invalidate.  The surface is double-buffered by the system.
+ *
+ * Frames are scaled to fit the view, keeping their aspect ratio.  The
+ * destination rectangle is only recomputed when the size of the frames or
+ * of the surface changes.
+ */
+public class CameraSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
+	// Spykee's camera sends 320x240 frames, so the view is 4:3.
+	private static final int ASPECT_WIDTH = 4;
+	private static final int ASPECT_HEIGHT = 3;
+
+	// The surface has two buffers, and the letterbox borders must be
+	// cleared in both of them after the destination rectangle changes.
+	private static final int NUM_SURFACE_BUFFERS = 2;
+
+	private final SurfaceHolder mHolder;
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	// Guards the surface.  The decoder thread holds it while drawing, so
+	// that surfaceDestroyed() cannot return in the middle of a frame.
+	private final Object mSurfaceLock = new Object();
+	private boolean mHasSurface;
+	private int mSurfaceWidth;
+	private int mSurfaceHeight;
+
+	// The size of the last frame drawn, and where frames of that size are
+	// drawn on the surface.
+	private int mFrameWidth;
+	private int mFrameHeight;
+	private final Rect mDest = new Rect();
+	private int mBuffersToClear;
+
+	public CameraSurfaceView(Context context) {
+		this(context, null);
+	}
+
+	public CameraSurfaceView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		mHolder = getHolder();
+		mHolder.addCallback(this);
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int width = MeasureSpec.getSize(widthMeasureSpec);
+		setMeasuredDimension(width, width * ASPECT_HEIGHT / ASPECT_WIDTH);
+	}
+
+	public void surfaceCreated(SurfaceHolder holder) {
+	}
+
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		synchronized (mSurfaceLock) {
+			mHasSurface = true;
+			mSurfaceWidth = width;
+			mSurfaceHeight = height;
+
+			// Force the destination to be recomputed for the new size.
+			mFrameWidth = 0;
+			mFrameHeight = 0;
+		}
+	}
+
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		synchronized (mSurfaceLock) {
+			mHasSurface = false;
+		}
+	}
+
+	/**
+	 * Returns the width of the surface, or 0 if there is no surface.
+	 */
+	int getSurfaceWidth() {
+		synchronized (mSurfaceLock) {
+			return mHasSurface ? mSurfaceWidth : 0;
+		}
+	}
+
+	/**
+	 * Returns the height of the surface, or 0 if there is no surface.
+	 */
+	int getSurfaceHeight() {
+		synchronized (mSurfaceLock) {
+			return mHasSurface ? mSurfaceHeight : 0;
+		}
+	}
+
+	/**
+	 * Draws a frame into the surface.  This is called on the video decoder
+	 * thread.
+	 * @param bitmap the decoded frame
+	 * @return false if the surface does not exist, so nothing was drawn
+	 */
+	boolean drawFrame(Bitmap bitmap) {
+		synchronized (mSurfaceLock) {
+			if (!mHasSurface) {
+				return false;
+			}
+			int width = bitmap.getWidth();
+			int height = bitmap.getHeight();
+			if (width != mFrameWidth || height != mFrameHeight) {
+				mFrameWidth = width;
+				mFrameHeight = height;
+				computeDest();
+			}
+			Canvas canvas = mHolder.lockCanvas();
+			if (canvas == null) {
+				return false;
+			}
+			if (mBuffersToClear > 0) {
+				canvas.drawColor(Color.BLACK);
+				mBuffersToClear -= 1;
+			}
+			canvas.drawBitmap(bitmap, null, mDest, mPaint);
+			mHolder.unlockCanvasAndPost(canvas);
+			return true;
+		}
+	}
+
+	/**
+	 * Computes the largest rectangle with the frame's aspect ratio that fits
+	 * in the surface, centered.
+	 */
+	private void computeDest() {
+		int width = mSurfaceWidth;
+		int height = mSurfaceWidth * mFrameHeight / mFrameWidth;
+		if (height > mSurfaceHeight) {
+			height = mSurfaceHeight;
+			width = mSurfaceHeight * mFrameWidth / mFrameHeight;
+		}
+		int left = (mSurfaceWidth - width) / 2;
+		int top = (mSurfaceHeight - height) / 2;
+		mDest.set(left, top, left + width, top + height);
+		mBuffersToClear = NUM_SURFACE_BUFFERS;
+	}
+}
@@ -0,0 +1,148 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Encodes the commands that we send to Spykee.  Every method returns a new
+ * array, so there is no shared mutable state and it is safe to encode
+ * commands from any number of threads (and for any number of robots) at
+ * once.  The commands are only a few bytes long, so the allocation is
+ * cheap compared to sending them.
+ *
+ * Every command starts with 'P', 'K', a command byte and a 16-bit
+ * big-endian payload length.
+ */
+final class CommandEncoder {
+	static final int CMD_MOVE = 0x05;
+	static final int CMD_SOUND_EFFECT = 0x07;
+	static final int CMD_SET_VOLUME = 0x09;
+	static final int CMD_LOGIN = 0x0a;
+	static final int CMD_STREAM = 0x0f;
+	static final int CMD_DOCK = 0x10;
+
+	// The values for the payload of the CMD_DOCK command.
+	static final int DOCK_UNDOCK = 5;
+	static final int DOCK_DOCK = 6;
+	static final int DOCK_CANCEL = 7;
+
+	// The stream selectors for the payload of the CMD_STREAM command.
+	static final int STREAM_VIDEO = 1;
+	static final int STREAM_AUDIO = 2;
+
+	// The size of the header at the start of every command.
+	static final int HEADER_SIZE = 5;
+
+	private CommandEncoder() {
+	}
+
+	/**
+	 * Encodes a command to run the motors.  Each speed is the raw byte sent
+	 * to the robot: values below 128 turn the wheel forward and values of
+	 * 128 and above turn it backward (255 is the slowest backward speed).
+	 *
+	 * @param left the speed of the left wheel
+	 * @param right the speed of the right wheel
+	 */
+	static byte[] move(int left, int right) {
+		byte[] bytes = header(CMD_MOVE, 2);
+		bytes[HEADER_SIZE] = (byte) left;
+		bytes[HEADER_SIZE + 1] = (byte) right;
+		return bytes;
+	}
+
+	static byte[] soundEffect(int effect) {
+		return command(CMD_SOUND_EFFECT, effect);
+	}
+
+	/**
+	 * Encodes a command to set the speaker volume.
+	 * @param volume the volume, between 0 and 100
+	 */
+	static byte[] setVolume(int volume) {
+		return command(CMD_SET_VOLUME, volume);
+	}
+
+	static byte[] dock() {
+		return command(CMD_DOCK, DOCK_DOCK);
+	}
+
+	static byte[] undock() {
+		return command(CMD_DOCK, DOCK_UNDOCK);
+	}
+
+	static byte[] cancelDock() {
+		return command(CMD_DOCK, DOCK_CANCEL);
+	}
+
+	static byte[] video(boolean on) {
+		return stream(STREAM_VIDEO, on);
+	}
+
+	static byte[] audio(boolean on) {
+		return stream(STREAM_AUDIO, on);
+	}
+
+	/**
+	 * Encodes the login command.  The login and password are each sent as
+	 * a length byte followed by the ISO-8859-1 characters.
+	 */
+	static byte[] login(String login, String password) {
+		int payloadLen = login.length() + password.length() + 2;
+		byte[] bytes = header(CMD_LOGIN, payloadLen);
+		int pos = HEADER_SIZE;
+		pos = putString(bytes, pos, login);
+		putString(bytes, pos, password);
+		return bytes;
+	}
+
+	private static byte[] stream(int stream, boolean on) {
+		byte[] bytes = header(CMD_STREAM, 2);
+		bytes[HEADER_SIZE] = (byte) stream;
+		bytes[HEADER_SIZE + 1] = (byte) (on ? 1 : 0);
+		return bytes;
+	}
+
+	/**
+	 * Encodes a command with a single byte of payload.
+	 */
+	private static byte[] command(int cmd, int value) {
+		byte[] bytes = header(cmd, 1);
+		bytes[HEADER_SIZE] = (byte) value;
+		return bytes;
+	}
+
+	/**
+	 * Allocates a command with room for "payloadLen" bytes of payload and
+	 * fills in the header.
+	 */
+	private static byte[] header(int cmd, int payloadLen) {
+		byte[] bytes = new byte[HEADER_SIZE + payloadLen];
+		bytes[0] = 'P';
+		bytes[1] = 'K';
+		bytes[2] = (byte) cmd;
+		bytes[3] = (byte) (payloadLen >> 8);
+		bytes[4] = (byte) payloadLen;
+		return bytes;
+	}
+
+	private static int putString(byte[] bytes, int pos, String str) {
+		int len = str.length();
+		bytes[pos++] = (byte) len;
+		for (int i = 0; i < len; i++) {
+			bytes[pos++] = (byte) str.charAt(i);
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,213 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Measures how long commands take to reach the network and how quickly the
+ * robot reacts to motor commands.  This is a measurement mode: it is only
+ * active when it is given to Spykee.setCommandProbe().
+ *
+ * It records:
+ * <ul>
+ * <li>the time from queueing each command to the end of the socket write
+ * that sent it, for each type of command;
+ * <li>how long each socket write took.  Java cannot report how many bytes
+ * are sitting in the TCP send buffer, but a write only takes more than a
+ * moment when that buffer is full, so slow writes are counted as stalls;
+ * <li>the control loop latency: the time from writing a motor command that
+ * changes the speeds to the first packet from the robot that shows a
+ * change.  A change is a new battery level or dock state, or a video frame
+ * whose size differs noticeably from the recent average, which is what
+ * happens to JPEG frames when the camera starts or stops moving.
+ * </ul>
+ */
+public class CommandProbe {
+	// A socket write that takes longer than this means the send buffer was
+	// full.
+	private static final long STALL_NANOS = 1000000;
+
+	// A motor command that has not shown an effect after this long is
+	// counted as having no visible response.
+	private static final long RESPONSE_TIMEOUT_NANOS = 2000000000L;
+
+	// A video frame is taken as a sign of motion when its size differs
+	// from the average of the recent frames by more than this percentage.
+	private static final int MOTION_PERCENT = 20;
+
+	// The average frame size adapts to 1/FRAME_SIZE_SMOOTHING of each new
+	// frame.
+	private static final int FRAME_SIZE_SMOOTHING = 8;
+
+	// The send latency of each command type, created as they are seen.
+	private final LatencyHistogram[] mSendLatency = new LatencyHistogram[256];
+	private final LatencyHistogram mWriteTime = new LatencyHistogram();
+	private final LatencyHistogram mResponseTime = new LatencyHistogram();
+	private int mNumStalls;
+	private int mNumNoResponse;
+	private int mSendBufferSize;
+
+	// The speeds in the last motor command written, as raw bytes.
+	private int mLastLeft;
+	private int mLastRight;
+
+	// When the motor command that is waiting for a response was written,
+	// or 0 if none is waiting.
+	private long mMotorWriteNanos;
+
+	// The last state seen from the robot, or -1 if none has been seen yet.
+	private int mBatteryLevel = -1;
+	private int mDockState = -1;
+	private int mAverageFrameSize;
+
+	/**
+	 * Sets the size of the socket's send buffer, which is reported with the
+	 * write statistics.
+	 */
+	synchronized void setSendBufferSize(int size) {
+		mSendBufferSize = size;
+	}
+
+	/**
+	 * Records a command that has been written to the socket.  This is called
+	 * on the thread that writes to the network.
+	 * @param command the complete command, starting with 'P','K'
+	 * @param queuedNanos when the command was queued
+	 * @param writtenNanos when the write that sent it completed
+	 */
+	synchronized void commandWritten(byte[] command, long queuedNanos, long writtenNanos) {
+		int cmd = command[2] & 0xff;
+		LatencyHistogram histogram = mSendLatency[cmd];
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			mSendLatency[cmd] = histogram;
+		}
+		histogram.record((writtenNanos - queuedNanos) / 1000);
+
+		if (cmd != CommandEncoder.CMD_MOVE) {
+			return;
+		}
+		int left = command[CommandEncoder.HEADER_SIZE] & 0xff;
+		int right = command[CommandEncoder.HEADER_SIZE + 1] & 0xff;
+		if (left == mLastLeft && right == mLastRight) {
+			return;
+		}
+		mLastLeft = left;
+		mLastRight = right;
+		if (mMotorWriteNanos == 0) {
+			mMotorWriteNanos = writtenNanos;
+		}
+	}
+
+	/**
+	 * Records one socket write.
+	 * @param len the number of bytes written
+	 * @param startNanos when the bytes were taken from the queue
+	 * @param endNanos when the last byte was accepted by the socket
+	 */
+	synchronized void batchWritten(int len, long startNanos, long endNanos) {
+		long nanos = endNanos - startNanos;
+		mWriteTime.record(nanos / 1000);
+		if (nanos > STALL_NANOS) {
+			mNumStalls += 1;
+		}
+	}
+
+	/**
+	 * Records a video frame from the robot.  This and the other *Received()
+	 * methods are called on the network reader thread.
+	 */
+	synchronized void videoFrameReceived(int len, long arrivalNanos) {
+		int average = mAverageFrameSize;
+		if (average == 0) {
+			mAverageFrameSize = len;
+			return;
+		}
+		mAverageFrameSize += (len - average) / FRAME_SIZE_SMOOTHING;
+		checkResponse(Math.abs(len - average) * 100 > average * MOTION_PERCENT, arrivalNanos);
+	}
+
+	synchronized void batteryLevelReceived(int level, long arrivalNanos) {
+		boolean changed = mBatteryLevel >= 0 && level != mBatteryLevel;
+		mBatteryLevel = level;
+		checkResponse(changed, arrivalNanos);
+	}
+
+	synchronized void dockStateReceived(int state, long arrivalNanos) {
+		boolean changed = mDockState >= 0 && state != mDockState;
+		mDockState = state;
+		checkResponse(changed, arrivalNanos);
+	}
+
+	/**
+	 * Ends the wait for a response to the last motor command if the robot's
+	 * state changed, or if it has waited too long.
+	 */
+	private void checkResponse(boolean changed, long arrivalNanos) {
+		long start = mMotorWriteNanos;
+		if (start == 0) {
+			return;
+		}
+		if (arrivalNanos - start > RESPONSE_TIMEOUT_NANOS) {
+			mNumNoResponse += 1;
+			mMotorWriteNanos = 0;
+		} else if (changed && arrivalNanos > start) {
+			mResponseTime.record((arrivalNanos - start) / 1000);
+			mMotorWriteNanos = 0;
+		}
+	}
+
+	/**
+	 * Formats the statistics gathered since the last snapshot and starts
+	 * over.
+	 */
+	public synchronized String snapshot() {
+		StringBuilder builder = new StringBuilder();
+		for (int cmd = 0; cmd < mSendLatency.length; cmd++) {
+			LatencyHistogram histogram = mSendLatency[cmd];
+			if (histogram != null && histogram.getCount() > 0) {
+				append(builder, "send cmd " + cmd, histogram);
+			}
+		}
+		if (mWriteTime.getCount() > 0) {
+			append(builder, "socket write", mWriteTime);
+			builder.append(" stalls=").append(mNumStalls);
+			builder.append(" sndbuf=").append(mSendBufferSize);
+		}
+		if (mResponseTime.getCount() > 0 || mNumNoResponse > 0) {
+			append(builder, "motor response", mResponseTime);
+			builder.append(" none=").append(mNumNoResponse);
+		}
+		for (int cmd = 0; cmd < mSendLatency.length; cmd++) {
+			if (mSendLatency[cmd] != null) {
+				mSendLatency[cmd].reset();
+			}
+		}
+		mWriteTime.reset();
+		mResponseTime.reset();
+		mNumStalls = 0;
+		mNumNoResponse = 0;
+		return builder.toString();
+	}
+
+	private static void append(StringBuilder builder, String name, LatencyHistogram histogram) {
+		if (builder.length() > 0) {
+			builder.append('\n');
+		}
+		builder.append(name).append(": n=").append(histogram.getCount());
+		builder.append(" p50=").append(histogram.getValueAtPercentile(50));
+		builder.append(" p99=").append(histogram.getValueAtPercentile(99));
+		builder.append(" max=").append(histogram.getMax()).append("us");
+	}
+}
@@ -0,0 +1,351 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of commands waiting to be sent to Spykee.  Commands are
+ * added from any thread (usually the UI thread) without blocking, and are
+ * removed in batches by whichever thread writes to the network.
+ *
+ * Only the latest motor command matters, so a motor command replaces any
+ * motor command that is still waiting in the queue instead of being added
+ * behind it.
+ *
+ * The queue is guarded by a ReentrantLock rather than by synchronized, so
+ * that a writer on a virtual thread waiting in takeTo() gives up its
+ * carrier thread instead of pinning it.
+ */
+class CommandQueue {
+	/**
+	 * Notified when a command is added to an empty queue.
+	 */
+	interface Listener {
+		void onCommandQueued();
+	}
+
+	private final ReentrantLock mLock = new ReentrantLock();
+
+	// Signalled when a command is added or the queue is closed.
+	private final Condition mChanged = mLock.newCondition();
+
+	// The ring of queued commands and the time each was queued.
+	private final byte[][] mCommands;
+	private final long[] mQueueTimes;
+	private int mHead;
+	private int mSize;
+
+	// The index in the ring of the motor command still waiting to be sent,
+	// or -1 if there isn't one.
+	private int mMoveIndex = -1;
+
+	// The commands in the batch that is being written, the time each was
+	// queued, and when the batch was taken from the queue.
+	private final byte[][] mBatchCommands;
+	private final long[] mBatchTimes;
+	private int mBatchSize;
+	private int mBatchBytes;
+	private long mBatchStartNanos;
+
+	// Records the timing of each command, or null.
+	private CommandProbe mProbe;
+
+	private Listener mListener;
+	private boolean mClosed;
+
+	private int mMaxDepth;
+	private int mNumCoalesced;
+	private int mNumDropped;
+	private long mNumSent;
+	private long mTotalLatencyNanos;
+	private long mMaxLatencyNanos;
+
+	/**
+	 * Creates a queue that holds at most "capacity" commands.
+	 */
+	CommandQueue(int capacity) {
+		mCommands = new byte[capacity][];
+		mQueueTimes = new long[capacity];
+		mBatchCommands = new byte[capacity][];
+		mBatchTimes = new long[capacity];
+	}
+
+	void setListener(Listener listener) {
+		mLock.lock();
+		try {
+			mListener = listener;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the probe that is told about every command written.
+	 * @param probe the probe, or null to stop measuring
+	 */
+	void setProbe(CommandProbe probe) {
+		mLock.lock();
+		try {
+			mProbe = probe;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a command to the queue.  The array must not be modified after it
+	 * is passed in.  If the queue is full, the command is dropped.
+	 *
+	 * @param command the complete command, starting with 'P','K'
+	 * @return false if the command was dropped
+	 */
+	boolean offer(byte[] command) {
+		Listener listener;
+		mLock.lock();
+		try {
+			if (mClosed) {
+				return false;
+			}
+			long now = System.nanoTime();
+			if (command[2] == CommandEncoder.CMD_MOVE && mMoveIndex >= 0) {
+				mCommands[mMoveIndex] = command;
+				mQueueTimes[mMoveIndex] = now;
+				mNumCoalesced += 1;
+				return true;
+			}
+			if (mSize == mCommands.length) {
+				mNumDropped += 1;
+				return false;
+			}
+			int index = (mHead + mSize) % mCommands.length;
+			mCommands[index] = command;
+			mQueueTimes[index] = now;
+			if (command[2] == CommandEncoder.CMD_MOVE) {
+				mMoveIndex = index;
+			}
+			mSize += 1;
+			if (mSize > mMaxDepth) {
+				mMaxDepth = mSize;
+			}
+			mChanged.signalAll();
+			if (mSize > 1) {
+				return true;
+			}
+			listener = mListener;
+		} finally {
+			mLock.unlock();
+		}
+		if (listener != null) {
+			listener.onCommandQueued();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes as many queued commands as fit into "batch" and copies them
+	 * there back to back, so that they can be sent with a single write.
+	 * Call batchWritten() once the batch has been written.
+	 *
+	 * @param batch the destination array
+	 * @return the number of bytes copied into "batch"
+	 */
+	int drainTo(byte[] batch) {
+		mLock.lock();
+		try {
+			int len = 0;
+			mBatchSize = 0;
+			mBatchStartNanos = System.nanoTime();
+			while (mSize > 0) {
+				byte[] command = mCommands[mHead];
+				if (len + command.length > batch.length) {
+					if (len == 0) {
+						// This can't ever be sent, so throw it away
+						mNumDropped += 1;
+						removeHead();
+						continue;
+					}
+					break;
+				}
+				System.arraycopy(command, 0, batch, len, command.length);
+				len += command.length;
+				mBatchCommands[mBatchSize] = command;
+				mBatchTimes[mBatchSize++] = mQueueTimes[mHead];
+				removeHead();
+			}
+			mBatchBytes = len;
+			return len;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private void removeHead() {
+		mCommands[mHead] = null;
+		if (mMoveIndex == mHead) {
+			mMoveIndex = -1;
+		}
+		mHead = (mHead + 1) % mCommands.length;
+		mSize -= 1;
+	}
+
+	/**
+	 * Like drainTo(), but blocks until at least one command is queued.
+	 * @return the number of bytes copied, or -1 if the queue was closed
+	 */
+	int takeTo(byte[] batch) throws InterruptedException {
+		mLock.lock();
+		try {
+			while (mSize == 0 && !mClosed) {
+				mChanged.await();
+			}
+			if (mClosed) {
+				return -1;
+			}
+			return drainTo(batch);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Records the send latency of the commands returned by the last call to
+	 * drainTo() or takeTo().  Called after the batch has been written.
+	 */
+	void batchWritten() {
+		mLock.lock();
+		try {
+			long now = System.nanoTime();
+			CommandProbe probe = mProbe;
+			for (int i = 0; i < mBatchSize; i++) {
+				long latency = now - mBatchTimes[i];
+				mTotalLatencyNanos += latency;
+				if (latency > mMaxLatencyNanos) {
+					mMaxLatencyNanos = latency;
+				}
+				if (probe != null) {
+					probe.commandWritten(mBatchCommands[i], mBatchTimes[i], now);
+				}
+				mBatchCommands[i] = null;
+			}
+			if (probe != null && mBatchSize > 0) {
+				probe.batchWritten(mBatchBytes, mBatchStartNanos, now);
+			}
+			mNumSent += mBatchSize;
+			mBatchSize = 0;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	boolean isEmpty() {
+		mLock.lock();
+		try {
+			return mSize == 0;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Discards all queued commands and wakes up any thread in takeTo().
+	 */
+	void close() {
+		mLock.lock();
+		try {
+			mClosed = true;
+			while (mSize > 0) {
+				removeHead();
+			}
+			mChanged.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the number of commands waiting to be sent. */
+	int getDepth() {
+		mLock.lock();
+		try {
+			return mSize;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the largest number of commands that were ever waiting. */
+	int getMaxDepth() {
+		mLock.lock();
+		try {
+			return mMaxDepth;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the number of motor commands replaced by a newer one. */
+	int getNumCoalesced() {
+		mLock.lock();
+		try {
+			return mNumCoalesced;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the number of commands dropped because the queue was full. */
+	int getNumDropped() {
+		mLock.lock();
+		try {
+			return mNumDropped;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the number of commands written to the network. */
+	long getNumSent() {
+		mLock.lock();
+		try {
+			return mNumSent;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the average time in microseconds from queueing a command to
+	 * finishing the write that contained it.
+	 */
+	long getAverageLatencyMicros() {
+		mLock.lock();
+		try {
+			return mNumSent == 0 ? 0 : mTotalLatencyNanos / mNumSent / 1000;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Returns the largest send latency seen, in microseconds. */
+	long getMaxLatencyMicros() {
+		mLock.lock();
+		try {
+			return mMaxLatencyNanos / 1000;
+		} finally {
+			mLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A thread that sends the commands in a CommandQueue over a blocking
+ * socket.  All of the commands waiting in the queue are sent with a single
+ * write, and a stalled socket only ever blocks this thread.
+ */
+class CommandWriter {
+	private static final String TAG = "CommandWriter";
+
+	// The largest number of bytes sent with a single write.
+	private static final int BATCH_SIZE = 1024;
+
+	private final CommandQueue mQueue;
+	private final OutputStream mOutput;
+	private final ThreadFactory mThreadFactory;
+	private Thread mThread;
+
+	// The error that stopped the writer, or null if it is still running.
+	private volatile IOException mError;
+
+	CommandWriter(CommandQueue queue, OutputStream output, ThreadFactory threadFactory) {
+		mQueue = queue;
+		mOutput = output;
+		mThreadFactory = threadFactory;
+	}
+
+	void start() {
+		mThread = SessionThreads.start(mThreadFactory, TAG, new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		});
+	}
+
+	/**
+	 * Returns the error that stopped the writer, or null if it is running.
+	 */
+	IOException getError() {
+		return mError;
+	}
+
+	private void writeLoop() {
+		byte[] batch = new byte[BATCH_SIZE];
+		try {
+			while (true) {
+				int len = mQueue.takeTo(batch);
+				if (len < 0) {
+					break;
+				}
+				mOutput.write(batch, 0, len);
+				mQueue.batchWritten();
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			mError = e;
+			mQueue.close();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+
+/**
+ * An attempt to connect to Spykee that runs in the background, returned by
+ * SpykeeClient.connectAsync().  It records how long each phase of
+ * connecting took, and it can be cancelled while it is in progress.
+ *
+ * When the attempt finishes, it is passed to the client's listener (on
+ * Android, the Spykee handler receives a SPYKEE_CONNECTED or
+ * SPYKEE_CONNECT_FAILED message with the attempt as its "obj").  A
+ * cancelled attempt is not reported.
+ */
+public class ConnectAttempt {
+	private final String mHost;
+	private final int mPort;
+
+	private volatile boolean mCancelled;
+	private volatile boolean mDone;
+	private IOException mError;
+
+	// The socket that is being connected, so that cancel() can close it.
+	private Socket mSocket;
+
+	// How long each phase took, in milliseconds.
+	private long mResolveMillis;
+	private long mTcpMillis;
+	private long mLoginMillis;
+
+	ConnectAttempt(String host, int port) {
+		mHost = host;
+		mPort = port;
+	}
+
+	public String getHost() {
+		return mHost;
+	}
+
+	public int getPort() {
+		return mPort;
+	}
+
+	/**
+	 * Cancels the attempt.  A connect or login in progress is aborted by
+	 * closing its socket.  This can be called on any thread.
+	 */
+	public void cancel() {
+		Socket socket;
+		synchronized (this) {
+			if (mCancelled || mDone) {
+				return;
+			}
+			mCancelled = true;
+			socket = mSocket;
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public boolean isDone() {
+		return mDone;
+	}
+
+	/**
+	 * Returns the error that made the attempt fail, or null.
+	 */
+	public synchronized IOException getError() {
+		return mError;
+	}
+
+	/** Returns the time taken to look up the host name. */
+	public long getResolveMillis() {
+		return mResolveMillis;
+	}
+
+	/** Returns the time taken by the TCP handshake. */
+	public long getTcpMillis() {
+		return mTcpMillis;
+	}
+
+	/** Returns the time from sending the login to reading the response. */
+	public long getLoginMillis() {
+		return mLoginMillis;
+	}
+
+	@Override
+	public String toString() {
+		return mHost + ":" + mPort + " resolve " + mResolveMillis + "ms, connect "
+				+ mTcpMillis + "ms, login " + mLoginMillis + "ms";
+	}
+
+	/**
+	 * Remembers the socket being connected.  If the attempt has already been
+	 * cancelled, the socket is closed and an exception is thrown.
+	 */
+	void setSocket(Socket socket) throws IOException {
+		synchronized (this) {
+			if (!mCancelled) {
+				mSocket = socket;
+				return;
+			}
+		}
+		socket.close();
+		throw new InterruptedIOException("connect cancelled");
+	}
+
+	/**
+	 * Throws an exception if the attempt has been cancelled.
+	 */
+	void checkCancelled() throws IOException {
+		if (mCancelled) {
+			throw new InterruptedIOException("connect cancelled");
+		}
+	}
+
+	void setTiming(long resolveNanos, long tcpNanos, long loginNanos) {
+		mResolveMillis = resolveNanos / 1000000;
+		mTcpMillis = tcpNanos / 1000000;
+		mLoginMillis = loginNanos / 1000000;
+	}
+
+	/**
+	 * Marks the attempt as finished.
+	 * @param error the error that made it fail, or null if it succeeded
+	 */
+	synchronized void finish(IOException error) {
+		mError = error;
+		mSocket = null;
+		mDone = true;
+	}
+}
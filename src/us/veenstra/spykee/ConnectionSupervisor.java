@@ -0,0 +1,271 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Watches a connection and brings it back after the link is lost.  The
+ * link is considered lost when the connection reports a failure (a read
+ * error or the robot closing the socket) or when nothing has been received
+ * for the keepalive timeout.  The supervisor then closes the connection and
+ * keeps trying to reconnect on its own thread, waiting twice as long after
+ * each failed attempt.
+ *
+ * The state is guarded by a ReentrantLock so that the supervisor does not
+ * pin a carrier thread while it waits when run on a virtual thread.
+ */
+class ConnectionSupervisor {
+	private static final String TAG = "ConnectionSupervisor";
+
+	/**
+	 * The connection being supervised.  Both methods are called on the
+	 * supervisor's thread.
+	 */
+	interface Connection {
+		/** Closes the broken connection. */
+		void disconnect();
+
+		/**
+		 * Opens a new connection and restores the state of the old one.
+		 * @throws IOException if the attempt failed
+		 */
+		void reconnect() throws IOException;
+	}
+
+	/**
+	 * Receives the supervisor's reports.  Both methods are called on the
+	 * supervisor's thread.
+	 */
+	interface Listener {
+		/**
+		 * Called when the link is found to be lost, before reconnecting.
+		 * @param reason why the link is considered lost
+		 */
+		void onLinkLost(String reason);
+
+		/**
+		 * Called when the connection has been restored.
+		 * @param millis the time from losing the link to being reconnected
+		 * @param attempts the number of attempts it took
+		 */
+		void onReconnected(long millis, int attempts);
+	}
+
+	// The default time without any packets after which the link is
+	// considered lost.  Spykee sends its battery level every few seconds
+	// even when nothing is streaming.
+	static final int DEFAULT_KEEPALIVE_MILLIS = 5000;
+
+	// The delay before the second attempt, doubled after each failed attempt
+	// up to the maximum.
+	private static final long INITIAL_BACKOFF_MILLIS = 250;
+	private static final long MAX_BACKOFF_MILLIS = 8000;
+
+	private final Connection mConnection;
+	private final Listener mListener;
+	private final long mKeepaliveNanos;
+	private final ThreadFactory mThreadFactory;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+
+	// Signalled when the link is lost or the supervisor is stopped.
+	private final Condition mChanged = mLock.newCondition();
+
+	private Thread mThread;
+	private boolean mRunning;
+
+	// Why the link was lost, or null while it is up.
+	private String mLostReason;
+
+	// When the last packet arrived, from System.nanoTime().
+	private volatile long mLastPacketNanos;
+
+	/**
+	 * @param connection the connection to supervise
+	 * @param listener receives the reports
+	 * @param keepaliveMillis the link is considered lost after this long
+	 *     without receiving a packet
+	 * @param threadFactory creates the supervisor's thread
+	 */
+	ConnectionSupervisor(Connection connection, Listener listener, int keepaliveMillis,
+			ThreadFactory threadFactory) {
+		mConnection = connection;
+		mListener = listener;
+		mKeepaliveNanos = keepaliveMillis * 1000000L;
+		mThreadFactory = threadFactory;
+	}
+
+	/**
+	 * Starts supervising a connection that is already up.
+	 */
+	void start() {
+		mLock.lock();
+		try {
+			if (mRunning) {
+				return;
+			}
+			mRunning = true;
+			mLostReason = null;
+			mLastPacketNanos = System.nanoTime();
+			mThread = SessionThreads.start(mThreadFactory, TAG, new Runnable() {
+				public void run() {
+					superviseLoop();
+				}
+			});
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops supervising.  This does not wait for a reconnect attempt in
+	 * progress to finish; the supervisor disconnects again if one succeeds.
+	 */
+	void stop() {
+		mLock.lock();
+		try {
+			if (!mRunning) {
+				return;
+			}
+			mRunning = false;
+			mThread = null;
+			mChanged.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a packet arrived, which keeps the link alive.
+	 * @param nanos the arrival time, from System.nanoTime()
+	 */
+	void packetReceived(long nanos) {
+		mLastPacketNanos = nanos;
+	}
+
+	/**
+	 * Reports that the connection failed.  This can be called on any thread.
+	 * @param reason a description of the failure
+	 */
+	void linkLost(String reason) {
+		mLock.lock();
+		try {
+			if (mRunning && mLostReason == null) {
+				mLostReason = reason;
+				mChanged.signalAll();
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private void superviseLoop() {
+		while (true) {
+			String reason = waitForLinkLoss();
+			if (reason == null) {
+				return;
+			}
+			long lostNanos = System.nanoTime();
+			mListener.onLinkLost(reason);
+			mConnection.disconnect();
+			mLock.lock();
+			try {
+				// Failures of the connection that was just closed are of no
+				// interest any more.
+				mLostReason = null;
+			} finally {
+				mLock.unlock();
+			}
+			int attempts = 0;
+			long backoff = INITIAL_BACKOFF_MILLIS;
+			while (true) {
+				attempts += 1;
+				try {
+					mConnection.reconnect();
+					break;
+				} catch (IOException e) {
+					if (!sleep(backoff)) {
+						return;
+					}
+					backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+				}
+			}
+			boolean stopped;
+			mLock.lock();
+			try {
+				stopped = !mRunning;
+				mLastPacketNanos = System.nanoTime();
+			} finally {
+				mLock.unlock();
+			}
+			if (stopped) {
+				// Stopped while the last attempt was in progress.
+				mConnection.disconnect();
+				return;
+			}
+			mListener.onReconnected((System.nanoTime() - lostNanos) / 1000000, attempts);
+		}
+	}
+
+	/**
+	 * Waits until the link is lost or the keepalive timeout expires.
+	 * @return why the link was lost, or null if the supervisor was stopped
+	 */
+	private String waitForLinkLoss() {
+		mLock.lock();
+		try {
+			while (mRunning && mLostReason == null) {
+				long idle = System.nanoTime() - mLastPacketNanos;
+				if (idle >= mKeepaliveNanos) {
+					mLostReason = "nothing received for " + idle / 1000000 + "ms";
+					break;
+				}
+				try {
+					mChanged.awaitNanos(mKeepaliveNanos - idle);
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+			return mRunning ? mLostReason : null;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits before the next reconnect attempt.
+	 * @return false if the supervisor was stopped
+	 */
+	private boolean sleep(long millis) {
+		mLock.lock();
+		try {
+			if (mRunning) {
+				try {
+					mChanged.await(millis, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return mRunning;
+		} finally {
+			mLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,312 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.util.LinkedList;
+
+/**
+ * A fixed set of threads that decode the video from many robots.  Each
+ * robot's video goes into a Stream, which keeps only the newest frame
+ * that has not been decoded yet, just like VideoDecoder does for a single
+ * robot.
+ *
+ * The threads take turns between the streams: a stream with a frame
+ * waiting joins the back of a queue, and a free thread takes the stream at
+ * the front.  A stream is never in the queue twice and is never decoded
+ * by two threads at once, so a robot that sends frames faster than the
+ * others can't get more than its share of the threads, and each stream's
+ * decoder sees its frames in order from one thread at a time.  Memory is
+ * bounded too: each stream holds at most one waiting frame and one frame
+ * being decoded.
+ *
+ * The decoding itself is done by a Decoder for each stream, so the pool
+ * can be used with any image library.
+ */
+public class DecodePool {
+	private static final String TAG = "DecodePool";
+
+	/**
+	 * Decodes (and usually displays or forwards) the frames of one stream.
+	 * This is called on one of the pool's threads, never on two at once for
+	 * the same stream.
+	 */
+	public interface Decoder {
+		/**
+		 * @param frame the array containing the JPEG image, which is only
+		 *     valid for the duration of the call
+		 * @param len the length of the image
+		 * @param arrivalNanos the time the frame was read from the socket
+		 */
+		void decode(byte[] frame, int len, long arrivalNanos);
+	}
+
+	/**
+	 * The video of one robot.  Frames are handed in on the network thread
+	 * with writeVideoFrame(), which never blocks on decoding.
+	 */
+	public class Stream implements VideoSink {
+		private final String mName;
+		private final Decoder mDecoder;
+
+		// The newest frame that has not been decoded yet, or null.
+		private byte[] mPendingFrame;
+		private int mPendingLen;
+		private long mPendingArrivalNanos;
+
+		// True while the stream is in the ready queue, or being decoded.
+		private boolean mQueued;
+		private boolean mBusy;
+		private boolean mClosed;
+
+		private long mNumReceived;
+		private long mNumDecoded;
+		private long mNumDropped;
+		private long mNumErrors;
+		private long mDecodeNanos;
+
+		// The time from a frame's arrival to the end of its decode, in
+		// microseconds, since the last call to takeLag().
+		private LatencyHistogram mLag = new LatencyHistogram();
+
+		Stream(String name, Decoder decoder) {
+			mName = name;
+			mDecoder = decoder;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public void writeVideoFrame(byte[] data, int offset, int len, long arrivalNanos) {
+			byte[] frame = mBuffers.acquire(len);
+			System.arraycopy(data, offset, frame, 0, len);
+			byte[] stale;
+			synchronized (DecodePool.this) {
+				if (mClosed) {
+					stale = frame;
+				} else {
+					mNumReceived += 1;
+					stale = mPendingFrame;
+					if (stale != null) {
+						mNumDropped += 1;
+					}
+					mPendingFrame = frame;
+					mPendingLen = len;
+					mPendingArrivalNanos = arrivalNanos;
+					if (!mQueued && !mBusy) {
+						mQueued = true;
+						mReady.addLast(this);
+						DecodePool.this.notify();
+					}
+				}
+			}
+			if (stale != null) {
+				mBuffers.release(stale);
+			}
+		}
+
+		/** Returns the number of frames handed to the stream. */
+		public long getNumReceived() {
+			synchronized (DecodePool.this) {
+				return mNumReceived;
+			}
+		}
+
+		/** Returns the number of frames decoded. */
+		public long getNumDecoded() {
+			synchronized (DecodePool.this) {
+				return mNumDecoded;
+			}
+		}
+
+		/** Returns the number of frames replaced by a newer one before being decoded. */
+		public long getNumDropped() {
+			synchronized (DecodePool.this) {
+				return mNumDropped;
+			}
+		}
+
+		/** Returns the number of frames whose decoder threw an exception. */
+		public long getNumErrors() {
+			synchronized (DecodePool.this) {
+				return mNumErrors;
+			}
+		}
+
+		/** Returns the total time spent decoding, in nanoseconds. */
+		public long getDecodeNanos() {
+			synchronized (DecodePool.this) {
+				return mDecodeNanos;
+			}
+		}
+
+		/**
+		 * Returns the lag of the frames decoded since the last call, and
+		 * starts a new interval.  The lag is the time in microseconds from
+		 * a frame's arrival to the end of its decode.
+		 */
+		public LatencyHistogram takeLag() {
+			synchronized (DecodePool.this) {
+				LatencyHistogram lag = mLag;
+				mLag = new LatencyHistogram();
+				return lag;
+			}
+		}
+	}
+
+	private final Thread[] mThreads;
+	private final FrameBufferPool mBuffers;
+
+	// The streams that have a frame waiting and are not being decoded, in
+	// the order they will be served.
+	private final LinkedList<Stream> mReady = new LinkedList<Stream>();
+
+	private boolean mRunning;
+
+	/**
+	 * Creates a pool.  Call start() to start its threads.
+	 * @param numThreads the number of decode threads
+	 */
+	public DecodePool(int numThreads) {
+		mThreads = new Thread[numThreads];
+		mBuffers = new FrameBufferPool(4 * numThreads + 16);
+	}
+
+	public int getNumThreads() {
+		return mThreads.length;
+	}
+
+	public synchronized void start() {
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		for (int i = 0; i < mThreads.length; i++) {
+			mThreads[i] = new Thread(new Runnable() {
+				public void run() {
+					decodeLoop();
+				}
+			}, TAG + " " + i);
+			mThreads[i].start();
+		}
+	}
+
+	/**
+	 * Stops the threads, after they finish the frames they are decoding.
+	 * Frames still waiting are discarded.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (!mRunning) {
+				return;
+			}
+			mRunning = false;
+			notifyAll();
+		}
+		for (int i = 0; i < mThreads.length; i++) {
+			try {
+				mThreads[i].join();
+			} catch (InterruptedException e) {
+			}
+			mThreads[i] = null;
+		}
+	}
+
+	/**
+	 * Adds a stream to the pool.
+	 * @param name the name of the stream, for reports
+	 * @param decoder decodes the stream's frames
+	 */
+	public Stream openStream(String name, Decoder decoder) {
+		return new Stream(name, decoder);
+	}
+
+	/**
+	 * Removes a stream from the pool.  A frame being decoded is finished,
+	 * but frames that arrive later are ignored.
+	 */
+	public void closeStream(Stream stream) {
+		byte[] frame;
+		synchronized (this) {
+			stream.mClosed = true;
+			if (stream.mQueued) {
+				mReady.remove(stream);
+				stream.mQueued = false;
+			}
+			frame = stream.mPendingFrame;
+			stream.mPendingFrame = null;
+		}
+		if (frame != null) {
+			mBuffers.release(frame);
+		}
+	}
+
+	private void decodeLoop() {
+		while (true) {
+			Stream stream;
+			byte[] frame;
+			int len;
+			long arrivalNanos;
+			synchronized (this) {
+				while (mRunning && mReady.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!mRunning) {
+					return;
+				}
+				stream = mReady.removeFirst();
+				stream.mQueued = false;
+				stream.mBusy = true;
+				frame = stream.mPendingFrame;
+				len = stream.mPendingLen;
+				arrivalNanos = stream.mPendingArrivalNanos;
+				stream.mPendingFrame = null;
+			}
+
+			long start = System.nanoTime();
+			boolean failed = false;
+			try {
+				stream.mDecoder.decode(frame, len, arrivalNanos);
+			} catch (RuntimeException e) {
+				failed = true;
+			}
+			long end = System.nanoTime();
+			mBuffers.release(frame);
+
+			synchronized (this) {
+				stream.mBusy = false;
+				stream.mDecodeNanos += end - start;
+				if (failed) {
+					stream.mNumErrors += 1;
+				} else {
+					stream.mNumDecoded += 1;
+					stream.mLag.record((end - arrivalNanos) / 1000);
+				}
+
+				// A frame that arrived during the decode puts the stream at
+				// the back of the queue, behind the others that are waiting.
+				if (stream.mPendingFrame != null && !stream.mClosed) {
+					stream.mQueued = true;
+					mReady.addLast(stream);
+					notify();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * A pool of recycled byte arrays for receiving video frames.  All of the
+ * buffers in the pool have the same size, which grows to fit the largest
+ * frame seen so far.  Once the pool has warmed up, receiving a frame does
+ * not allocate any memory.
+ */
+class FrameBufferPool {
+	// Buffer sizes are rounded up to a multiple of this so that the pool
+	// does not have to be thrown away every time a slightly larger frame
+	// arrives (this must be a power of two).
+	private static final int SIZE_ROUNDING = 4096;
+
+	private final byte[][] mFree;
+	private int mNumFree;
+
+	// The size of every buffer handed out by the pool.
+	private int mBufferSize;
+
+	// The number of acquire() calls satisfied from the pool, and the number
+	// that had to allocate a new buffer.
+	private int mHits;
+	private int mMisses;
+
+	/**
+	 * Creates a pool that holds on to at most "capacity" free buffers.
+	 * @param capacity the maximum number of free buffers kept for reuse
+	 */
+	FrameBufferPool(int capacity) {
+		mFree = new byte[capacity][];
+	}
+
+	/**
+	 * Returns a buffer that can hold at least "len" bytes.  The buffer
+	 * should be given back with release() when it is no longer needed.
+	 * @param len the number of bytes needed
+	 * @return a buffer with room for at least "len" bytes
+	 */
+	synchronized byte[] acquire(int len) {
+		if (len > mBufferSize) {
+			// The existing buffers are too small for this frame, so drop
+			// them and start handing out larger ones.
+			mBufferSize = (len + SIZE_ROUNDING - 1) & ~(SIZE_ROUNDING - 1);
+			while (mNumFree > 0) {
+				mFree[--mNumFree] = null;
+			}
+		}
+		if (mNumFree > 0) {
+			mHits += 1;
+			byte[] buffer = mFree[--mNumFree];
+			mFree[mNumFree] = null;
+			return buffer;
+		}
+		mMisses += 1;
+		return new byte[mBufferSize];
+	}
+
+	/**
+	 * Gives a buffer back to the pool.  Buffers that are smaller than the
+	 * current frame size, or that do not fit in the pool, are dropped.
+	 * @param buffer a buffer previously returned by acquire()
+	 */
+	synchronized void release(byte[] buffer) {
+		if (buffer.length != mBufferSize || mNumFree == mFree.length) {
+			return;
+		}
+		mFree[mNumFree++] = buffer;
+	}
+
+	synchronized int getHits() {
+		return mHits;
+	}
+
+	synchronized int getMisses() {
+		return mMisses;
+	}
+}
@@ -0,0 +1,339 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * An adaptive jitter buffer for the audio stream from Spykee.
+ *
+ * Each audio packet usually contains 1/8 second of sound, but the packets
+ * don't arrive at precise intervals.  This class measures how much the
+ * packet arrival times vary from what the amount of audio in each packet
+ * would predict, and uses that to pick a target depth for the buffer: deep
+ * enough to ride out the jitter, but no deeper.  When the buffer holds more
+ * than the target, silent stretches are dropped (and, if it is far behind,
+ * a short stretch of sound is cross-faded out) until it catches up.  When
+ * the buffer runs dry, the target grows and playback waits until the
+ * buffer refills to the target.
+ *
+ * Samples are written by the network reader thread and read by the audio
+ * playback thread.
+ */
+class JitterBuffer {
+	// The smallest and largest target depths, in milliseconds.
+	private static final int MIN_TARGET_MILLIS = 20;
+	private static final int MAX_TARGET_MILLIS = 500;
+
+	// The target depth is the average packet size plus this many times
+	// the measured jitter.
+	private static final int JITTER_MULTIPLIER = 3;
+
+	// The depth may go this far (in milliseconds) over the target before
+	// we start dropping samples.
+	private static final int HYSTERESIS_MILLIS = 10;
+
+	// Each underrun adds this much (in milliseconds) to the target depth.
+	// The extra depth decays by 1/UNDERRUN_BOOST_DECAY per packet.
+	private static final int UNDERRUN_BOOST_MILLIS = 20;
+	private static final int UNDERRUN_BOOST_DECAY = 64;
+
+	// The audio is examined in windows of this many milliseconds, and a
+	// window whose RMS level is below SILENCE_LEVEL is silence that may be
+	// dropped whole to shrink the buffer.
+	private static final int WINDOW_MILLIS = 5;
+	private static final int SILENCE_LEVEL = 512;
+
+	// The number of recent packets whose arrival times are remembered for
+	// measuring the latency of each sample.
+	private static final int PACKET_HISTORY = 64;
+
+	private final PcmRingBuffer mRing;
+	private final int mSampleRate;
+
+	// The positions (in samples since the start of the stream) of the
+	// last sample written and the next sample to be read.
+	private long mWritePosition;
+	private long mReadPosition;
+
+	// The end position and arrival time (in nanoseconds) of each of the most
+	// recent packets, used as a circular buffer.
+	private final long[] mPacketEnd = new long[PACKET_HISTORY];
+	private final long[] mPacketArrival = new long[PACKET_HISTORY];
+	private int mNumPackets;
+
+	// The arrival time of the previous packet and the number of samples it
+	// contained.
+	private long mLastArrival;
+	private int mLastPacketSamples;
+
+	// Smoothed packet size and jitter, both in samples.
+	private float mAvgPacketSamples;
+	private float mJitterSamples;
+	private float mUnderrunBoostSamples;
+	private int mTargetSamples;
+
+	// True while waiting for the buffer to refill after an underrun.
+	private boolean mRebuffering = true;
+
+	private int mNumUnderruns;
+	private int mNumOverruns;
+	private long mNumDroppedSamples;
+
+	// Smoothed and maximum time (in nanoseconds) from the arrival of a
+	// packet to the time its samples leave the buffer.
+	private long mLatencyNanos;
+	private long mMaxLatencyNanos;
+
+	// The arrival time of the packet that the last read() took its first
+	// sample from, or 0 if it is not known.
+	private long mLastReadArrivalNanos;
+
+	/**
+	 * Creates a jitter buffer.
+	 * @param sampleRate the sample rate of the audio stream
+	 * @param capacity the maximum number of samples to buffer
+	 */
+	JitterBuffer(int sampleRate, int capacity) {
+		mSampleRate = sampleRate;
+		mRing = new PcmRingBuffer(capacity);
+		mTargetSamples = millisToSamples(MIN_TARGET_MILLIS);
+	}
+
+	/**
+	 * Adds an audio packet to the buffer.
+	 *
+	 * @param bytes the array of little-endian 16-bit samples
+	 * @param offset the index of the first byte
+	 * @param len the number of bytes
+	 * @param arrivalNanos the time the packet arrived, from System.nanoTime()
+	 */
+	void write(byte[] bytes, int offset, int len, long arrivalNanos) {
+		int numSamples = len / 2;
+		synchronized (this) {
+			long overwritten = mRing.getNumOverwritten();
+			mRing.write(bytes, offset, len);
+			long lost = mRing.getNumOverwritten() - overwritten;
+			if (lost > 0) {
+				mNumOverruns += 1;
+				mReadPosition += lost;
+			}
+			mWritePosition += numSamples;
+			int index = mNumPackets % PACKET_HISTORY;
+			mPacketEnd[index] = mWritePosition;
+			mPacketArrival[index] = arrivalNanos;
+			mNumPackets += 1;
+			updateTarget(numSamples, arrivalNanos);
+		}
+	}
+
+	/**
+	 * Recomputes the target depth after a packet arrives.  The jitter is
+	 * the smoothed difference between the actual time between two packets
+	 * and the duration of the audio in the earlier packet.
+	 */
+	private void updateTarget(int numSamples, long arrivalNanos) {
+		if (mLastPacketSamples == 0) {
+			mAvgPacketSamples = numSamples;
+		} else {
+			float elapsed = (arrivalNanos - mLastArrival) * mSampleRate / 1e9f;
+			float deviation = Math.abs(elapsed - mLastPacketSamples);
+			mJitterSamples += (deviation - mJitterSamples) / 16;
+			mAvgPacketSamples += (numSamples - mAvgPacketSamples) / 16;
+		}
+		mLastArrival = arrivalNanos;
+		mLastPacketSamples = numSamples;
+		mUnderrunBoostSamples -= mUnderrunBoostSamples / UNDERRUN_BOOST_DECAY;
+		int target = (int) (mAvgPacketSamples + JITTER_MULTIPLIER * mJitterSamples
+				+ mUnderrunBoostSamples);
+		int min = millisToSamples(MIN_TARGET_MILLIS);
+		int max = Math.min(millisToSamples(MAX_TARGET_MILLIS), mRing.getCapacity());
+		mTargetSamples = Math.max(min, Math.min(max, target));
+	}
+
+	/**
+	 * Reads up to "max" samples for playback, blocking until samples are
+	 * available.  After an underrun this waits until the buffer has refilled
+	 * to the target depth.  Fewer samples than were consumed may be returned
+	 * if the buffer is being shrunk.
+	 *
+	 * @param dest the destination array
+	 * @param max the maximum number of samples to read
+	 * @return the number of samples stored in "dest", or -1 if the buffer
+	 *     was closed
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	int read(short[] dest, int max) throws InterruptedException {
+		int min;
+		synchronized (this) {
+			if (!mRebuffering && mRing.available() == 0) {
+				mNumUnderruns += 1;
+				mRebuffering = true;
+				mUnderrunBoostSamples += millisToSamples(UNDERRUN_BOOST_MILLIS);
+			}
+			min = mRebuffering ? mTargetSamples : 1;
+		}
+
+		// Don't hold the lock while waiting, so that the writer can add
+		// samples.
+		int num = mRing.read(dest, 0, min, max);
+		if (num < 0) {
+			return -1;
+		}
+
+		synchronized (this) {
+			mRebuffering = false;
+			updateLatency(System.nanoTime());
+			mReadPosition += num;
+			int excess = mRing.available() + num - mTargetSamples
+					- millisToSamples(HYSTERESIS_MILLIS);
+			if (excess > 0) {
+				num = shrink(dest, num, excess);
+			}
+		}
+		return num;
+	}
+
+	/**
+	 * Removes up to "excess" samples from the first "num" samples in the
+	 * array by dropping whole windows of silence.  If the buffer is more
+	 * than a whole target depth over the target and that was not enough,
+	 * one window of sound is also removed by cross-fading into the window
+	 * after it, which shortens the audio without changing its pitch.
+	 * @return the number of samples left in the array
+	 */
+	private int shrink(short[] samples, int num, int excess) {
+		int window = millisToSamples(WINDOW_MILLIS);
+		int dropped = 0;
+		int out = 0;
+		for (int start = 0; start < num; start += window) {
+			int end = Math.min(num, start + window);
+			if (end - start == window && dropped + window <= excess
+					&& isSilent(samples, start, end)) {
+				dropped += window;
+				continue;
+			}
+			System.arraycopy(samples, start, samples, out, end - start);
+			out += end - start;
+		}
+		if (excess - dropped > mTargetSamples && out >= 2 * window) {
+			for (int i = 0; i < window; i++) {
+				samples[i] = (short) ((samples[i] * (window - i)
+						+ samples[i + window] * i) / window);
+			}
+			System.arraycopy(samples, 2 * window, samples, window, out - 2 * window);
+			out -= window;
+			dropped += window;
+		}
+		mNumDroppedSamples += dropped;
+		return out;
+	}
+
+	/**
+	 * Returns true if the RMS level of the samples from "start" up to
+	 * "end" is below SILENCE_LEVEL.
+	 */
+	private static boolean isSilent(short[] samples, int start, int end) {
+		long sum = 0;
+		for (int i = start; i < end; i++) {
+			sum += samples[i] * samples[i];
+		}
+		return sum < (long) SILENCE_LEVEL * SILENCE_LEVEL * (end - start);
+	}
+
+	/**
+	 * Updates the latency statistics for the sample at the read position.
+	 */
+	private void updateLatency(long now) {
+		mLastReadArrivalNanos = 0;
+		int oldest = Math.max(0, mNumPackets - PACKET_HISTORY);
+		for (int i = oldest; i < mNumPackets; i++) {
+			int index = i % PACKET_HISTORY;
+			if (mPacketEnd[index] > mReadPosition) {
+				mLastReadArrivalNanos = mPacketArrival[index];
+				long latency = now - mPacketArrival[index];
+				mLatencyNanos += (latency - mLatencyNanos) / 16;
+				if (latency > mMaxLatencyNanos) {
+					mMaxLatencyNanos = latency;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Wakes up the playback thread if it is blocked in read().
+	 */
+	void close() {
+		mRing.close();
+	}
+
+	private int millisToSamples(int millis) {
+		return millis * mSampleRate / 1000;
+	}
+
+	private int samplesToMillis(float samples) {
+		return (int) (samples * 1000 / mSampleRate);
+	}
+
+	/** Returns the number of milliseconds of audio waiting to be played. */
+	int getDepthMillis() {
+		return samplesToMillis(mRing.available());
+	}
+
+	/** Returns the current target depth in milliseconds. */
+	synchronized int getTargetMillis() {
+		return samplesToMillis(mTargetSamples);
+	}
+
+	/** Returns the smoothed packet arrival jitter in milliseconds. */
+	synchronized int getJitterMillis() {
+		return samplesToMillis(mJitterSamples);
+	}
+
+	/** Returns the number of times playback ran out of samples. */
+	synchronized int getNumUnderruns() {
+		return mNumUnderruns;
+	}
+
+	/** Returns the number of times samples were lost because the buffer was full. */
+	synchronized int getNumOverruns() {
+		return mNumOverruns;
+	}
+
+	/** Returns the number of samples dropped to shrink the buffer. */
+	synchronized long getNumDroppedSamples() {
+		return mNumDroppedSamples;
+	}
+
+	/**
+	 * Returns the smoothed time in milliseconds from a packet's arrival to
+	 * the time its samples are handed to the audio output.
+	 */
+	synchronized int getLatencyMillis() {
+		return (int) (mLatencyNanos / 1000000);
+	}
+
+	/**
+	 * Returns the arrival time of the packet that the samples from the last
+	 * read() came from, or 0 if that packet is no longer known.
+	 */
+	synchronized long getLastReadArrivalNanos() {
+		return mLastReadArrivalNanos;
+	}
+
+	/** Returns the largest latency seen so far, in milliseconds. */
+	synchronized int getMaxLatencyMillis() {
+		return (int) (mMaxLatencyNanos / 1000000);
+	}
+}
@@ -0,0 +1,160 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * A histogram of latencies in microseconds, in the style of HdrHistogram.
+ * Each power of two is split into 32 linear sub-buckets, so every value is
+ * recorded with a relative error of at most about 3%, from 1 microsecond
+ * up to more than an hour, in a fixed array of counters.  Recording a
+ * value does not allocate any memory.
+ */
+public class LatencyHistogram {
+	// Each power of two is divided into 2^SUB_BUCKET_BITS buckets.
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Values are clamped to 2^MAX_VALUE_BITS - 1 microseconds (71 minutes).
+	private static final int MAX_VALUE_BITS = 32;
+	private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+	private static final int NUM_BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final long[] mCounts = new long[NUM_BUCKETS];
+	private long mCount;
+	private long mSum;
+	private long mMin = Long.MAX_VALUE;
+	private long mMax;
+
+	/**
+	 * Records one latency.  Negative values are recorded as zero.
+	 * @param micros the latency in microseconds
+	 */
+	public synchronized void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		} else if (micros > MAX_VALUE) {
+			micros = MAX_VALUE;
+		}
+		mCounts[bucketIndex(micros)] += 1;
+		mCount += 1;
+		mSum += micros;
+		if (micros < mMin) {
+			mMin = micros;
+		}
+		if (micros > mMax) {
+			mMax = micros;
+		}
+	}
+
+	/**
+	 * Adds all of the values recorded in another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		long[] counts = new long[NUM_BUCKETS];
+		long count, sum, min, max;
+		synchronized (other) {
+			System.arraycopy(other.mCounts, 0, counts, 0, NUM_BUCKETS);
+			count = other.mCount;
+			sum = other.mSum;
+			min = other.mMin;
+			max = other.mMax;
+		}
+		synchronized (this) {
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				mCounts[i] += counts[i];
+			}
+			mCount += count;
+			mSum += sum;
+			mMin = Math.min(mMin, min);
+			mMax = Math.max(mMax, max);
+		}
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			mCounts[i] = 0;
+		}
+		mCount = 0;
+		mSum = 0;
+		mMin = Long.MAX_VALUE;
+		mMax = 0;
+	}
+
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	/** Returns the smallest value recorded, or 0 if there are none. */
+	public synchronized long getMin() {
+		return mCount == 0 ? 0 : mMin;
+	}
+
+	/** Returns the largest value recorded, or 0 if there are none. */
+	public synchronized long getMax() {
+		return mMax;
+	}
+
+	/** Returns the mean of the values recorded, or 0 if there are none. */
+	public synchronized long getMean() {
+		return mCount == 0 ? 0 : mSum / mCount;
+	}
+
+	/**
+	 * Returns the value at the given percentile.  This is the largest
+	 * value that falls in the same bucket, so it is never lower than the
+	 * actual value, and it is never more than the largest value recorded.
+	 * @param percentile a percentile between 0 and 100
+	 * @return the value at the percentile, or 0 if nothing was recorded
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (mCount == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(mCount * percentile / 100);
+		if (target < 1) {
+			target = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += mCounts[i];
+			if (seen >= target) {
+				return Math.min(highestValueInBucket(i), mMax);
+			}
+		}
+		return mMax;
+	}
+
+	/**
+	 * Returns the bucket for a value.  Values below 2 * SUB_BUCKETS get a
+	 * bucket each.  Above that, the top SUB_BUCKET_BITS + 1 bits of the
+	 * value select the bucket within its power of two.
+	 */
+	private static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >> shift);
+	}
+
+	private static long highestValueInBucket(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		long top = index - (shift << SUB_BUCKET_BITS);
+		return ((top + 1) << shift) - 1;
+	}
+}
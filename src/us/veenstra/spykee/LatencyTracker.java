@@ -0,0 +1,147 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Measures where the time goes between a packet arriving from the robot
+ * and the user seeing or hearing it.  Each stage of the video and audio
+ * pipelines has its own latency histogram.
+ *
+ * The histograms are kept for the current interval and for the whole
+ * session.  snapshot() reports the current interval and starts a new one,
+ * so calling it periodically gives a running view of the latencies.
+ */
+public class LatencyTracker {
+	/**
+	 * The measured stages.  Each stage starts when the packet was read from
+	 * the socket or at the end of the previous stage.
+	 */
+	public enum Stage {
+		/** From the socket read to the end of the JPEG decode. */
+		VIDEO_READ_TO_DECODED("video read->decoded"),
+		/**
+		 * From the end of the decode to the UI thread handling the frame.
+		 * Frames drawn into a CameraSurfaceView skip this stage.
+		 */
+		VIDEO_DECODED_TO_HANDLED("video decoded->handled"),
+		/**
+		 * From the UI thread taking the frame to the ImageView update, or
+		 * from the end of the decode to posting the frame to the surface.
+		 */
+		VIDEO_HANDLED_TO_DISPLAYED("video handled->displayed"),
+		/** From the socket read to the frame being shown. */
+		VIDEO_READ_TO_DISPLAYED("video read->displayed"),
+		/** From the socket read to the samples leaving the jitter buffer. */
+		AUDIO_READ_TO_DEQUEUED("audio read->dequeued"),
+		/**
+		 * From the socket read to the samples reaching the speaker, which
+		 * adds the time they spend in the AudioTrack's buffer.
+		 */
+		AUDIO_READ_TO_PLAYED("audio read->played");
+
+		private final String mName;
+
+		Stage(String name) {
+			mName = name;
+		}
+
+		@Override
+		public String toString() {
+			return mName;
+		}
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+
+	private final LatencyHistogram[] mInterval = new LatencyHistogram[STAGES.length];
+	private final LatencyHistogram[] mSession = new LatencyHistogram[STAGES.length];
+
+	public LatencyTracker() {
+		for (int i = 0; i < STAGES.length; i++) {
+			mInterval[i] = new LatencyHistogram();
+			mSession[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records the time taken by one packet in a stage.
+	 * @param stage the stage
+	 * @param startNanos the start of the stage, from System.nanoTime()
+	 * @param endNanos the end of the stage, from System.nanoTime()
+	 */
+	public void record(Stage stage, long startNanos, long endNanos) {
+		mInterval[stage.ordinal()].record((endNanos - startNanos) / 1000);
+	}
+
+	/**
+	 * Returns the histogram of a stage for the whole session, not including
+	 * the current interval.
+	 */
+	public LatencyHistogram getSessionHistogram(Stage stage) {
+		return mSession[stage.ordinal()];
+	}
+
+	/**
+	 * Formats the latencies of the current interval, one line per stage
+	 * that recorded anything, then adds them to the session histograms and
+	 * starts a new interval.
+	 * @return the report, or an empty string if nothing was recorded
+	 */
+	public synchronized String snapshot() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < STAGES.length; i++) {
+			LatencyHistogram interval = mInterval[i];
+			synchronized (interval) {
+				if (interval.getCount() > 0) {
+					append(builder, STAGES[i], interval);
+				}
+				mSession[i].add(interval);
+				interval.reset();
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Formats the latencies for the whole session.
+	 */
+	public synchronized String sessionReport() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < STAGES.length; i++) {
+			if (mSession[i].getCount() > 0) {
+				append(builder, STAGES[i], mSession[i]);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static void append(StringBuilder builder, Stage stage, LatencyHistogram histogram) {
+		if (builder.length() > 0) {
+			builder.append('\n');
+		}
+		builder.append(stage).append(": n=").append(histogram.getCount());
+		builder.append(" mean=").append(millis(histogram.getMean()));
+		builder.append(" p50=").append(millis(histogram.getValueAtPercentile(50)));
+		builder.append(" p90=").append(millis(histogram.getValueAtPercentile(90)));
+		builder.append(" p99=").append(millis(histogram.getValueAtPercentile(99)));
+		builder.append(" max=").append(millis(histogram.getMax())).append("ms");
+	}
+
+	/** Formats microseconds as milliseconds with one decimal place. */
+	private static String millis(long micros) {
+		long tenths = (micros + 50) / 100;
+		return (tenths / 10) + "." + (tenths % 10);
+	}
+}
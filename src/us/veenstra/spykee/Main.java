@@ -15,20 +15,24 @@
 package us.veenstra.spykee;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
 
-import us.veenstra.spykee.Spykee.DockState;
+import us.veenstra.spykee.SpykeeClient.DockState;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.media.MediaPlayer;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -39,19 +43,40 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ImageView;
 import android.widget.TextView;
 
 /**
  * This is the main activity that is created when the Spykee app is launched.
  * This handles all the UI.
  */
-public class Main extends Activity implements View.OnClickListener,
-        MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener {
+public class Main extends Activity implements View.OnClickListener {
 	private static final String TAG = "Main";
 	private static final int DIALOG_CONNECT_ID = 1;
 	private static final int DIALOG_SOUNDFX_ID = 2;
 
+	// A message that the handler sends to itself to log the latencies
+	// periodically.  It must not clash with the Spykee.SPYKEE_* messages.
+	private static final int MSG_LATENCY_SNAPSHOT = 1000;
+	private static final long LATENCY_SNAPSHOT_MILLIS = 10000;
+
+	// A message that updates the playback position shown in the status line.
+	private static final int MSG_PLAYBACK_POSITION = 1001;
+	private static final long PLAYBACK_POSITION_MILLIS = 500;
+
+	// A message from the thread that opens a recording, with the player or
+	// the IOException as its object.
+	private static final int MSG_PLAYER_OPENED = 1002;
+
+	// The speeds that the speed button cycles through, and how far the back
+	// and forward buttons jump.
+	private static final int[] PLAYBACK_SPEEDS = { 1, 2, 4, 8 };
+	private static final long PLAYBACK_JUMP_MICROS = 10000000;
+
+	// Set to true to measure command latency and the robot's response time
+	// to motor commands.  The results are logged with the latencies.
+	private static final boolean MEASURE_COMMANDS = false;
+	private CommandProbe mCommandProbe;
+
 	// The following strings are used as keys for reading and writing the
 	// values needed to connect to Spykee.
 	private static final String PREFS_HOST = "host";
@@ -59,72 +84,40 @@ public class Main extends Activity implements View.OnClickListener,
 	private static final String PREFS_LOGIN = "login";
 	private static final String PREFS_PASSWORD = "password";
 
-	// The name of the directory under /sdcard/ where we store temporary files.
+	// The name of the directory under /sdcard/ where we store recordings.
 	private static final String SPYKEE_DIR = "spykee";
 
-	// The File object for the storage directory.
-    private static File sStorageRoot;
+	// Recordings are named after the time they were started.
+	private static final String RECORDING_NAME_FORMAT = "'session-'yyyyMMdd-HHmmss'.spk'";
+	private static final String RECORDING_SUFFIX = ".spk";
 
-    // The number of audio buffer files that we cycle through. Each audio
-    // packet from Spyke usually contains 1/8 second of sound (2000 16-bit
-    // samples from a 16KHz stream), but sometimes packets are delayed
-    // and contain more than 2000 audio samples.
-    // Since the audio buffers don't arrive in precise intervals, we need
-    // to buffer them and play them slightly delayed from real time.
-    private static final int MAX_AUDIO_BUFFERS = 16;
-
-    // If the number of audio buffers that we have downloaded gets too far
-    // ahead of the playback, then we will start dropping buffers to catch
-    // up.
-    private static final int DROP_AUDIO_THRESHOLD = 8;
-
-    // The number of buffers we have downloaded but not yet played.
-    private static int sNumAudioBuffers;
-
-    // The number of the audio buffer that we are downloading (wraps to zero).
-    private static int sDownloadingAudioNum;
-
-    // The number of the audio buffer that we are playing (wraps to zero).
-    private int mPlayingAudioNum;
-    
-    // Keep track of the number of times we had to wait for an audio
-    // buffer to download, and the number of times that we had to skip
-    // an audio buffer because playback was falling behind.
-    private int mNumWaits;
-    private int mNumSkips;
+	// The most browsers that can watch the shared video at once.
+	private static final int MAX_VIEWERS = 8;
 
-    /**
-     * The file header for a .wav file.  We have to fill in the "Chunksize"
-     * and the "data size" bytes.  This is used for creating a sound file
-     * from the raw audio bytes that Spykee sends us.
-     */
-    private static byte[] sWaveHeader = {
-		0x52, 0x49, 0x46, 0x46,   // "RIFF"
-		0, 0, 0, 0,               // Chunksize (little-endian) = data size + 36
-		0x57, 0x41, 0x56, 0x45,   // "WAVE"
-		0x66, 0x6d, 0x74, 0x20,   // "fmt "
-		16, 0, 0, 0,              // subchunk1 size
-		1, 0, 1, 0,               // PCM, mono
-		(byte) 0x80, 0x3e, 0, 0,  // sample rate = 16KHz
-		(byte) 0x80, 0x3e, 0, 0,  // byte rate = 16000
-		1, 0, 8, 0,               // Channels * bytes/sample, bits/sample
-		0x64, 0x61, 0x74, 0x61,   // "data"
-		0, 0, 0, 0                // data size (little-endian)
-    };
-
-    /** The starting byte offset for the "Chunksize" field in the wave header */
-    private static final int WAVE_CHUNK_SIZE_OFFSET = 4;
-
-    /** The starting byte offset for the "data size" field in the wave header */
-    private static final int WAVE_DATA_SIZE_OFFSET = 40;
+	// The File object for the storage directory.
+    private static File sStorageRoot;
 
     // The Spykee object that we use for communicating with the Spykee robot.
     private Spykee mSpykee;
+    private SpykeeHandler mHandler;
+
+    // The I/O thread for the non-blocking transport, or null if the
+    // selector could not be opened and we fall back to a blocking socket.
+    private NioEngine mNioEngine;
 
 	private Dialog mConnectDialog;
 	private Button mConnectButton;
 	private Button mDockButton;
 	private Button mSoundFxButton;
+	private Button mRecordButton;
+	private Button mPlayButton;
+	private Button mShareButton;
+	private View mPlaybackControls;
+	private Button mBackButton;
+	private Button mPauseButton;
+	private Button mStepButton;
+	private Button mSpeedButton;
+	private Button mForwardButton;
 	private Button mAlarmButton;
 	private Button mBombButton;
 	private Button mLazerButton;
@@ -135,8 +128,21 @@ public class Main extends Activity implements View.OnClickListener,
 	private Button mCustom2Button;
 	private TextView mConnectionStatus;
 	private TextView mBatteryLevelView;
-	private ImageView mCameraView;
-    private MediaPlayer mMediaPlayer;
+	private CameraSurfaceView mCameraView;
+
+    // Plays the audio stream from Spykee.
+    private AudioPlayer mAudioPlayer;
+
+    // The recording being played back, or null, and the index of its speed
+    // in PLAYBACK_SPEEDS.
+    private SessionPlayer mPlayer;
+    private int mSpeedIndex;
+
+    // The recording being opened for playback, or null.
+    private File mOpeningFile;
+
+    // Republishes the video over HTTP while sharing, or null.
+    private MjpegServer mMjpegServer;
 
     private class SpykeeHandler extends Handler {
     	@Override
@@ -152,27 +158,56 @@ public class Main extends Activity implements View.OnClickListener,
     				mDockButton.setText(R.string.dock);
     			}
     			break;
-    		case Spykee.SPYKEE_VIDEO_FRAME:
-    			Bitmap bitmap = (Bitmap) msg.obj;
-    			mCameraView.setImageBitmap(bitmap);
+    		case Spykee.SPYKEE_CONNECTED:
+    			onConnected((ConnectAttempt) msg.obj);
+    			break;
+    		case Spykee.SPYKEE_CONNECT_FAILED:
+    			onConnectFailed((ConnectAttempt) msg.obj);
+    			break;
+    		case Spykee.SPYKEE_LINK_LOST:
+    			mConnectionStatus.setText(R.string.reconnecting);
     			break;
-    		case Spykee.SPYKEE_AUDIO:
-    			if (mMediaPlayer == null) {
-    				return;
+    		case Spykee.SPYKEE_RECONNECTED:
+    			mConnectionStatus.setText(getString(R.string.reconnected, msg.arg1));
+    			break;
+    		case MSG_LATENCY_SNAPSHOT:
+    			String latencies = mSpykee.getLatencyTracker().snapshot();
+    			if (latencies.length() > 0) {
+    				Log.i(TAG, "latencies:\n" + latencies);
     			}
-    			sNumAudioBuffers += 1;
-    			if (sNumAudioBuffers >= DROP_AUDIO_THRESHOLD) {
-    				mNumSkips += 1;
-    				sNumAudioBuffers -= 1;
-    				mPlayingAudioNum += 1;
-    				if (mPlayingAudioNum >= MAX_AUDIO_BUFFERS) {
-    					mPlayingAudioNum = 0;
+    			if (mCommandProbe != null) {
+    				String commands = mCommandProbe.snapshot();
+    				if (commands.length() > 0) {
+    					Log.i(TAG, "commands:\n" + commands);
     				}
-    				Log.d(TAG, "audio skips: " + mNumSkips + " waits: " + mNumWaits);
     			}
-    			if (!mMediaPlayer.isPlaying() && sNumAudioBuffers == 1) {
-        			playNextAudioFile();
+    			sendEmptyMessageDelayed(MSG_LATENCY_SNAPSHOT, LATENCY_SNAPSHOT_MILLIS);
+    			break;
+    		case Spykee.SPYKEE_PLAYBACK_ENDED:
+    			if (msg.obj == mPlayer) {
+    				removeMessages(MSG_PLAYBACK_POSITION);
+    				mConnectionStatus.setText(getString(R.string.playback_ended,
+    						mPlayer.getFile().getName()));
     			}
+    			break;
+    		case Spykee.SPYKEE_RECORDING_STOPPED:
+    			SessionRecorder recorder = (SessionRecorder) msg.obj;
+    			String path = recorder.getFile().getAbsolutePath();
+    			if (recorder.getError() != null) {
+    				mConnectionStatus.setText(getString(R.string.cannot_record, path));
+    			} else {
+    				mConnectionStatus.setText(getString(R.string.recorded_to, path));
+    			}
+    			break;
+    		case MSG_PLAYER_OPENED:
+    			onPlayerOpened(msg.obj);
+    			break;
+    		case MSG_PLAYBACK_POSITION:
+    			if (mPlayer != null) {
+    				showPlaybackPosition();
+    				sendEmptyMessageDelayed(MSG_PLAYBACK_POSITION, PLAYBACK_POSITION_MILLIS);
+    			}
+    			break;
     		}
     	}
     }
@@ -187,9 +222,26 @@ public class Main extends Activity implements View.OnClickListener,
         mDockButton.setOnClickListener(this);
         mSoundFxButton = (Button) findViewById(R.id.soundfx);
         mSoundFxButton.setOnClickListener(this);
+        mRecordButton = (Button) findViewById(R.id.record);
+        mRecordButton.setOnClickListener(this);
+        mPlayButton = (Button) findViewById(R.id.play);
+        mPlayButton.setOnClickListener(this);
+        mShareButton = (Button) findViewById(R.id.share);
+        mShareButton.setOnClickListener(this);
+        mPlaybackControls = findViewById(R.id.playback_controls);
+        mBackButton = (Button) findViewById(R.id.back);
+        mBackButton.setOnClickListener(this);
+        mPauseButton = (Button) findViewById(R.id.pause);
+        mPauseButton.setOnClickListener(this);
+        mStepButton = (Button) findViewById(R.id.step);
+        mStepButton.setOnClickListener(this);
+        mSpeedButton = (Button) findViewById(R.id.speed);
+        mSpeedButton.setOnClickListener(this);
+        mForwardButton = (Button) findViewById(R.id.forward);
+        mForwardButton.setOnClickListener(this);
         mConnectionStatus = (TextView) findViewById(R.id.status);
         mBatteryLevelView = (TextView) findViewById(R.id.battery_level);
-        mCameraView = (ImageView) findViewById(R.id.camera);
+        mCameraView = (CameraSurfaceView) findViewById(R.id.camera);
 		sStorageRoot = Environment.getExternalStorageDirectory();
 		if (!sStorageRoot.canWrite()) {
 			Log.w(TAG, "Cannot write to external storage: " + sStorageRoot.getAbsolutePath());
@@ -201,23 +253,44 @@ public class Main extends Activity implements View.OnClickListener,
 			}
 			sStorageRoot = dir;
 		}
-		sNumAudioBuffers = 0;
-		sDownloadingAudioNum = 0;
-		mPlayingAudioNum = 0;
-        mMediaPlayer = new MediaPlayer();
-        mMediaPlayer.setOnCompletionListener(this);
-        mMediaPlayer.setOnErrorListener(this);
-        mSpykee = new Spykee(new SpykeeHandler());
+        mAudioPlayer = new AudioPlayer();
+        mAudioPlayer.start();
+        try {
+        	mNioEngine = new NioEngine();
+        	mNioEngine.start();
+        } catch (IOException e) {
+        	Log.w(TAG, "Cannot start NIO engine, using blocking socket: " + e);
+        	mNioEngine = null;
+        }
+        mHandler = new SpykeeHandler();
+        mSpykee = new Spykee(mHandler, mNioEngine);
+        mSpykee.setAudioSink(mAudioPlayer);
+
+        // The decoder draws video frames straight into the camera view.  The
+        // camera has no alpha channel, so 16 bits per pixel is plenty.
+        mSpykee.setVideoSurface(mCameraView);
+        mSpykee.setVideoPixelFormat(Bitmap.Config.RGB_565);
+        mAudioPlayer.setLatencyTracker(mSpykee.getLatencyTracker());
+        if (MEASURE_COMMANDS) {
+        	mCommandProbe = new CommandProbe();
+        	mSpykee.setCommandProbe(mCommandProbe);
+        }
     }
 
     @Override
     public void onDestroy() {
     	super.onDestroy();
+    	mHandler.removeMessages(MSG_LATENCY_SNAPSHOT);
+    	mHandler.removeMessages(MSG_PLAYBACK_POSITION);
+    	mOpeningFile = null;
     	mSpykee.close();
-    	mMediaPlayer.stop();
-    	mMediaPlayer.release();
-    	mMediaPlayer = null;
-    	deleteAudioFiles();
+    	if (mMjpegServer != null) {
+    		mMjpegServer.stop();
+    	}
+    	if (mNioEngine != null) {
+    		mNioEngine.shutdown();
+    	}
+    	mAudioPlayer.release();
     }
 
     /**
@@ -328,25 +401,255 @@ public class Main extends Activity implements View.OnClickListener,
 		editor.putString(PREFS_PASSWORD, password);
 		editor.commit();
 
+    	if (mPlayer != null) {
+    		stopPlayback();
+    	}
     	mConnectionStatus.setText(getString(R.string.connecting, host));
 		int portNum = Integer.parseInt(port);
-		try {
-    		mSpykee.connect(host, portNum, login, password);
-		} catch (UnknownHostException e) {
-			Log.e(TAG, "Unknown host: " + host);
-			String mesg = getString(R.string.unknown_host, host);
-    		mConnectionStatus.setText(mesg);
-    		return;
-		} catch (IOException e) {
-			Log.e(TAG, host + ":" + port + ": " + e);
-			String mesg = getString(R.string.io_exception, host, port, e.toString());
-    		mConnectionStatus.setText(mesg);
-    		return;
-		}
-    	mConnectionStatus.setText(getString(R.string.connected, host));
+
+		// This returns right away; the handler gets SPYKEE_CONNECTED or
+		// SPYKEE_CONNECT_FAILED when the attempt finishes.
+		mSpykee.connectAsync(host, portNum, login, password);
+    }
+
+    /**
+     * Updates the UI when a connect attempt succeeds.
+     */
+    private void onConnected(ConnectAttempt attempt) {
+    	mConnectionStatus.setText(getString(R.string.connected_timing, attempt.getHost(),
+    			attempt.getResolveMillis(), attempt.getTcpMillis(), attempt.getLoginMillis()));
     	mSpykee.activate();
+    	mHandler.removeMessages(MSG_LATENCY_SNAPSHOT);
+    	mHandler.sendEmptyMessageDelayed(MSG_LATENCY_SNAPSHOT, LATENCY_SNAPSHOT_MILLIS);
     	mDockButton.setEnabled(true);
     	mSoundFxButton.setEnabled(true);
+    	mRecordButton.setEnabled(true);
+    }
+
+    /**
+     * Starts recording the session to a new file on the sd card, or stops
+     * the recording in progress.
+     */
+    private void toggleRecording() {
+    	if (mSpykee.isRecording()) {
+    		// The file is finished in the background, and SPYKEE_RECORDING_STOPPED
+    		// says when it is done.
+    		mSpykee.stopRecording();
+    		mRecordButton.setText(R.string.record);
+    		return;
+    	}
+    	String name = new SimpleDateFormat(RECORDING_NAME_FORMAT).format(new Date());
+    	File file = new File(sStorageRoot, name);
+    	try {
+    		mSpykee.startRecording(file);
+    	} catch (IOException e) {
+    		Log.e(TAG, "Cannot record to " + file.getAbsolutePath() + ": " + e);
+    		mConnectionStatus.setText(getString(R.string.cannot_record, file.getAbsolutePath()));
+    		return;
+    	}
+    	mRecordButton.setText(R.string.stop_recording);
+    	mConnectionStatus.setText(getString(R.string.recording_to, file.getAbsolutePath()));
+    }
+
+    /**
+     * Starts serving the video to web browsers on the local network, or
+     * stops serving it.
+     */
+    private void toggleSharing() {
+    	if (mMjpegServer != null) {
+    		mSpykee.getDemux().setVideoMirror(null);
+    		mMjpegServer.stop();
+    		mMjpegServer = null;
+    		mShareButton.setText(R.string.share);
+    		return;
+    	}
+    	MjpegServer server = new MjpegServer(MjpegServer.DEFAULT_PORT, MAX_VIEWERS);
+    	int port;
+    	try {
+    		port = server.start();
+    	} catch (IOException e) {
+    		Log.e(TAG, "Cannot share video: " + e);
+    		mConnectionStatus.setText(getString(R.string.cannot_share, e.getMessage()));
+    		return;
+    	}
+    	mMjpegServer = server;
+    	mSpykee.getDemux().setVideoMirror(server);
+    	mShareButton.setText(R.string.stop_sharing);
+    	mConnectionStatus.setText(getString(R.string.sharing_at, getLocalAddress(), port));
+    }
+
+    /**
+     * Returns the IPv4 address that other devices on the network can
+     * reach us at, or "localhost" if there isn't one.
+     */
+    private static String getLocalAddress() {
+    	try {
+    		Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+    		while (interfaces != null && interfaces.hasMoreElements()) {
+    			Enumeration<InetAddress> addresses = interfaces.nextElement().getInetAddresses();
+    			while (addresses.hasMoreElements()) {
+    				InetAddress address = addresses.nextElement();
+    				if (address instanceof Inet4Address && !address.isLoopbackAddress()) {
+    					return address.getHostAddress();
+    				}
+    			}
+    		}
+    	} catch (SocketException e) {
+    	}
+    	return "localhost";
+    }
+
+    /**
+     * Plays back the newest recording on the sd card, or stops the
+     * playback in progress.
+     */
+    private void togglePlayback() {
+    	if (mPlayer != null) {
+    		stopPlayback();
+    		return;
+    	}
+    	if (mOpeningFile != null) {
+    		return;
+    	}
+    	File[] files = sStorageRoot.listFiles(new FilenameFilter() {
+    		public boolean accept(File dir, String name) {
+    			return name.endsWith(RECORDING_SUFFIX);
+    		}
+    	});
+    	File newest = null;
+    	if (files != null) {
+    		for (File file : files) {
+    			if (newest == null || file.lastModified() > newest.lastModified()) {
+    				newest = file;
+    			}
+    		}
+    	}
+    	if (newest == null) {
+    		mConnectionStatus.setText(getString(R.string.no_recordings,
+    				sStorageRoot.getAbsolutePath()));
+    		return;
+    	}
+
+    	// Opening a recording without an index scans the whole file, so do
+    	// it off the UI thread.
+    	final File file = newest;
+    	mOpeningFile = file;
+    	mConnectionStatus.setText(getString(R.string.opening_recording, file.getName()));
+    	new Thread(new Runnable() {
+    		public void run() {
+    			Object result;
+    			try {
+    				result = new SessionPlayer(file);
+    			} catch (IOException e) {
+    				result = e;
+    			}
+    			mHandler.sendMessage(mHandler.obtainMessage(MSG_PLAYER_OPENED, result));
+    		}
+    	}, "SpykeePlayerOpen").start();
+    }
+
+    /**
+     * Starts playing the recording opened by togglePlayback(), unless the
+     * activity has gone away in the meantime.
+     */
+    private void onPlayerOpened(Object result) {
+    	File file = mOpeningFile;
+    	mOpeningFile = null;
+    	if (result instanceof IOException) {
+    		if (file != null) {
+    			IOException e = (IOException) result;
+    			Log.e(TAG, "Cannot play " + file.getAbsolutePath() + ": " + e);
+    			mConnectionStatus.setText(getString(R.string.cannot_play, file.getName(),
+    					e.getMessage()));
+    		}
+    		return;
+    	}
+    	SessionPlayer player = (SessionPlayer) result;
+    	if (file == null) {
+    		player.close();
+    		return;
+    	}
+    	mSpykee.play(player);
+    	mPlayer = player;
+
+    	// Playing disconnects from the robot.
+    	mHandler.removeMessages(MSG_LATENCY_SNAPSHOT);
+    	mDockButton.setEnabled(false);
+    	mSoundFxButton.setEnabled(false);
+    	mRecordButton.setEnabled(false);
+    	mRecordButton.setText(R.string.record);
+
+    	mSpeedIndex = 0;
+    	mSpeedButton.setText(R.string.normal_speed);
+    	mPauseButton.setText(R.string.pause);
+    	mPlayButton.setText(R.string.stop_playback);
+    	mPlaybackControls.setVisibility(View.VISIBLE);
+    	showPlaybackPosition();
+    	mHandler.sendEmptyMessageDelayed(MSG_PLAYBACK_POSITION, PLAYBACK_POSITION_MILLIS);
+    }
+
+    private void stopPlayback() {
+    	mSpykee.stopPlayback();
+    	mPlayer = null;
+    	mHandler.removeMessages(MSG_PLAYBACK_POSITION);
+    	mPlaybackControls.setVisibility(View.GONE);
+    	mPlayButton.setText(R.string.play);
+    	mConnectionStatus.setText("");
+    }
+
+    /**
+     * Handles the buttons that control playback.
+     */
+    private void controlPlayback(View view) {
+    	if (view == mPauseButton) {
+    		if (mPlayer.isPaused()) {
+    			mPlayer.resume();
+    			mPauseButton.setText(R.string.pause);
+    		} else {
+    			mPlayer.pause();
+    			mPauseButton.setText(R.string.resume);
+    		}
+    	} else if (view == mStepButton) {
+    		mPlayer.step();
+    		mPauseButton.setText(R.string.resume);
+    	} else if (view == mSpeedButton) {
+    		mSpeedIndex = (mSpeedIndex + 1) % PLAYBACK_SPEEDS.length;
+    		mPlayer.setSpeed(PLAYBACK_SPEEDS[mSpeedIndex]);
+    		mSpeedButton.setText(getString(R.string.speed, PLAYBACK_SPEEDS[mSpeedIndex]));
+    	} else if (view == mBackButton) {
+    		mPlayer.seek(mPlayer.getPositionMicros() - PLAYBACK_JUMP_MICROS);
+    	} else if (view == mForwardButton) {
+    		mPlayer.seek(Math.min(mPlayer.getPositionMicros() + PLAYBACK_JUMP_MICROS,
+    				mPlayer.getDurationMicros()));
+    	}
+    	mHandler.removeMessages(MSG_PLAYBACK_POSITION);
+    	showPlaybackPosition();
+    	mHandler.sendEmptyMessageDelayed(MSG_PLAYBACK_POSITION, PLAYBACK_POSITION_MILLIS);
+    }
+
+    private void showPlaybackPosition() {
+    	int position = (int) (mPlayer.getPositionMicros() / 1000000);
+    	int duration = (int) (mPlayer.getDurationMicros() / 1000000);
+    	mConnectionStatus.setText(getString(R.string.playing, mPlayer.getFile().getName(),
+    			position / 60, position % 60, duration / 60, duration % 60));
+    }
+
+    /**
+     * Shows why a connect attempt failed.
+     */
+    private void onConnectFailed(ConnectAttempt attempt) {
+    	String host = attempt.getHost();
+    	IOException e = attempt.getError();
+    	String mesg;
+    	if (e instanceof UnknownHostException) {
+    		Log.e(TAG, "Unknown host: " + host);
+    		mesg = getString(R.string.unknown_host, host);
+    	} else {
+    		Log.e(TAG, host + ":" + attempt.getPort() + ": " + e);
+    		mesg = getString(R.string.io_exception, host, String.valueOf(attempt.getPort()),
+    				e.toString());
+    	}
+    	mConnectionStatus.setText(mesg);
     }
 
     public void onClick(View view) {
@@ -364,6 +667,15 @@ public class Main extends Activity implements View.OnClickListener,
     		}
     	} else if (view == mSoundFxButton) {
     		showDialog(DIALOG_SOUNDFX_ID);
+    	} else if (view == mRecordButton) {
+    		toggleRecording();
+    	} else if (view == mPlayButton) {
+    		togglePlayback();
+    	} else if (view == mShareButton) {
+    		toggleSharing();
+    	} else if (view == mBackButton || view == mPauseButton || view == mStepButton
+    			|| view == mSpeedButton || view == mForwardButton) {
+    		controlPlayback(view);
     	} else if (view == mAlarmButton) {
     		mSpykee.playSoundAlarm();
     	} else if (view == mBombButton) {
@@ -401,164 +713,4 @@ public class Main extends Activity implements View.OnClickListener,
         }
         return super.onKeyDown(keyCode, msg);
     }
-
-	public void onCompletion(MediaPlayer player) {
-		playNextAudioFile();
-	}
-
-	public boolean onError(MediaPlayer mp, int what, int extra) {
-		Log.e(TAG, "onError(): " + what + " " + extra);
-		return false;
-	}
-
-	/**
-	 * Constructs the filename for the audio buffer from the index.
-	 * @param index the buffer number
-	 * @return the filename
-	 */
-	private static String getAudioFilename(int index) {
-		return "audio" + index + ".wav";
-	}
-
-    /**
-     * Closes the current download file and starts playing it.
-     */
-    private void playNextAudioFile() {
-    	if (sNumAudioBuffers == 0) {
-    		mNumWaits += 1;
-    		return;
-    	}
-    	sNumAudioBuffers -= 1;
-    	String filename = getAudioFilename(mPlayingAudioNum);
-    	mPlayingAudioNum += 1;
-    	if (mPlayingAudioNum >= MAX_AUDIO_BUFFERS) {
-    		mPlayingAudioNum = 0;
-    	}
-    	File file = new File(sStorageRoot, filename);
-		try {
-			mMediaPlayer.reset();
-	    	mMediaPlayer.setDataSource(file.getAbsolutePath());
-			//mMediaPlayer.setDataSource(in.getFD());
-			//mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-			mMediaPlayer.prepare();
-		} catch (FileNotFoundException e) {
-			Log.i(TAG, "Audio file " + file.getAbsolutePath() + ": " + e);
-			return;
-		} catch (IllegalArgumentException e) {
-			Log.i(TAG, "Audio file " + file.getAbsolutePath() + ": " + e);
-			return;
-		} catch (IllegalStateException e) {
-			Log.i(TAG, "Audio file " + file.getAbsolutePath() + ": " + e);
-			return;
-		} catch (IOException e) {
-			Log.i(TAG, "Audio file " + file.getAbsolutePath() + ": " + e);
-			return;
-		}
-        mMediaPlayer.start();
-    }
-
-    /**
-     * Deletes the files used for buffering the audio stream from Spykee.
-     */
-    private void deleteAudioFiles() {
-    	for (int i = 0; i < MAX_AUDIO_BUFFERS; i++) {
-    		String filename = getAudioFilename(i);
-    		File file = new File(sStorageRoot, filename);
-    		file.delete();
-    	}
-    }
-
-    /**
-     * Writes the next audio packet to a file using the ".wav" format.
-     * The input is a stream of signed 16-bit integers (little-endian)
-     * audio samples at 16000 Hz. This is converted to to 8-bit unsigned
-     * samples (still at 16KHz) so that the playback is slightly faster.
-     * @param bytes the input stream of 16-bit audio samples
-     * @param len the number of bytes in the array
-     */
-    static void writeNextAudioFile(byte[] bytes, int len) {
-		String filename = getAudioFilename(sDownloadingAudioNum);
-    	sDownloadingAudioNum += 1;
-    	if (sDownloadingAudioNum >= MAX_AUDIO_BUFFERS) {
-    		sDownloadingAudioNum = 0;
-    	}
-    	File waveFile = new File(sStorageRoot, filename);
-		RandomAccessFile output = null;
-    	try {
-			byte[] samples = new byte[len / 2];
-			convert16bit8bit(bytes, samples, len);
-			output = new RandomAccessFile(waveFile, "rw");
-			output.setLength(0);
-			len = len / 2;
-
-			// Fill in the wave header based on the input size.
-	    	int2Bytes(len + 36, sWaveHeader, WAVE_CHUNK_SIZE_OFFSET);
-			int2Bytes(len, sWaveHeader, WAVE_DATA_SIZE_OFFSET);
-
-			// Write the wave header to the file, followed by the data.
-			output.write(sWaveHeader, 0, sWaveHeader.length);
-			output.write(samples, 0, len);
-		} catch (FileNotFoundException e) {
-			Log.i(TAG, waveFile.getAbsolutePath() + ": " + e);
-			return;
-		} catch (IOException e) {
-			Log.i(TAG, waveFile.getAbsolutePath() + ": " + e);
-			return;
-		} finally {
-			try {
-				if (output != null) {
-					output.close();
-				}
-			} catch (IOException e) {
-				Log.i(TAG, waveFile.getAbsolutePath() + ": " + e);
-			}
-		}
-    }
-
-    private static void convert16bit8bit(byte[] bytes16, byte[] bytes8, int len) {
-    	for (int i = 0, j = 0; i < len; i += 2, j += 1) {
-    		int val = (bytes16[i+1] << 8) + (bytes16[i] & 0xff);
-    		bytes8[j] = (byte) ((val + 0x8000) >> 8);
-    	}
-    }
-
-    /**
-     * Writes the given integer "value" as 4 bytes to the given "bytes" array
-     * starting at the given "offset".  The 32-bit integer value is written in
-     * little-endian order.
-     * @param value the 32-bit integer value to write
-     * @param bytes the destination byte array
-     * @param offset the index of the first byte to write
-     */
-    private static void int2Bytes(int value, byte[] bytes, int offset) {
-    	bytes[offset] = (byte) (value & 0xff);
-    	bytes[offset + 1] = (byte) ((value >> 8) & 0xff);
-    	bytes[offset + 2] = (byte) ((value >> 16) & 0xff);
-    	bytes[offset + 3] = (byte) ((value >> 24) & 0xff);
-    }
-
-    /**
-     * Writes the given bytes to the given filename.  The file is put in a
-     * directory called "spykee" on the sd card.
-     * @param filename the filename to write.
-     * @param append if true, then data is written to the end of the file
-     * @param bytes the raw data to write, starting at index "offset"
-     * @param offset the index of the first byte to write
-     * @param len the number of bytes to write
-     */
-    public static void writeFile(String filename, boolean append, byte[] bytes,
-    		int offset, int len) {
-		File file = new File(sStorageRoot, filename);
-		try {
-			FileOutputStream out = new FileOutputStream(file, append);
-			out.write(bytes, 0, len);
-			out.close();
-		} catch (FileNotFoundException e) {
-			Log.i(TAG, "Cannot write to " + file.getAbsolutePath());
-			return;
-		} catch (IOException e) {
-			Log.i(TAG, "IO Exception writing to " + file.getAbsolutePath() + ": " + e);
-			return;
-		}
-    }
 }
@@ -0,0 +1,419 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small HTTP server that republishes the video from Spykee as a
+ * multipart/x-mixed-replace stream of JPEG images, which browsers and most
+ * video players show as live video.  The JPEG frames from the robot are
+ * sent as they are, without decoding or re-encoding.
+ *
+ * Each frame is copied once into a reference-counted buffer that is shared
+ * by every viewer.  A viewer holds at most one frame waiting to be sent
+ * besides the one it is writing; when a newer frame arrives first, the
+ * waiting one is dropped for that viewer only, so a slow viewer sees fewer
+ * frames without holding up the others or using more memory.  A viewer
+ * that has not finished a write for STALL_TIMEOUT_MILLIS is disconnected.
+ *
+ * Every viewer is served by its own thread, made by the thread factory.
+ */
+public class MjpegServer implements VideoSink {
+	private static final String TAG = "MjpegServer";
+
+	public static final int DEFAULT_PORT = 8080;
+
+	private static final String BOUNDARY = "spykeeframe";
+
+	private static final byte[] RESPONSE_HEADER = ascii("HTTP/1.0 200 OK\r\n"
+			+ "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+			+ "Cache-Control: no-cache, no-store\r\n"
+			+ "Pragma: no-cache\r\n"
+			+ "Connection: close\r\n"
+			+ "\r\n");
+
+	private static final byte[] BUSY_RESPONSE = ascii("HTTP/1.0 503 Service Unavailable\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "Connection: close\r\n"
+			+ "\r\n"
+			+ "Too many viewers\r\n");
+
+	private static final byte[] CRLF = ascii("\r\n");
+
+	// How long a viewer has to send its request, and how long a write to a
+	// viewer may take before it is disconnected.
+	private static final int REQUEST_TIMEOUT_MILLIS = 5000;
+	private static final long STALL_TIMEOUT_MILLIS = 10000;
+
+	// The socket send buffer for each viewer.  Keeping this small means a
+	// slow viewer skips frames here, rather than frames piling up in the
+	// kernel and reaching the viewer late.
+	private static final int SEND_BUFFER_SIZE = 64 * 1024;
+
+	// The longest request header that we read before giving up.
+	private static final int MAX_REQUEST_SIZE = 8192;
+
+	/**
+	 * A video frame shared by all of the viewers.  The buffer goes back to
+	 * the pool when the last viewer releases it.
+	 */
+	private class Frame {
+		final byte[] mData;
+		final int mLength;
+
+		// The boundary and part headers that go in front of the frame.
+		final byte[] mHeader;
+
+		private final AtomicInteger mRefs = new AtomicInteger(1);
+
+		Frame(byte[] data, int len) {
+			mData = data;
+			mLength = len;
+			mHeader = ascii("--" + BOUNDARY + "\r\n"
+					+ "Content-Type: image/jpeg\r\n"
+					+ "Content-Length: " + len + "\r\n"
+					+ "\r\n");
+		}
+
+		void retain() {
+			mRefs.incrementAndGet();
+		}
+
+		void release() {
+			if (mRefs.decrementAndGet() == 0) {
+				mPool.release(mData);
+			}
+		}
+	}
+
+	/**
+	 * One connected viewer and the thread that writes to it.
+	 */
+	private class Viewer {
+		private final Socket mSocket;
+
+		private final ReentrantLock mLock = new ReentrantLock();
+		private final Condition mFrameReady = mLock.newCondition();
+
+		// The newest frame not yet sent to this viewer, or null.
+		private Frame mPending;
+		private boolean mClosed;
+
+		// When the last write finished, or when the viewer was accepted.
+		private volatile long mLastWriteNanos = System.nanoTime();
+
+		Viewer(Socket socket) {
+			mSocket = socket;
+		}
+
+		/**
+		 * Makes "frame" the next one to send, replacing any frame that is
+		 * still waiting.  This never blocks on the network.
+		 */
+		void offer(Frame frame) {
+			Frame dropped;
+			mLock.lock();
+			try {
+				if (mClosed) {
+					return;
+				}
+				dropped = mPending;
+				frame.retain();
+				mPending = frame;
+				mFrameReady.signal();
+			} finally {
+				mLock.unlock();
+			}
+			if (dropped != null) {
+				dropped.release();
+				mNumDropped.incrementAndGet();
+				if (System.nanoTime() - mLastWriteNanos > STALL_TIMEOUT_MILLIS * 1000000L) {
+					close();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the next frame to send.
+		 * @return the frame, or null if the viewer was closed
+		 */
+		private Frame take() throws InterruptedException {
+			mLock.lock();
+			try {
+				while (mPending == null && !mClosed) {
+					mFrameReady.await();
+				}
+				Frame frame = mPending;
+				mPending = null;
+				return frame;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		void close() {
+			Frame pending;
+			mLock.lock();
+			try {
+				if (mClosed) {
+					return;
+				}
+				mClosed = true;
+				pending = mPending;
+				mPending = null;
+				mFrameReady.signal();
+			} finally {
+				mLock.unlock();
+			}
+			if (pending != null) {
+				pending.release();
+			}
+			mViewers.remove(this);
+			try {
+				// This also unblocks a write in progress.
+				mSocket.close();
+			} catch (IOException e) {
+			}
+		}
+
+		void run() {
+			try {
+				mSocket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+				mSocket.setTcpNoDelay(true);
+				mSocket.setSendBufferSize(SEND_BUFFER_SIZE);
+				OutputStream output = mSocket.getOutputStream();
+				if (!readRequest(mSocket.getInputStream())) {
+					return;
+				}
+				output.write(RESPONSE_HEADER);
+				while (true) {
+					Frame frame = take();
+					if (frame == null) {
+						break;
+					}
+					try {
+						output.write(frame.mHeader);
+						output.write(frame.mData, 0, frame.mLength);
+						output.write(CRLF);
+					} finally {
+						frame.release();
+					}
+					mLastWriteNanos = System.nanoTime();
+					mNumSent.incrementAndGet();
+				}
+			} catch (IOException e) {
+				// The viewer went away
+			} catch (InterruptedException e) {
+			} finally {
+				close();
+			}
+		}
+	}
+
+	private final int mPort;
+	private final int mMaxViewers;
+	private ThreadFactory mThreadFactory = SessionThreads.PLATFORM;
+	private ServerSocket mServer;
+	private volatile boolean mRunning;
+
+	private final CopyOnWriteArrayList<Viewer> mViewers = new CopyOnWriteArrayList<Viewer>();
+
+	// Viewers hold at most two frames each, plus the one being handed out.
+	private final FrameBufferPool mPool;
+
+	private final AtomicInteger mNumSent = new AtomicInteger();
+	private final AtomicInteger mNumDropped = new AtomicInteger();
+	private volatile int mNumFrames;
+
+	/**
+	 * Creates a server that is not yet listening.
+	 * @param port the port to listen on, or 0 to pick a free port
+	 * @param maxViewers the most viewers served at once; more are turned away
+	 */
+	public MjpegServer(int port, int maxViewers) {
+		mPort = port;
+		mMaxViewers = maxViewers;
+		mPool = new FrameBufferPool(2 * maxViewers + 1);
+	}
+
+	/**
+	 * Sets the factory for the threads that accept and serve viewers.  This
+	 * must be called before start().
+	 */
+	public void setThreadFactory(ThreadFactory factory) {
+		mThreadFactory = factory;
+	}
+
+	/**
+	 * Starts listening for viewers on all interfaces.
+	 * @return the port that the server is listening on
+	 */
+	public int start() throws IOException {
+		mServer = new ServerSocket(mPort);
+		mRunning = true;
+		SessionThreads.start(mThreadFactory, TAG, new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		});
+		return mServer.getLocalPort();
+	}
+
+	/**
+	 * Stops listening and disconnects every viewer.
+	 */
+	public void stop() {
+		mRunning = false;
+		try {
+			if (mServer != null) {
+				mServer.close();
+			}
+		} catch (IOException e) {
+		}
+		for (Viewer viewer : mViewers) {
+			viewer.close();
+		}
+	}
+
+	private void acceptLoop() {
+		while (mRunning) {
+			final Socket socket;
+			try {
+				socket = mServer.accept();
+			} catch (IOException e) {
+				break;
+			}
+			if (mViewers.size() >= mMaxViewers) {
+				SessionThreads.start(mThreadFactory, TAG + " busy", new Runnable() {
+					public void run() {
+						turnAway(socket);
+					}
+				});
+				continue;
+			}
+			final Viewer viewer = new Viewer(socket);
+			mViewers.add(viewer);
+			SessionThreads.start(mThreadFactory, TAG + " viewer", new Runnable() {
+				public void run() {
+					viewer.run();
+				}
+			});
+		}
+	}
+
+	private static void turnAway(Socket socket) {
+		try {
+			socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+			if (readRequest(socket.getInputStream())) {
+				socket.getOutputStream().write(BUSY_RESPONSE);
+			}
+		} catch (IOException e) {
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Reads the request line and headers.  Whatever the path, the viewer
+	 * gets the video stream.
+	 * @return false if the request was incomplete or too long
+	 */
+	private static boolean readRequest(InputStream input) throws IOException {
+		int matched = 0;
+		try {
+			for (int i = 0; i < MAX_REQUEST_SIZE; i++) {
+				int c = input.read();
+				if (c < 0) {
+					return false;
+				}
+				// Look for the blank line, "\r\n\r\n", that ends the headers.
+				if (c == (matched % 2 == 0 ? '\r' : '\n')) {
+					matched += 1;
+					if (matched == 4) {
+						return true;
+					}
+				} else {
+					matched = c == '\r' ? 1 : 0;
+				}
+			}
+		} catch (SocketTimeoutException e) {
+		}
+		return false;
+	}
+
+	/**
+	 * Hands a video frame to every viewer.  The frame is copied once, into
+	 * a buffer that all of the viewers share.  This never blocks on the
+	 * network.
+	 */
+	public void writeVideoFrame(byte[] bytes, int offset, int len, long arrivalNanos) {
+		mNumFrames += 1;
+		if (mViewers.isEmpty()) {
+			return;
+		}
+		byte[] data = mPool.acquire(len);
+		System.arraycopy(bytes, offset, data, 0, len);
+		Frame frame = new Frame(data, len);
+		for (Viewer viewer : mViewers) {
+			viewer.offer(frame);
+		}
+		frame.release();
+	}
+
+	/** Returns the number of viewers connected. */
+	public int getNumViewers() {
+		return mViewers.size();
+	}
+
+	/** Returns the number of frames received from the robot. */
+	public int getNumFrames() {
+		return mNumFrames;
+	}
+
+	/** Returns the number of frames sent, added up over all viewers. */
+	public int getNumSent() {
+		return mNumSent.get();
+	}
+
+	/**
+	 * Returns the number of frames that viewers skipped because they were
+	 * still busy with an earlier frame, added up over all viewers.
+	 */
+	public int getNumDropped() {
+		return mNumDropped.get();
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,238 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streams motor commands to Spykee at a fixed rate.  Callers set the
+ * desired wheel speeds with drive() as often as they like; a background
+ * thread wakes up at the configured rate and sends the latest speeds if
+ * they changed since the last command, or optionally every refresh
+ * interval while the wheels are turning.  If drive() is not called again
+ * within the deadman timeout, the motors are stopped.
+ *
+ * The state is guarded by a ReentrantLock so that the driver thread does
+ * not pin a carrier thread while it waits when run on a virtual thread.
+ */
+class MotorDriver {
+	private static final String TAG = "MotorDriver";
+
+	// Wheel speeds are between -MAX_SPEED (full speed backward) and
+	// MAX_SPEED (full speed forward).
+	static final int MAX_SPEED = 127;
+
+	private final CommandQueue mQueue;
+	private final long mPeriodNanos;
+	private final long mDeadmanNanos;
+	private final long mRefreshNanos;
+	private final ThreadFactory mThreadFactory;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+
+	// Signalled when the driver is stopped.
+	private final Condition mStopped = mLock.newCondition();
+
+	// The speeds most recently requested with drive(), and when.
+	private int mLeft;
+	private int mRight;
+	private long mDriveTime;
+
+	// The speeds in the last command sent to the robot, and when.
+	private int mSentLeft;
+	private int mSentRight;
+	private long mSentTime;
+
+	private Thread mThread;
+	private boolean mRunning;
+
+	// The number of motor commands sent, the number of periods where
+	// nothing was sent because the speeds had not changed, and the number
+	// of commands that the queue refused.
+	private int mNumSent;
+	private int mNumUnchanged;
+	private int mNumRejected;
+
+	/**
+	 * Creates a driver that sends motor commands to the given queue.
+	 *
+	 * @param queue the queue of commands to the robot
+	 * @param rateHz the maximum number of motor commands per second
+	 * @param deadmanMillis stop the motors if drive() isn't called for this long
+	 * @param refreshMillis send unchanged non-zero speeds again this often,
+	 *     or 0 to send them only when they change
+	 * @param threadFactory creates the driver thread
+	 */
+	MotorDriver(CommandQueue queue, int rateHz, int deadmanMillis, int refreshMillis,
+			ThreadFactory threadFactory) {
+		mQueue = queue;
+		mPeriodNanos = 1000000000L / rateHz;
+		mDeadmanNanos = deadmanMillis * 1000000L;
+		mRefreshNanos = refreshMillis * 1000000L;
+		mThreadFactory = threadFactory;
+	}
+
+	void start() {
+		mLock.lock();
+		try {
+			if (mRunning) {
+				return;
+			}
+			mRunning = true;
+			mThread = SessionThreads.start(mThreadFactory, TAG, new Runnable() {
+				public void run() {
+					driveLoop();
+				}
+			});
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the driver thread.  No further motor commands are sent.
+	 */
+	void stop() {
+		Thread thread;
+		mLock.lock();
+		try {
+			if (!mRunning) {
+				return;
+			}
+			mRunning = false;
+			thread = mThread;
+			mThread = null;
+			mStopped.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Sets the desired speed of each wheel.  The speeds are clamped to
+	 * [-MAX_SPEED, MAX_SPEED]; negative speeds drive the wheel backward.
+	 * This does not block and can be called from any thread.
+	 */
+	void drive(int left, int right) {
+		mLock.lock();
+		try {
+			mLeft = clamp(left);
+			mRight = clamp(right);
+			mDriveTime = System.nanoTime();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	int getNumSent() {
+		mLock.lock();
+		try {
+			return mNumSent;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	int getNumUnchanged() {
+		mLock.lock();
+		try {
+			return mNumUnchanged;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	int getNumRejected() {
+		mLock.lock();
+		try {
+			return mNumRejected;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private static int clamp(int speed) {
+		return Math.max(-MAX_SPEED, Math.min(MAX_SPEED, speed));
+	}
+
+	/**
+	 * Converts a signed speed to the byte that Spykee expects: forward
+	 * speeds are sent as is and backward speeds are sent as 255 minus the
+	 * speed.
+	 */
+	private static int encodeSpeed(int speed) {
+		return speed >= 0 ? speed : 255 + speed;
+	}
+
+	private void driveLoop() {
+		mLock.lock();
+		try {
+			long nextTime = System.nanoTime();
+			while (mRunning) {
+				long now = System.nanoTime();
+				if (now < nextTime) {
+					long waitNanos = nextTime - now;
+					try {
+						mStopped.awaitNanos(waitNanos);
+					} catch (InterruptedException e) {
+						break;
+					}
+					continue;
+				}
+				nextTime += mPeriodNanos;
+				if (nextTime < now) {
+					// We fell behind, so don't try to catch up with a burst
+					nextTime = now + mPeriodNanos;
+				}
+
+				int left = mLeft;
+				int right = mRight;
+				if (now - mDriveTime > mDeadmanNanos) {
+					left = 0;
+					right = 0;
+					mLeft = 0;
+					mRight = 0;
+				}
+				if (left == mSentLeft && right == mSentRight && !needsRefresh(left, right, now)) {
+					mNumUnchanged += 1;
+					continue;
+				}
+				if (!mQueue.offer(CommandEncoder.move(encodeSpeed(left), encodeSpeed(right)))) {
+					// The queue is full or closed, so try again on the next
+					// tick rather than forget a stop.
+					mNumRejected += 1;
+					continue;
+				}
+				mSentLeft = left;
+				mSentRight = right;
+				mSentTime = now;
+				mNumSent += 1;
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private boolean needsRefresh(int left, int right, long now) {
+		return mRefreshNanos > 0 && (left != 0 || right != 0)
+				&& now - mSentTime >= mRefreshNanos;
+	}
+}
@@ -0,0 +1,183 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking connection to one Spykee robot, serviced by an NioEngine.
+ * Incoming bytes are read straight into a PacketParser's receive buffer and
+ * framed into 'P','K' packets incrementally, so a packet may arrive in any
+ * number of pieces.  Outgoing commands are taken from a
+ * CommandQueue and written by the engine's I/O thread.
+ */
+public class NioConnection implements CommandQueue.Listener, NioEngine.Handler {
+	/**
+	 * Receives the packets from the robot.  All methods are called on the
+	 * engine's I/O thread.
+	 */
+	public interface Listener extends PacketListener {
+		/**
+		 * Called once when the connection is closed.
+		 * @param error the error that closed the connection, or null
+		 */
+		void onClosed(IOException error);
+	}
+
+	private static final int WRITE_BUFFER_SIZE = 4096;
+
+	private final NioEngine mEngine;
+	private final SocketChannel mChannel;
+	private final Listener mListener;
+	private SelectionKey mKey;
+
+	// Incoming packets are parsed in place in the parser's receive buffer,
+	// which the socket reads into through mReadView.
+	private final PacketParser mParser;
+	private final ByteBuffer mReadView;
+
+	// Outgoing commands are written through a direct buffer, which holds
+	// data that has not been written yet in "fill" mode.
+	private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+	// The commands waiting to be sent, and the array that each batch of
+	// commands is drained into before it is copied to the write buffer.
+	private final CommandQueue mOutgoing;
+	private final byte[] mBatch = new byte[WRITE_BUFFER_SIZE];
+
+	// True while a batch drained from the queue is still being written.
+	private boolean mWritingBatch;
+
+	private volatile boolean mClosed;
+
+	/**
+	 * Creates a connection for a channel that is already connected.  The
+	 * channel is switched to non-blocking mode and registered with the
+	 * engine.
+	 * @param engine the engine that services this connection
+	 * @param channel the connected channel
+	 * @param outgoing the queue of commands to send
+	 * @param listener receives the packets from the robot
+	 */
+	NioConnection(NioEngine engine, SocketChannel channel, CommandQueue outgoing,
+	        Listener listener) throws IOException {
+		mEngine = engine;
+		mChannel = channel;
+		mListener = listener;
+		mOutgoing = outgoing;
+		mParser = new PacketParser(listener);
+		mReadView = ByteBuffer.wrap(mParser.getBuffer());
+		channel.configureBlocking(false);
+		outgoing.setListener(this);
+		engine.register(this);
+	}
+
+	public SocketChannel getChannel() {
+		return mChannel;
+	}
+
+	public void setKey(SelectionKey key) {
+		mKey = key;
+		if (!mOutgoing.isEmpty()) {
+			enableWrites();
+		}
+	}
+
+	public void onCommandQueued() {
+		if (!mClosed) {
+			mEngine.requestWrite(this);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes skipped because they were not part of a
+	 * valid packet.
+	 */
+	public long getNumSkipped() {
+		return mParser.getNumSkipped();
+	}
+
+	public void close() {
+		closeWithError(null);
+	}
+
+	public void closeWithError(IOException error) {
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+		}
+		mOutgoing.close();
+		if (mKey != null) {
+			mKey.cancel();
+		}
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+		}
+		mListener.onClosed(error);
+	}
+
+	/**
+	 * Called on the I/O thread when there is data queued for writing.
+	 */
+	public void enableWrites() {
+		if (mKey != null && mKey.isValid()) {
+			mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Called on the I/O thread when the socket can be written.  Moves the
+	 * queued commands into the write buffer as one batch and writes as much
+	 * as the socket will take.
+	 */
+	public void onWritable() throws IOException {
+		if (!mWritingBatch) {
+			int len = mOutgoing.drainTo(mBatch);
+			mWriteBuffer.put(mBatch, 0, len);
+			mWritingBatch = true;
+		}
+		mWriteBuffer.flip();
+		mChannel.write(mWriteBuffer);
+		mWriteBuffer.compact();
+		if (mWriteBuffer.position() == 0) {
+			mWritingBatch = false;
+			mOutgoing.batchWritten();
+			if (mOutgoing.isEmpty()) {
+				mKey.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	/**
+	 * Called on the I/O thread when the socket has data to read.
+	 */
+	public void onReadable() throws IOException {
+		int offset = mParser.getWriteOffset();
+		mReadView.limit(offset + mParser.getWriteSpace());
+		mReadView.position(offset);
+		int num = mChannel.read(mReadView);
+		if (num < 0) {
+			throw new EOFException("connection closed by robot");
+		}
+		mParser.bytesWritten(num);
+	}
+}
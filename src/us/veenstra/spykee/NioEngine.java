@@ -0,0 +1,174 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single I/O thread that services any number of non-blocking Spykee
+ * connections with one Selector.  Reads are framed into packets as they
+ * arrive and writes are queued by the caller and flushed when the socket
+ * can accept them, so no thread ever blocks on a slow network.
+ */
+public class NioEngine {
+	private static final String TAG = "NioEngine";
+
+	/**
+	 * A non-blocking channel serviced by the engine, such as an
+	 * NioConnection.  The engine calls setKey(), enableWrites(),
+	 * onReadable() and onWritable() only on the I/O thread.  getChannel()
+	 * may be called on any thread, and closeWithError() must be
+	 * thread-safe and idempotent: the engine calls it on the I/O thread,
+	 * but the owner may also call it (for example from close(), or after
+	 * a failed write) on any other thread at the same time.
+	 */
+	interface Handler {
+		SocketChannel getChannel();
+
+		/** Called once the channel is registered for reads. */
+		void setKey(SelectionKey key);
+
+		/** Called after requestWrite(), to turn on OP_WRITE. */
+		void enableWrites();
+
+		void onReadable() throws IOException;
+
+		void onWritable() throws IOException;
+
+		void closeWithError(IOException error);
+	}
+
+	private final Selector mSelector;
+
+	// Connections waiting to be registered with the selector, and
+	// connections that have queued data to write.  These are handed over
+	// to the I/O thread, which is the only thread that touches the
+	// selection keys.
+	private final ConcurrentLinkedQueue<Handler> mPendingRegistrations =
+			new ConcurrentLinkedQueue<Handler>();
+	private final ConcurrentLinkedQueue<Handler> mPendingWrites =
+			new ConcurrentLinkedQueue<Handler>();
+
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	public NioEngine() throws IOException {
+		mSelector = Selector.open();
+	}
+
+	/**
+	 * Starts the I/O thread.
+	 */
+	public synchronized void start() {
+		if (mThread != null) {
+			return;
+		}
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				runLoop();
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the I/O thread and closes the selector.  Connections that are
+	 * still open are closed.
+	 */
+	public synchronized void shutdown() {
+		if (mThread == null) {
+			return;
+		}
+		mRunning = false;
+		mSelector.wakeup();
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+		}
+		mThread = null;
+	}
+
+	/**
+	 * Adds a connection to the set serviced by this engine.
+	 */
+	void register(Handler connection) {
+		mPendingRegistrations.add(connection);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * Tells the I/O thread that the connection has data queued for writing.
+	 */
+	void requestWrite(Handler connection) {
+		mPendingWrites.add(connection);
+		mSelector.wakeup();
+	}
+
+	private void runLoop() {
+		while (mRunning) {
+			try {
+				mSelector.select();
+			} catch (IOException e) {
+				break;
+			}
+			Handler connection;
+			while ((connection = mPendingRegistrations.poll()) != null) {
+				try {
+					SelectionKey key = connection.getChannel().register(mSelector,
+							SelectionKey.OP_READ, connection);
+					connection.setKey(key);
+				} catch (ClosedChannelException e) {
+					connection.closeWithError(e);
+				}
+			}
+			while ((connection = mPendingWrites.poll()) != null) {
+				connection.enableWrites();
+			}
+			Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				connection = (Handler) key.attachment();
+				try {
+					if (key.isReadable()) {
+						connection.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.onWritable();
+					}
+				} catch (IOException e) {
+					connection.closeWithError(e);
+				} catch (CancelledKeyException e) {
+					// The connection was closed by another thread
+				}
+			}
+		}
+		for (SelectionKey key : mSelector.keys()) {
+			((Handler) key.attachment()).closeWithError(null);
+		}
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+		}
+	}
+}
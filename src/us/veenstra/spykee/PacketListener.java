@@ -0,0 +1,32 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Receives the packets parsed from the stream sent by Spykee.
+ */
+public interface PacketListener {
+	/**
+	 * Called for each complete packet.  The payload is a slice of the
+	 * receive buffer and is only valid for the duration of the call; it
+	 * must be copied if it is needed later.
+	 *
+	 * @param cmd the packet type (one of the SpykeeClient.SPYKEE_* constants)
+	 * @param data the array containing the payload
+	 * @param offset the index of the first byte of the payload
+	 * @param len the length of the payload
+	 */
+	void onPacket(int cmd, byte[] data, int offset, int len);
+}
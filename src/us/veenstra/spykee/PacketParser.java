@@ -0,0 +1,143 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * A streaming parser for the 'P','K' packets sent by Spykee.
+ *
+ * The caller reads from the network directly into the parser's receive
+ * buffer (at getWriteOffset(), up to getWriteSpace() bytes) in whatever
+ * chunks the network delivers, and then calls bytesWritten().  Every
+ * complete packet in the buffer is passed to the listener as a slice of
+ * the receive buffer, without copying.  If the stream gets corrupted, the
+ * parser skips ahead to the next 'P','K' header instead of losing sync.
+ */
+class PacketParser {
+	// The size of the packet header: 'P', 'K', command, 16-bit length.
+	static final int HEADER_SIZE = 5;
+
+	// The largest possible packet.
+	static final int MAX_PACKET_SIZE = HEADER_SIZE + 0xffff;
+
+	// The receive buffer holds two of the largest packets, so that a
+	// partial packet only has to be moved to the front of the buffer at
+	// most once for every MAX_PACKET_SIZE bytes received.
+	private static final int BUFFER_SIZE = 2 * MAX_PACKET_SIZE;
+
+	private final PacketListener mListener;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+	// The unparsed bytes are mBuffer[mStart] to mBuffer[mEnd - 1].
+	private int mStart;
+	private int mEnd;
+
+	// False while skipping bytes that are not part of a packet.
+	private boolean mInSync = true;
+
+	private long mNumPackets;
+	private long mNumSkipped;
+	private int mNumResyncs;
+
+	PacketParser(PacketListener listener) {
+		mListener = listener;
+	}
+
+	/** Returns the receive buffer. */
+	byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	/** Returns the index in the receive buffer where new bytes go. */
+	int getWriteOffset() {
+		return mEnd;
+	}
+
+	/** Returns the number of bytes that can be written at getWriteOffset(). */
+	int getWriteSpace() {
+		return mBuffer.length - mEnd;
+	}
+
+	/**
+	 * Parses the bytes that were just written into the receive buffer,
+	 * passing each complete packet to the listener.
+	 * @param num the number of bytes written at getWriteOffset()
+	 */
+	void bytesWritten(int num) {
+		mEnd += num;
+		parse();
+		if (mStart == mEnd) {
+			mStart = 0;
+			mEnd = 0;
+		} else if (mBuffer.length - mStart < MAX_PACKET_SIZE) {
+			// Make sure there is room for the rest of the partial packet
+			System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+			mEnd -= mStart;
+			mStart = 0;
+		}
+	}
+
+	private void parse() {
+		byte[] buf = mBuffer;
+		while (mEnd - mStart >= HEADER_SIZE) {
+			int start = mStart;
+			if (buf[start] != 'P' || buf[start + 1] != 'K') {
+				resync();
+				continue;
+			}
+			mInSync = true;
+			int cmd = buf[start + 2] & 0xff;
+			int len = ((buf[start + 3] & 0xff) << 8) | (buf[start + 4] & 0xff);
+			if (mEnd - start < HEADER_SIZE + len) {
+				return;
+			}
+			mStart = start + HEADER_SIZE + len;
+			mNumPackets += 1;
+			mListener.onPacket(cmd, buf, start + HEADER_SIZE, len);
+		}
+	}
+
+	/**
+	 * Skips to the next possible 'P','K' header.  If the last byte in the
+	 * buffer is a 'P' it is kept, since the 'K' may not have arrived yet.
+	 */
+	private void resync() {
+		byte[] buf = mBuffer;
+		int pos = mStart + 1;
+		while (pos < mEnd && !(buf[pos] == 'P' && (pos + 1 == mEnd || buf[pos + 1] == 'K'))) {
+			pos += 1;
+		}
+		mNumSkipped += pos - mStart;
+		if (mInSync) {
+			mInSync = false;
+			mNumResyncs += 1;
+		}
+		mStart = pos;
+	}
+
+	/** Returns the number of packets parsed. */
+	long getNumPackets() {
+		return mNumPackets;
+	}
+
+	/** Returns the number of bytes skipped while looking for a header. */
+	long getNumSkipped() {
+		return mNumSkipped;
+	}
+
+	/** Returns the number of times the parser lost sync with the stream. */
+	int getNumResyncs() {
+		return mNumResyncs;
+	}
+}
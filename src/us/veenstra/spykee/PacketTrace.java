@@ -0,0 +1,209 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Dumps Spykee packets in hex and ascii for debugging.
+ *
+ * Tracing is cheap enough to leave on: when it is disabled, or a packet is
+ * filtered out, the only cost is the check in shouldTrace().  Packets can
+ * be filtered by command type and sampled (only 1 out of every N packets
+ * is dumped).  The dump is formatted with a lookup table into a reusable
+ * line buffer rather than with String.format().
+ */
+public class PacketTrace {
+	/**
+	 * Receives the formatted lines of the trace.
+	 */
+	public interface Output {
+		/**
+		 * Prints one line.  The characters are only valid for the duration
+		 * of the call.
+		 */
+		void println(char[] chars, int len);
+	}
+
+	// The number of bytes dumped per line.
+	private static final int BYTES_PER_LINE = 32;
+
+	// After this many bytes in the dump, an extra space is inserted
+	// (this must be a power of two).
+	private static final int EXTRA_SPACE_FREQ = 8;
+	private static final int EXTRA_SPACE_MASK = EXTRA_SPACE_FREQ - 1;
+
+	// At most this many bytes of each packet are dumped.
+	private static final int MAX_DUMP_BYTES = 256;
+
+	// The two hex digits for every byte value, and the character to show
+	// in the ascii part of the dump.
+	private static final char[] HEX_TABLE = new char[256 * 2];
+	private static final char[] ASCII_TABLE = new char[256];
+	static {
+		String digits = "0123456789abcdef";
+		for (int i = 0; i < 256; i++) {
+			HEX_TABLE[i * 2] = digits.charAt(i >> 4);
+			HEX_TABLE[i * 2 + 1] = digits.charAt(i & 0xf);
+			ASCII_TABLE[i] = (i < 0x20 || i > 0x7e) ? '.' : (char) i;
+		}
+	}
+
+	private final Output mOutput;
+
+	// The line being formatted.  It is big enough for the tag, the hex
+	// dump and the ascii dump of one line.
+	private final char[] mLine = new char[128 + BYTES_PER_LINE * 5];
+
+	private volatile boolean mEnabled;
+
+	// Only packets whose command has a true entry here are traced.
+	private final boolean[] mCommands = new boolean[256];
+
+	// Trace 1 out of every mSampleInterval packets that pass the filter.
+	private volatile int mSampleInterval = 1;
+	private int mSampleCount;
+
+	public PacketTrace(Output output) {
+		mOutput = output;
+		setAllCommands(true);
+	}
+
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Traces only 1 out of every "interval" packets.
+	 */
+	public void setSampleInterval(int interval) {
+		mSampleInterval = Math.max(1, interval);
+	}
+
+	/**
+	 * Turns tracing on or off for every command type.
+	 */
+	public void setAllCommands(boolean traced) {
+		for (int i = 0; i < mCommands.length; i++) {
+			mCommands[i] = traced;
+		}
+	}
+
+	/**
+	 * Turns tracing on or off for one command type.
+	 */
+	public void setCommand(int cmd, boolean traced) {
+		mCommands[cmd & 0xff] = traced;
+	}
+
+	/**
+	 * Returns true if a packet with the given command should be traced.
+	 * This also advances the sample counter, so it should be called once
+	 * per packet.
+	 */
+	public boolean shouldTrace(int cmd) {
+		if (!mEnabled || !mCommands[cmd & 0xff]) {
+			return false;
+		}
+		int interval = mSampleInterval;
+		if (interval == 1) {
+			return true;
+		}
+		synchronized (this) {
+			mSampleCount += 1;
+			if (mSampleCount < interval) {
+				return false;
+			}
+			mSampleCount = 0;
+			return true;
+		}
+	}
+
+	/**
+	 * Dumps a packet: a line with the command and length, followed by the
+	 * payload in hex and ascii.
+	 */
+	public synchronized void tracePacket(String tag, int cmd, byte[] bytes, int offset,
+			int len) {
+		int pos = append(0, tag);
+		pos = append(pos, " cmd: ");
+		pos = appendInt(pos, cmd);
+		pos = append(pos, " len: ");
+		pos = appendInt(pos, len);
+		mOutput.println(mLine, pos);
+		dump(tag, bytes, offset, len);
+	}
+
+	/**
+	 * Dumps the bytes in the given array, both in hex and in ascii.
+	 */
+	public synchronized void dump(String tag, byte[] bytes, int offset, int len) {
+		if (!mEnabled) {
+			return;
+		}
+		if (len > MAX_DUMP_BYTES) {
+			len = MAX_DUMP_BYTES;
+		}
+		char[] line = mLine;
+		for (int i = 0; i < len; i += BYTES_PER_LINE) {
+			int lineLen = Math.min(BYTES_PER_LINE, len - i);
+			int pos = append(0, tag);
+			line[pos++] = ' ';
+			for (int j = 0; j < BYTES_PER_LINE; j++) {
+				if (j < lineLen) {
+					int val = bytes[offset + i + j] & 0xff;
+					line[pos++] = HEX_TABLE[val * 2];
+					line[pos++] = HEX_TABLE[val * 2 + 1];
+				} else if (len < BYTES_PER_LINE) {
+					// Short dumps are not padded out to a full line
+					break;
+				} else {
+					line[pos++] = ' ';
+					line[pos++] = ' ';
+				}
+				line[pos++] = ' ';
+				if ((j & EXTRA_SPACE_MASK) == EXTRA_SPACE_MASK) {
+					line[pos++] = ' ';
+				}
+			}
+
+			// Put an extra space before the ascii character dump
+			line[pos++] = ' ';
+			for (int j = 0; j < lineLen; j++) {
+				line[pos++] = ASCII_TABLE[bytes[offset + i + j] & 0xff];
+				if ((j & EXTRA_SPACE_MASK) == EXTRA_SPACE_MASK) {
+					line[pos++] = ' ';
+				}
+			}
+			mOutput.println(line, pos);
+		}
+	}
+
+	private int append(int pos, String str) {
+		int len = Math.min(str.length(), 64);
+		str.getChars(0, len, mLine, pos);
+		return pos + len;
+	}
+
+	private int appendInt(int pos, int value) {
+		if (value >= 10) {
+			pos = appendInt(pos, value / 10);
+		}
+		mLine[pos++] = (char) ('0' + value % 10);
+		return pos;
+	}
+}
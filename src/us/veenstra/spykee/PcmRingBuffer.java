@@ -0,0 +1,133 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * A fixed-size ring buffer of 16-bit PCM samples.  The network reader
+ * thread writes samples into the buffer and the audio playback thread reads
+ * them out.  If the writer gets too far ahead of the reader then the oldest
+ * samples are overwritten, which keeps the audio from lagging further and
+ * further behind real time.
+ */
+class PcmRingBuffer {
+	private final short[] mSamples;
+
+	// The index of the oldest sample in the buffer.
+	private int mReadPos;
+
+	// The number of samples in the buffer that have not been read yet.
+	private int mAvailable;
+
+	// The number of samples that were overwritten before they were read.
+	private long mNumOverwritten;
+
+	private boolean mClosed;
+
+	/**
+	 * Creates a ring buffer that holds "capacity" samples.
+	 * @param capacity the number of 16-bit samples the buffer can hold
+	 */
+	PcmRingBuffer(int capacity) {
+		mSamples = new short[capacity];
+	}
+
+	int getCapacity() {
+		return mSamples.length;
+	}
+
+	/**
+	 * Appends little-endian 16-bit samples to the buffer, overwriting the
+	 * oldest samples if there is not enough room.
+	 *
+	 * @param bytes the array of little-endian 16-bit samples
+	 * @param offset the index of the first byte
+	 * @param len the number of bytes (an odd trailing byte is ignored)
+	 */
+	synchronized void write(byte[] bytes, int offset, int len) {
+		int capacity = mSamples.length;
+		int numSamples = len / 2;
+		if (numSamples > capacity) {
+			// Only the newest samples can fit
+			offset += (numSamples - capacity) * 2;
+			mNumOverwritten += numSamples - capacity;
+			numSamples = capacity;
+		}
+		int overflow = mAvailable + numSamples - capacity;
+		if (overflow > 0) {
+			mNumOverwritten += overflow;
+			mReadPos = (mReadPos + overflow) % capacity;
+			mAvailable -= overflow;
+		}
+		int writePos = (mReadPos + mAvailable) % capacity;
+		int end = offset + numSamples * 2;
+		for (int i = offset; i < end; i += 2) {
+			mSamples[writePos] = (short) ((bytes[i + 1] << 8) | (bytes[i] & 0xff));
+			writePos += 1;
+			if (writePos == capacity) {
+				writePos = 0;
+			}
+		}
+		mAvailable += numSamples;
+		notifyAll();
+	}
+
+	/**
+	 * Reads up to "max" samples, blocking until at least "min" samples are
+	 * available or the buffer is closed.
+	 *
+	 * @param dest the destination array
+	 * @param offset the index in "dest" for the first sample
+	 * @param min the minimum number of samples to wait for
+	 * @param max the maximum number of samples to read
+	 * @return the number of samples read, or -1 if the buffer was closed
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	synchronized int read(short[] dest, int offset, int min, int max)
+	        throws InterruptedException {
+		while (mAvailable < min && !mClosed) {
+			wait();
+		}
+		if (mClosed) {
+			return -1;
+		}
+		int num = Math.min(max, mAvailable);
+		int capacity = mSamples.length;
+		for (int i = 0; i < num; i++) {
+			dest[offset + i] = mSamples[mReadPos];
+			mReadPos += 1;
+			if (mReadPos == capacity) {
+				mReadPos = 0;
+			}
+		}
+		mAvailable -= num;
+		return num;
+	}
+
+	synchronized int available() {
+		return mAvailable;
+	}
+
+	synchronized long getNumOverwritten() {
+		return mNumOverwritten;
+	}
+
+	/**
+	 * Wakes up any thread blocked in read().  Subsequent reads return -1.
+	 */
+	synchronized void close() {
+		mClosed = true;
+		notifyAll();
+	}
+}
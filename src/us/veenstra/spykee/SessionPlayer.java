@@ -0,0 +1,506 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a session recorded by SessionRecorder, handing the packets to
+ * a listener at the pace they were recorded, faster, or one video frame at
+ * a time.  Spykee feeds them into the same video and audio pipelines as
+ * packets from the robot.
+ *
+ * The file is never read into the heap.  A window of it is memory-mapped
+ * and moved along as playback proceeds, and each payload is copied into a
+ * single packet buffer just before it is handed to the listener.  Seeking
+ * uses the index at the end of the file to jump to within a quarter second
+ * of the target and then skips forward to it.  If the file has no index
+ * (because recording was cut short), one is built by scanning the records
+ * when the file is opened.
+ *
+ * Audio is only played at normal speed.  At other speeds, and when
+ * stepping, audio packets are skipped.
+ */
+public class SessionPlayer {
+	private static final String TAG = "SessionPlayer";
+
+	/**
+	 * Receives the packets being played back, on the playback thread.
+	 */
+	public interface Listener extends PacketListener {
+		/**
+		 * Called when playback reaches the end of the recording.  Playback
+		 * can be carried on by seeking back.
+		 */
+		void onEndOfSession();
+	}
+
+	// The size of the part of the file that is mapped at any time.
+	private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+
+	private final File mFile;
+	private final RandomAccessFile mInput;
+	private final FileChannel mChannel;
+	private final long mStartTimeMillis;
+
+	// The offset just past the last complete record.
+	private final long mEnd;
+
+	// The seek index.
+	private final long[] mIndexTimes;
+	private final long[] mIndexOffsets;
+	private final int mNumIndexEntries;
+	private final boolean mHasIndex;
+	private final long mDurationMicros;
+
+	// The mapped part of the file and the offset it starts at.  These are
+	// only used by the playback thread, and by the constructor.
+	private MappedByteBuffer mWindow;
+	private long mWindowStart;
+	private long mWindowEnd;
+	private final byte[] mPacket = new byte[0xffff];
+
+	private Listener mListener;
+	private Thread mThread;
+
+	// The playback state, set from any thread.  Every change increments
+	// mControlGeneration, which makes the playback thread restart its timing.
+	private boolean mPaused;
+	private float mSpeed = 1;
+	private long mSeekMicros = -1;
+	private int mStepsPending;
+	private boolean mClosed;
+	private int mControlGeneration;
+	private IOException mError;
+
+	// The time of the last packet delivered.
+	private long mPositionMicros;
+
+	/**
+	 * Opens a recording and reads its index, or builds one if the file
+	 * has none.
+	 * @param file the recording
+	 * @throws IOException if the file can't be read or is not a recording
+	 */
+	public SessionPlayer(File file) throws IOException {
+		mFile = file;
+		mInput = new RandomAccessFile(file, "r");
+		mChannel = mInput.getChannel();
+		try {
+			long size = mChannel.size();
+			if (size < SessionRecorder.HEADER_SIZE) {
+				throw new IOException(file + ": not a Spykee recording");
+			}
+			map(0, SessionRecorder.HEADER_SIZE);
+			ByteBuffer window = mWindow;
+			if (window.getInt(0) != SessionRecorder.MAGIC) {
+				throw new IOException(file + ": not a Spykee recording");
+			}
+			if (window.getInt(4) != SessionRecorder.VERSION) {
+				throw new IOException(file + ": unsupported version " + window.getInt(4));
+			}
+			mStartTimeMillis = window.getLong(8);
+
+			IndexBuilder index = readIndex(size);
+			mHasIndex = index != null;
+			if (index == null) {
+				index = scan(size);
+			}
+			mEnd = index.mEnd;
+			mIndexTimes = index.mTimes;
+			mIndexOffsets = index.mOffsets;
+			mNumIndexEntries = index.mNumEntries;
+			mDurationMicros = index.mLastMicros;
+		} catch (IOException e) {
+			mInput.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Collects the entries of a seek index.
+	 */
+	private static class IndexBuilder {
+		long[] mTimes;
+		long[] mOffsets;
+		int mNumEntries;
+		long mEnd;
+		long mLastMicros;
+
+		IndexBuilder(int capacity) {
+			mTimes = new long[Math.max(capacity, 1)];
+			mOffsets = new long[mTimes.length];
+		}
+
+		void add(long micros, long offset) {
+			if (mNumEntries == mTimes.length) {
+				long[] times = new long[mNumEntries * 2];
+				long[] offsets = new long[mNumEntries * 2];
+				System.arraycopy(mTimes, 0, times, 0, mNumEntries);
+				System.arraycopy(mOffsets, 0, offsets, 0, mNumEntries);
+				mTimes = times;
+				mOffsets = offsets;
+			}
+			mTimes[mNumEntries] = micros;
+			mOffsets[mNumEntries] = offset;
+			mNumEntries += 1;
+		}
+	}
+
+	/**
+	 * Reads the index written when the recording was closed.
+	 * @return the index, or null if the file has no valid trailer
+	 */
+	private IndexBuilder readIndex(long size) throws IOException {
+		if (size < SessionRecorder.HEADER_SIZE + SessionRecorder.TRAILER_SIZE) {
+			return null;
+		}
+		long trailer = size - SessionRecorder.TRAILER_SIZE;
+		map(trailer, SessionRecorder.TRAILER_SIZE);
+		int pos = (int) (trailer - mWindowStart);
+		long indexOffset = mWindow.getLong(pos);
+		int numEntries = mWindow.getInt(pos + 8);
+		if (mWindow.getInt(pos + 12) != SessionRecorder.TRAILER_MAGIC
+				|| indexOffset < SessionRecorder.HEADER_SIZE || numEntries < 0
+				|| indexOffset + (long) numEntries * SessionRecorder.INDEX_ENTRY_SIZE != trailer) {
+			return null;
+		}
+		IndexBuilder index = new IndexBuilder(numEntries);
+		index.mEnd = indexOffset;
+		for (int i = 0; i < numEntries; i++) {
+			long offset = indexOffset + (long) i * SessionRecorder.INDEX_ENTRY_SIZE;
+			map(offset, SessionRecorder.INDEX_ENTRY_SIZE);
+			pos = (int) (offset - mWindowStart);
+			index.add(mWindow.getLong(pos), mWindow.getLong(pos + 8));
+		}
+
+		// The duration is the time of the last record, which is somewhere
+		// after the last index entry.
+		long offset = numEntries > 0 ? index.mOffsets[numEntries - 1] : SessionRecorder.HEADER_SIZE;
+		while (offset < index.mEnd) {
+			map(offset, SessionRecorder.RECORD_HEADER_SIZE);
+			pos = (int) (offset - mWindowStart);
+			index.mLastMicros = mWindow.getLong(pos);
+			offset += SessionRecorder.RECORD_HEADER_SIZE + (mWindow.getShort(pos + 9) & 0xffff);
+		}
+		return index;
+	}
+
+	/**
+	 * Builds an index by reading the header of every record.  A record that
+	 * was cut off by the end of the file is ignored.
+	 */
+	private IndexBuilder scan(long size) throws IOException {
+		IndexBuilder index = new IndexBuilder(256);
+		long offset = SessionRecorder.HEADER_SIZE;
+		long nextIndexMicros = 0;
+		while (offset + SessionRecorder.RECORD_HEADER_SIZE <= size) {
+			map(offset, SessionRecorder.RECORD_HEADER_SIZE);
+			int pos = (int) (offset - mWindowStart);
+			long micros = mWindow.getLong(pos);
+			long next = offset + SessionRecorder.RECORD_HEADER_SIZE
+					+ (mWindow.getShort(pos + 9) & 0xffff);
+			if (next > size) {
+				break;
+			}
+			if (micros >= nextIndexMicros) {
+				index.add(micros, offset);
+				nextIndexMicros = (micros / SessionRecorder.INDEX_INTERVAL_MICROS + 1)
+						* SessionRecorder.INDEX_INTERVAL_MICROS;
+			}
+			index.mLastMicros = micros;
+			offset = next;
+		}
+		index.mEnd = offset;
+		return index;
+	}
+
+	/**
+	 * Makes sure that "len" bytes starting at "offset" are in the mapped
+	 * window, moving the window if they aren't.
+	 */
+	private void map(long offset, int len) throws IOException {
+		if (mWindow != null && offset >= mWindowStart && offset + len <= mWindowEnd) {
+			return;
+		}
+		long size = Math.min(WINDOW_SIZE, mChannel.size() - offset);
+		mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		mWindowStart = offset;
+		mWindowEnd = offset + size;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/** Returns the wall clock time the recording started, in ms since the epoch. */
+	public long getStartTimeMillis() {
+		return mStartTimeMillis;
+	}
+
+	/** Returns the time of the last packet in the recording, in microseconds. */
+	public long getDurationMicros() {
+		return mDurationMicros;
+	}
+
+	/**
+	 * Returns false if the recording had no index and one had to be built
+	 * by scanning it.
+	 */
+	public boolean hasIndex() {
+		return mHasIndex;
+	}
+
+	/**
+	 * Starts playing from the beginning at normal speed.
+	 * @param listener the listener for the packets
+	 */
+	public void start(Listener listener) {
+		mListener = listener;
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					playLoop();
+				} catch (IOException e) {
+					setError(e);
+					mListener.onEndOfSession();
+				}
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Stops playback and closes the file.  This waits for the playback
+	 * thread to finish.
+	 */
+	public void close() {
+		synchronized (this) {
+			mClosed = true;
+			controlChanged();
+		}
+		if (mThread != null && mThread != Thread.currentThread()) {
+			try {
+				mThread.join();
+			} catch (InterruptedException e) {
+			}
+		}
+		try {
+			mInput.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public synchronized void pause() {
+		mPaused = true;
+		controlChanged();
+	}
+
+	public synchronized void resume() {
+		mPaused = false;
+		mStepsPending = 0;
+		controlChanged();
+	}
+
+	public synchronized boolean isPaused() {
+		return mPaused;
+	}
+
+	/**
+	 * Sets the playback speed.  1 is the speed the session was recorded
+	 * at; 2 is twice as fast.
+	 */
+	public synchronized void setSpeed(float speed) {
+		if (speed <= 0) {
+			throw new IllegalArgumentException("speed must be positive: " + speed);
+		}
+		mSpeed = speed;
+		controlChanged();
+	}
+
+	public synchronized float getSpeed() {
+		return mSpeed;
+	}
+
+	/**
+	 * Jumps to the given time.  Playback carries on from the first packet
+	 * at or after it, or stays paused.
+	 * @param micros the time in microseconds since the start of the recording
+	 */
+	public synchronized void seek(long micros) {
+		mSeekMicros = Math.max(0, micros);
+		mPositionMicros = mSeekMicros;
+		mStepsPending = 0;
+		controlChanged();
+	}
+
+	/**
+	 * Pauses playback, if it isn't already paused, and plays up to and
+	 * including the next video frame.
+	 */
+	public synchronized void step() {
+		mPaused = true;
+		mStepsPending += 1;
+		controlChanged();
+	}
+
+	/** Returns the time of the last packet played, in microseconds. */
+	public synchronized long getPositionMicros() {
+		return mPositionMicros;
+	}
+
+	private synchronized void setError(IOException error) {
+		mError = error;
+	}
+
+	/** Returns the error that stopped playback, or null. */
+	public synchronized IOException getError() {
+		return mError;
+	}
+
+	private void controlChanged() {
+		mControlGeneration += 1;
+		notifyAll();
+	}
+
+	/**
+	 * Finds the offset of the record to start reading from to reach the
+	 * given time: the last indexed record at or before it.
+	 */
+	private long findOffset(long micros) {
+		int lo = 0;
+		int hi = mNumIndexEntries - 1;
+		if (hi < 0 || mIndexTimes[0] > micros) {
+			return SessionRecorder.HEADER_SIZE;
+		}
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (mIndexTimes[mid] <= micros) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return mIndexOffsets[lo];
+	}
+
+	/**
+	 * Plays the records in order.  The time each record is due is measured
+	 * from an anchor: the time the first record after the last change of
+	 * speed, pause or position was played.  This runs on its own thread.
+	 */
+	private void playLoop() throws IOException {
+		long offset = SessionRecorder.HEADER_SIZE;
+		long skipUntilMicros = 0;
+		boolean atEnd = false;
+		boolean anchored = false;
+		long anchorNanos = 0;
+		long anchorMicros = 0;
+		int generation = -1;
+		while (true) {
+			float speed;
+			boolean stepping;
+			synchronized (this) {
+				while (!mClosed && mSeekMicros < 0 && mStepsPending == 0 && (mPaused || atEnd)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						mClosed = true;
+					}
+				}
+				if (mClosed) {
+					return;
+				}
+				if (mSeekMicros >= 0) {
+					offset = findOffset(mSeekMicros);
+					skipUntilMicros = mSeekMicros;
+					mSeekMicros = -1;
+					atEnd = false;
+				}
+				if (generation != mControlGeneration) {
+					generation = mControlGeneration;
+					anchored = false;
+				}
+				speed = mSpeed;
+				stepping = mStepsPending > 0;
+			}
+
+			if (offset >= mEnd) {
+				if (!atEnd) {
+					atEnd = true;
+					synchronized (this) {
+						mStepsPending = 0;
+					}
+					mListener.onEndOfSession();
+				}
+				continue;
+			}
+			map(offset, SessionRecorder.RECORD_HEADER_SIZE);
+			int pos = (int) (offset - mWindowStart);
+			long micros = mWindow.getLong(pos);
+			int cmd = mWindow.get(pos + 8) & 0xff;
+			int len = mWindow.getShort(pos + 9) & 0xffff;
+			if (micros < skipUntilMicros) {
+				offset += SessionRecorder.RECORD_HEADER_SIZE + len;
+				continue;
+			}
+
+			if (!stepping) {
+				long now = System.nanoTime();
+				if (!anchored) {
+					anchored = true;
+					anchorNanos = now;
+					anchorMicros = micros;
+				}
+				long due = anchorNanos + (long) ((micros - anchorMicros) * 1000 / speed);
+				if (due > now) {
+					synchronized (this) {
+						if (generation == mControlGeneration) {
+							long wait = due - now;
+							try {
+								wait(wait / 1000000, (int) (wait % 1000000));
+							} catch (InterruptedException e) {
+								mClosed = true;
+							}
+						}
+					}
+					// Check again whether this record is due, or whether
+					// the controls changed while we were waiting.
+					continue;
+				}
+			}
+
+			offset += SessionRecorder.RECORD_HEADER_SIZE + len;
+			if (cmd == SpykeeClient.SPYKEE_AUDIO && (stepping || speed != 1)) {
+				continue;
+			}
+			map(offset - len, len);
+			mWindow.position((int) (offset - len - mWindowStart));
+			mWindow.get(mPacket, 0, len);
+			synchronized (this) {
+				mPositionMicros = micros;
+				if (stepping && cmd == SpykeeClient.SPYKEE_VIDEO_FRAME && mStepsPending > 0) {
+					mStepsPending -= 1;
+				}
+			}
+			mListener.onPacket(cmd, mPacket, 0, len);
+		}
+	}
+}
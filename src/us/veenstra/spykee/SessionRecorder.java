@@ -0,0 +1,325 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records every packet received from Spykee into a single file, so that a
+ * whole session (video, audio and telemetry) can be played back later.
+ *
+ * The file is append-only.  It starts with a header:
+ * <pre>
+ *   int magic ("SPKS"), int version, long start time (ms since the epoch)
+ * </pre>
+ * followed by one record per packet:
+ * <pre>
+ *   long time (us since the start), byte packet type, short payload length,
+ *   payload
+ * </pre>
+ * When the recording is closed, a seek index is appended with one entry
+ * for the first record in every INDEX_INTERVAL_MICROS, followed by a
+ * trailer that points to it:
+ * <pre>
+ *   index:   { long time (us), long file offset of the record } ...
+ *   trailer: long index offset, int number of entries, int magic ("SPKI")
+ * </pre>
+ * A file without a trailer (because the app died while recording) can
+ * still be read from start to end.
+ *
+ * Packets are copied into a large buffer on the calling thread, which never
+ * waits for the disk.  A background thread writes each full buffer with a
+ * single FileChannel write while the other buffer is being filled.  If the
+ * disk falls so far behind that both buffers are full, packets are dropped
+ * and counted rather than stalling the network reader.
+ */
+public class SessionRecorder {
+	private static final String TAG = "SessionRecorder";
+
+	static final int MAGIC = 0x53504b53;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_HEADER_SIZE = 11;
+	static final int INDEX_ENTRY_SIZE = 16;
+	static final int TRAILER_MAGIC = 0x53504b49;
+	static final int TRAILER_SIZE = 16;
+
+	// The spacing of the entries in the seek index.
+	static final long INDEX_INTERVAL_MICROS = 250000;
+
+	// The size of each of the two write buffers.  This must hold at least
+	// one record of the largest packet.
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	// A partly filled buffer is written after this long, so that little is
+	// lost if the app dies.
+	private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+	private final File mFile;
+	private final RandomAccessFile mOutput;
+	private final FileChannel mChannel;
+	private final long mStartNanos;
+	private Thread mThread;
+
+	// Packets are added to mFilling.  mPending is a full buffer waiting to be
+	// written, and mSpare is the empty buffer, or null while it is in use.
+	private ByteBuffer mFilling = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private ByteBuffer mPending;
+	private ByteBuffer mSpare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	// The file offset that the next record will be written at.
+	private long mNextOffset = HEADER_SIZE;
+
+	// The seek index, built as records are added.
+	private long[] mIndexTimes = new long[256];
+	private long[] mIndexOffsets = new long[256];
+	private int mNumIndexEntries;
+	private long mNextIndexMicros;
+
+	private boolean mClosed;
+	private IOException mError;
+
+	private long mNumPackets;
+	private long mNumDropped;
+
+	/**
+	 * Creates the file and writes its header.  Call start() to start
+	 * recording.
+	 * @param file the file to record to; it is replaced if it exists
+	 */
+	public SessionRecorder(File file) throws IOException {
+		mFile = file;
+		mOutput = new RandomAccessFile(file, "rw");
+		mOutput.setLength(0);
+		mChannel = mOutput.getChannel();
+		mStartNanos = System.nanoTime();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(System.currentTimeMillis());
+		header.flip();
+		writeFully(header);
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public void start() {
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Adds a packet to the recording.  This never blocks on the disk.
+	 * @param cmd the packet type
+	 * @param data the array containing the payload
+	 * @param offset the index of the first byte of the payload
+	 * @param len the length of the payload
+	 * @param arrivalNanos the time the packet was received, from
+	 *     System.nanoTime()
+	 */
+	public synchronized void record(int cmd, byte[] data, int offset, int len,
+			long arrivalNanos) {
+		if (mClosed || mError != null) {
+			return;
+		}
+		int size = RECORD_HEADER_SIZE + len;
+		if (mFilling.remaining() < size) {
+			if (mSpare == null) {
+				// Both buffers are in use, so the disk can't keep up.
+				mNumDropped += 1;
+				return;
+			}
+			swapBuffers();
+		}
+		long micros = (arrivalNanos - mStartNanos) / 1000;
+		if (micros >= mNextIndexMicros) {
+			addIndexEntry(micros, mNextOffset);
+			mNextIndexMicros = (micros / INDEX_INTERVAL_MICROS + 1) * INDEX_INTERVAL_MICROS;
+		}
+		ByteBuffer buffer = mFilling;
+		buffer.putLong(micros);
+		buffer.put((byte) cmd);
+		buffer.putShort((short) len);
+		buffer.put(data, offset, len);
+		mNextOffset += size;
+		mNumPackets += 1;
+	}
+
+	/**
+	 * Hands the buffer being filled to the writer thread and starts filling
+	 * the spare one.
+	 */
+	private void swapBuffers() {
+		mPending = mFilling;
+		mFilling = mSpare;
+		mSpare = null;
+		notifyAll();
+	}
+
+	private void addIndexEntry(long micros, long offset) {
+		if (mNumIndexEntries == mIndexTimes.length) {
+			long[] times = new long[mNumIndexEntries * 2];
+			long[] offsets = new long[mNumIndexEntries * 2];
+			System.arraycopy(mIndexTimes, 0, times, 0, mNumIndexEntries);
+			System.arraycopy(mIndexOffsets, 0, offsets, 0, mNumIndexEntries);
+			mIndexTimes = times;
+			mIndexOffsets = offsets;
+		}
+		mIndexTimes[mNumIndexEntries] = micros;
+		mIndexOffsets[mNumIndexEntries] = offset;
+		mNumIndexEntries += 1;
+	}
+
+	/**
+	 * Writes the buffered packets, the seek index and the trailer, and
+	 * closes the file.
+	 * @throws IOException if writing the file failed at any point
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			notifyAll();
+		}
+		if (mThread != null) {
+			try {
+				mThread.join();
+			} catch (InterruptedException e) {
+			}
+		} else {
+			finish();
+		}
+		IOException error = getError();
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void writeLoop() {
+		while (true) {
+			ByteBuffer buffer;
+			synchronized (this) {
+				if (mPending == null && !mClosed) {
+					try {
+						wait(FLUSH_INTERVAL_MILLIS);
+					} catch (InterruptedException e) {
+						mClosed = true;
+					}
+					if (mPending == null && mSpare != null && mFilling.position() > 0) {
+						swapBuffers();
+					}
+				}
+				if (mPending == null && mClosed) {
+					break;
+				}
+				buffer = mPending;
+				mPending = null;
+			}
+			if (buffer == null) {
+				continue;
+			}
+			try {
+				buffer.flip();
+				writeFully(buffer);
+			} catch (IOException e) {
+				setError(e);
+			}
+			buffer.clear();
+			synchronized (this) {
+				mSpare = buffer;
+			}
+		}
+		finish();
+	}
+
+	/**
+	 * Writes what is left in the buffer being filled, then the index and the
+	 * trailer, and closes the file.
+	 */
+	private void finish() {
+		try {
+			ByteBuffer buffer;
+			ByteBuffer index;
+			synchronized (this) {
+				buffer = mFilling;
+				index = ByteBuffer.allocate(mNumIndexEntries * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+				for (int i = 0; i < mNumIndexEntries; i++) {
+					index.putLong(mIndexTimes[i]);
+					index.putLong(mIndexOffsets[i]);
+				}
+				index.putLong(mNextOffset);
+				index.putInt(mNumIndexEntries);
+				index.putInt(TRAILER_MAGIC);
+			}
+			if (getError() == null) {
+				buffer.flip();
+				writeFully(buffer);
+				index.flip();
+				writeFully(index);
+			}
+		} catch (IOException e) {
+			setError(e);
+		}
+		try {
+			mOutput.close();
+		} catch (IOException e) {
+			setError(e);
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			mChannel.write(buffer);
+		}
+	}
+
+	private synchronized void setError(IOException error) {
+		if (mError == null) {
+			mError = error;
+		}
+	}
+
+	/** Returns the error that stopped the recording, or null. */
+	public synchronized IOException getError() {
+		return mError;
+	}
+
+	/** Returns the number of packets recorded. */
+	public synchronized long getNumPackets() {
+		return mNumPackets;
+	}
+
+	/** Returns the number of packets dropped because the disk was too slow. */
+	public synchronized long getNumDropped() {
+		return mNumDropped;
+	}
+
+	/** Returns the size of the recording so far, not counting the index. */
+	public synchronized long getNumBytes() {
+		return mNextOffset;
+	}
+}
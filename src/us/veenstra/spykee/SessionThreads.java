@@ -0,0 +1,80 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that run each session's blocking loops: the network
+ * reader, the command writer, the motor driver and the connection
+ * supervisor.  By default these are ordinary threads.  A gateway that talks
+ * to thousands of robots can run them on virtual threads instead, where the
+ * JVM has them (Java 21 and later), and keep the same blocking code.
+ *
+ * Virtual threads are looked up by reflection so that this still compiles
+ * for Android and older JVMs.
+ */
+public class SessionThreads {
+	/** Creates an ordinary platform thread for each session loop. */
+	public static final ThreadFactory PLATFORM = new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable);
+		}
+	};
+
+	// The virtual thread factory, or null if this JVM has no virtual threads.
+	private static final ThreadFactory VIRTUAL = lookupVirtualFactory();
+
+	private static ThreadFactory lookupVirtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			// Call factory() through the public Thread.Builder interface; the
+			// builder's own class is not accessible.
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if this JVM can run sessions on virtual threads.
+	 */
+	public static boolean hasVirtualThreads() {
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * Returns a factory that creates virtual threads.
+	 * @throws UnsupportedOperationException if this JVM has no virtual threads
+	 */
+	public static ThreadFactory virtual() {
+		if (VIRTUAL == null) {
+			throw new UnsupportedOperationException("virtual threads need Java 21 or later");
+		}
+		return VIRTUAL;
+	}
+
+	/**
+	 * Creates, names and starts a thread from the factory.
+	 */
+	static Thread start(ThreadFactory factory, String name, Runnable runnable) {
+		Thread thread = factory.newThread(runnable);
+		thread.setName(name);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,1332 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The protocol side of talking to a Spykee robot: logging in, keeping the
+ * connection alive, sending commands and splitting the packets it sends
+ * back into video, audio and telemetry.  This uses nothing from Android,
+ * so it can run on a plain JVM, for example in a gateway or a benchmark.
+ *
+ * The streams are handed to the sinks set with setVideoSink(),
+ * setAudioSink() and setTelemetrySink(), on the thread that read them.
+ * Connection events go to the Listener.  Spykee adds the Android parts on
+ * top of this: decoding the video, and passing events to the UI thread.
+ */
+public class SpykeeClient {
+	private static final String TAG = "SpykeeClient";
+
+	/**
+	 * Receives connection events.  The methods are called from background
+	 * threads.
+	 */
+	public interface Listener {
+		/** Called when a connectAsync() attempt succeeds. */
+		void onConnected(ConnectAttempt attempt);
+
+		/** Called when a connectAsync() attempt fails. */
+		void onConnectFailed(ConnectAttempt attempt);
+
+		/** Called when the link is lost, before reconnecting starts. */
+		void onLinkLost(String reason);
+
+		/** Called when the link has been restored after being lost. */
+		void onReconnected(long millis, int attempts);
+
+		/** Called when playback of a recording reaches the end. */
+		void onPlaybackEnded(SessionPlayer player);
+
+		/**
+		 * Called when the file of a stopped recording has been finished,
+		 * or has failed; see SessionRecorder.getError().
+		 */
+		void onRecordingStopped(SessionRecorder recorder);
+	}
+
+	/**
+	 * Where log messages go.  Spykee sends them to the Android log.
+	 */
+	public interface Logger {
+		void info(String message);
+		void warn(String message);
+	}
+
+	/**
+	 * Sees every packet from the robot before it is demultiplexed, for
+	 * passing the packets on elsewhere (see SpykeeGateway).
+	 */
+	public interface PacketTap {
+		/**
+		 * Called on the network reader thread.  The payload is only valid
+		 * until this returns, and this must not block.
+		 */
+		void onPacket(int cmd, byte[] data, int offset, int len, long arrivalNanos);
+	}
+
+	/**
+	 * The default logger, which writes to System.err.
+	 */
+	public static final Logger STDERR_LOGGER = new Logger() {
+		public void info(String message) {
+			System.err.println(TAG + ": " + message);
+		}
+
+		public void warn(String message) {
+			System.err.println(TAG + ": warning: " + message);
+		}
+	};
+
+	private volatile Logger mLogger = STDERR_LOGGER;
+	private volatile Listener mListener;
+	private Socket mSocket;
+	private DataInputStream mInput;
+	private DataOutputStream mOutput;
+	public enum DockState { DOCKED, UNDOCKED, DOCKING };
+	private DockState mDockState;
+
+	public static final int SPYKEE_AUDIO = 1;
+	public static final int SPYKEE_VIDEO_FRAME = 2;
+	public static final int SPYKEE_BATTERY_LEVEL = 3;
+	public static final int SPYKEE_DOCK = 16;
+	public static final int SPYKEE_DOCK_UNDOCKED = 1;
+	public static final int SPYKEE_DOCK_DOCKED = 2;
+
+	private static final int DEFAULT_VOLUME = 50;  // volume is between [0, 100]
+
+	// The sound effects that Spykee can play.
+	private static final int SOUND_ALARM = 0;
+	private static final int SOUND_BOMB = 1;
+	private static final int SOUND_LAZER = 2;
+	private static final int SOUND_AH_AH_AH = 3;
+	private static final int SOUND_ENGINE = 4;
+	private static final int SOUND_ROBOT = 5;
+	private static final int SOUND_CUSTOM1 = 6;
+	private static final int SOUND_CUSTOM2 = 7;
+
+	private int mForwardSpeed = 100;
+	private int mBackwardSpeed = 50;
+	private int mTurningSpeed = 50;
+	
+	// Dumps packets to the log for debugging.  By default it traces the
+	// occasional control packets but not the audio and video streams.
+	private PacketTrace mTrace;
+
+	// The default number of motor commands per second, and how long the
+	// motors keep running after the last drive() call.
+	private static final int DEFAULT_DRIVE_RATE_HZ = 20;
+	private static final int DEFAULT_DEADMAN_MILLIS = 300;
+
+	private int mDriveRateHz = DEFAULT_DRIVE_RATE_HZ;
+	private int mDeadmanMillis = DEFAULT_DEADMAN_MILLIS;
+
+	// How often unchanged speeds are sent again while the wheels are
+	// turning, or 0 for never.
+	private int mDriveRefreshMillis;
+
+	// Streams the motor speeds to the robot while we are connected.
+	private volatile MotorDriver mMotorDriver;
+
+	// Records the packets received, or null when not recording.
+	private volatile SessionRecorder mRecorder;
+
+	// Sees every packet received, or null.
+	private volatile PacketTap mPacketTap;
+
+	// The robot's login response, header included, or null before the
+	// first login.
+	private volatile byte[] mLoginResponse;
+
+	// Plays back a recorded session, or null when not playing.
+	private volatile SessionPlayer mPlayer;
+
+	// Splits the packets into the video, audio and telemetry streams.
+	private final StreamDemux mDemux = new StreamDemux();
+
+	// Measures the latency of each stage from the socket to the screen and
+	// the speaker.
+	private final LatencyTracker mLatencyTracker = new LatencyTracker();
+
+	// The engine that services the non-blocking transport, or null to use a
+	// blocking socket with a dedicated reader thread.
+	private NioEngine mEngine;
+	private volatile NioConnection mConnection;
+
+	// The address and login of the robot, kept for reconnecting.
+	private String mHost;
+	private int mPort;
+	private String mLogin;
+	private String mPassword;
+
+	// Reconnects automatically when the link is lost, or null when not
+	// connected.
+	private volatile ConnectionSupervisor mSupervisor;
+	private int mKeepaliveMillis = ConnectionSupervisor.DEFAULT_KEEPALIVE_MILLIS;
+
+	// How long the TCP handshake and the login may each take.
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	private int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+	// The connect or reconnect attempt in progress, or null, so that
+	// close() can cancel it.
+	private final AtomicReference<ConnectAttempt> mConnectAttempt =
+			new AtomicReference<ConnectAttempt>();
+
+	// While waiting for a connect in progress to give up, close() cancels
+	// the current attempt again this often, in case a new one started.
+	private static final long CANCEL_RETRY_MILLIS = 50;
+
+	// Connecting, reconnecting and disconnecting are serialized by this
+	// lock, so that two attempts can't interleave their sessions and
+	// supervisors.  The owner is the attempt that opened the current
+	// session, or null when disconnected.
+	private final ReentrantLock mConnectLock = new ReentrantLock();
+	private ConnectAttempt mSessionOwner;
+
+	// Opening and closing a session is serialized by this lock.  The
+	// generation is incremented whenever a session is opened or closed, so
+	// that failures reported by the reader of an old session are ignored.
+	// This is a ReentrantLock rather than a monitor because it is held while
+	// connecting, which would pin the carrier of a virtual thread.
+	private final ReentrantLock mSessionLock = new ReentrantLock();
+	private volatile int mSessionGeneration;
+
+	// The streaming state requested by the user, which is restored after
+	// reconnecting.  The volume is -1 until it is set.
+	private volatile boolean mVideoOn;
+	private volatile boolean mAudioOn;
+	private volatile int mVolume = -1;
+
+	// The maximum number of commands waiting to be sent.
+	private static final int COMMAND_QUEUE_SIZE = 32;
+
+	// Commands are queued here and sent by a writer thread (or by the
+	// NioEngine), so that callers on the UI thread never block on the
+	// network.
+	private volatile CommandQueue mCommandQueue;
+	private volatile CommandWriter mWriter;
+
+	// Measures command latency and the robot's response to motor commands,
+	// or null when not measuring.
+	private volatile CommandProbe mCommandProbe;
+
+	// Creates the threads for each session's reader, writer, motor driver
+	// and supervisor, and for connectAsync().
+	private volatile ThreadFactory mThreadFactory = SessionThreads.PLATFORM;
+
+	public SpykeeClient() {
+		this(null);
+	}
+
+	/**
+	 * Creates a client that uses the non-blocking transport.  The same
+	 * engine can be shared by several clients.
+	 * @param engine the I/O engine, or null to use a blocking socket
+	 */
+	public SpykeeClient(NioEngine engine) {
+		mEngine = engine;
+		mTrace = new PacketTrace(new PacketTrace.Output() {
+			public void println(char[] chars, int len) {
+				mLogger.info(new String(chars, 0, len));
+			}
+		});
+		mTrace.setCommand(SPYKEE_AUDIO, false);
+		mTrace.setCommand(SPYKEE_VIDEO_FRAME, false);
+		mTrace.setEnabled(true);
+	}
+
+	/**
+	 * Sets the sink that receives the audio stream.  The sink is called from
+	 * the network reader thread.
+	 * @param sink the audio sink, or null to ignore audio packets
+	 */
+	public void setAudioSink(AudioSink sink) {
+		mDemux.setAudioSink(sink);
+	}
+
+	/**
+	 * Sets the sink that receives the video frames.  The sink is called
+	 * from the network reader thread.
+	 * @param sink the video sink, or null to ignore video packets
+	 */
+	public void setVideoSink(VideoSink sink) {
+		mDemux.setVideoSink(sink);
+	}
+
+	/**
+	 * Sets the sink that receives the battery level and dock state.  The
+	 * sink is called from the network reader thread.
+	 * @param sink the telemetry sink, or null to ignore telemetry
+	 */
+	public void setTelemetrySink(TelemetrySink sink) {
+		mDemux.setTelemetrySink(sink);
+	}
+
+	/**
+	 * Returns the demultiplexer, which counts the packets in each stream.
+	 */
+	public StreamDemux getDemux() {
+		return mDemux;
+	}
+
+	/**
+	 * Sets the listener for connection events.
+	 * @param listener the listener, or null
+	 */
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Sets where log messages go.
+	 */
+	public void setLogger(Logger logger) {
+		mLogger = logger;
+	}
+
+	/**
+	 * Sets the tap that sees every packet from the robot.
+	 * @param tap the tap, or null
+	 */
+	public void setPacketTap(PacketTap tap) {
+		mPacketTap = tap;
+	}
+
+	/**
+	 * Sets the factory for the threads that run each session: the network
+	 * reader, the command writer, the motor driver and the connection
+	 * supervisor.  A gateway can pass SessionThreads.virtual() to run
+	 * thousands of sessions on virtual threads with the blocking transport.
+	 * This takes effect on the next connect().
+	 * @param factory the thread factory, or null for ordinary threads
+	 */
+	public void setThreadFactory(ThreadFactory factory) {
+		mThreadFactory = factory != null ? factory : SessionThreads.PLATFORM;
+	}
+
+	/**
+	 * Connects and logs in to the robot.  This blocks until the login has
+	 * completed, so it must not be called on the UI thread; use
+	 * connectAsync() there.  If the link is lost later on, the connection
+	 * is restored automatically in the background.
+	 */
+	public void connect(String host, int port, String login, String password)
+	        throws UnknownHostException, IOException {
+		ConnectAttempt attempt = new ConnectAttempt(host, port);
+		ConnectAttempt previous = mConnectAttempt.getAndSet(attempt);
+		if (previous != null) {
+			previous.cancel();
+		}
+		IOException error = null;
+		try {
+			connect(attempt, login, password);
+		} catch (IOException e) {
+			error = e;
+			throw e;
+		} finally {
+			attempt.finish(error);
+			mConnectAttempt.compareAndSet(attempt, null);
+		}
+	}
+
+	private void connect(ConnectAttempt attempt, String login, String password)
+	        throws IOException {
+		mConnectLock.lock();
+		try {
+			// An attempt cancelled while waiting for the lock must not
+			// close the session of the attempt that replaced it.
+			attempt.checkCancelled();
+			stopPlayback();
+			disconnect();
+			mHost = attempt.getHost();
+			mPort = attempt.getPort();
+			mLogin = login;
+			mPassword = password;
+			openSession(attempt);
+			mSessionOwner = attempt;
+			mSupervisor = new ConnectionSupervisor(new SessionConnection(attempt),
+					new SupervisorListener(), mKeepaliveMillis, mThreadFactory);
+			mSupervisor.start();
+		} finally {
+			mConnectLock.unlock();
+		}
+	}
+
+	/**
+	 * Connects and logs in to the robot on a background thread.  When the
+	 * attempt finishes, the listener's onConnected() or onConnectFailed()
+	 * is called, unless the attempt was cancelled.  Any earlier attempt
+	 * that is still in progress is cancelled.
+	 *
+	 * @return the attempt, which can be used to cancel it
+	 */
+	public ConnectAttempt connectAsync(String host, int port, final String login,
+			final String password) {
+		final ConnectAttempt attempt = new ConnectAttempt(host, port);
+		ConnectAttempt previous = mConnectAttempt.getAndSet(attempt);
+		if (previous != null) {
+			previous.cancel();
+		}
+		SessionThreads.start(mThreadFactory, "SpykeeConnect", new Runnable() {
+			public void run() {
+				IOException error = null;
+				try {
+					connect(attempt, login, password);
+				} catch (IOException e) {
+					error = e;
+				}
+				mConnectAttempt.compareAndSet(attempt, null);
+				if (attempt.isCancelled()) {
+					if (error == null) {
+						disconnect(attempt);
+					}
+					attempt.finish(error);
+					return;
+				}
+				attempt.finish(error);
+				mLogger.info((error == null ? "connected: " : "connect failed: ") + attempt);
+				Listener listener = mListener;
+				if (listener == null) {
+					return;
+				} else if (error == null) {
+					listener.onConnected(attempt);
+				} else {
+					listener.onConnectFailed(attempt);
+				}
+			}
+		});
+		return attempt;
+	}
+
+	/**
+	 * Sets how long the TCP handshake and the login may each take before
+	 * connecting fails.
+	 */
+	public void setConnectTimeout(int millis) {
+		mConnectTimeoutMillis = millis;
+	}
+
+	/**
+	 * Sets how long the link may be silent before it is considered lost
+	 * and restored.  This takes effect on the next connect().
+	 */
+	public void setKeepaliveTimeout(int millis) {
+		mKeepaliveMillis = millis;
+	}
+
+	/**
+	 * Disconnects from the robot, cancelling any connect or reconnect
+	 * attempt in progress.  Cancelling closes the attempt's socket, so this
+	 * does not wait for a connect or login to time out.
+	 */
+	public void close() {
+		lockCancellingAttempts();
+		try {
+			disconnect();
+		} finally {
+			mConnectLock.unlock();
+		}
+		stopRecording();
+		stopPlayback();
+	}
+
+	/**
+	 * Takes the connect lock, cancelling whichever attempt holds it so that
+	 * it gives up promptly instead of running until it times out.
+	 */
+	private void lockCancellingAttempts() {
+		while (true) {
+			ConnectAttempt attempt = mConnectAttempt.get();
+			if (attempt != null) {
+				attempt.cancel();
+			}
+			try {
+				if (mConnectLock.tryLock(CANCEL_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				mConnectLock.lock();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts recording every packet received from the robot into a file.
+	 * The recording carries on across reconnects until stopRecording() or
+	 * close() is called.
+	 * @param file the file to record to
+	 * @throws IOException if the file could not be created
+	 */
+	public void startRecording(File file) throws IOException {
+		stopRecording();
+		SessionRecorder recorder = new SessionRecorder(file);
+		recorder.start();
+		mRecorder = recorder;
+		mLogger.info("recording to " + file);
+	}
+
+	/**
+	 * Stops recording.  No packets are recorded after this returns, but
+	 * the buffered packets and the index are written to the file on a
+	 * background thread, since that can take a while on an SD card.  When
+	 * the file is finished, the listener's onRecordingStopped() is called.
+	 */
+	public void stopRecording() {
+		final SessionRecorder recorder = mRecorder;
+		if (recorder == null) {
+			return;
+		}
+		mRecorder = null;
+		SessionThreads.start(mThreadFactory, "SpykeeRecordingClose", new Runnable() {
+			public void run() {
+				finishRecording(recorder);
+			}
+		});
+	}
+
+	private void finishRecording(SessionRecorder recorder) {
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			mLogger.warn("recording to " + recorder.getFile() + " failed: " + e);
+		}
+		mLogger.info("recorded " + recorder.getNumPackets() + " packets, "
+				+ recorder.getNumBytes() + " bytes to " + recorder.getFile()
+				+ ", dropped " + recorder.getNumDropped());
+		Listener listener = mListener;
+		if (listener != null) {
+			listener.onRecordingStopped(recorder);
+		}
+	}
+
+	public boolean isRecording() {
+		return mRecorder != null;
+	}
+
+	public boolean isPlaying() {
+		return mPlayer != null;
+	}
+
+	/**
+	 * Disconnects from the robot and plays back a recorded session.  The
+	 * packets go to the same sinks as packets from the robot.  Use the
+	 * returned player to pause, seek, step and change the speed.  When
+	 * playback reaches the end, the listener's onPlaybackEnded() is called.
+	 *
+	 * @param file a file written by startRecording()
+	 * @return the player, which has already started playing
+	 * @throws IOException if the file can't be read
+	 */
+	public SessionPlayer play(File file) throws IOException {
+		SessionPlayer player = new SessionPlayer(file);
+		play(player);
+		return player;
+	}
+
+	/**
+	 * Like play(File), but for a player that the caller has already
+	 * opened.  Opening a recording without an index scans the whole file,
+	 * so the UI thread opens the player elsewhere and then calls this.
+	 *
+	 * @param player a player that hasn't been started
+	 */
+	public void play(final SessionPlayer player) {
+		close();
+		mLogger.info("playing " + player.getFile() + ": "
+				+ player.getDurationMicros() / 1000 + " ms"
+				+ (player.hasIndex() ? "" : ", rebuilt index"));
+		mPlayer = player;
+		startStreams();
+		player.start(new SessionPlayer.Listener() {
+			public void onPacket(int cmd, byte[] data, int offset, int len) {
+				handlePacket(cmd, data, offset, len, System.nanoTime());
+			}
+
+			public void onEndOfSession() {
+				Listener listener = mListener;
+				if (listener != null) {
+					listener.onPlaybackEnded(player);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops playing back a recording, if one is playing.
+	 */
+	public void stopPlayback() {
+		SessionPlayer player = mPlayer;
+		if (player == null) {
+			return;
+		}
+		mPlayer = null;
+		player.close();
+		stopStreams();
+		IOException error = player.getError();
+		if (error != null) {
+			mLogger.warn("playing " + player.getFile() + " failed: " + error);
+		}
+	}
+
+	private void disconnect() {
+		mConnectLock.lock();
+		try {
+			mSessionOwner = null;
+			if (mSupervisor != null) {
+				mSupervisor.stop();
+				mSupervisor = null;
+			}
+			closeSession();
+			stopStreams();
+		} finally {
+			mConnectLock.unlock();
+		}
+		mLatencyTracker.snapshot();
+		String latencies = mLatencyTracker.sessionReport();
+		if (latencies.length() > 0) {
+			mLogger.info("session latencies:\n" + latencies);
+		}
+	}
+
+	/**
+	 * Disconnects only if the current session was opened by the given
+	 * attempt, for an attempt that was cancelled after it connected.
+	 */
+	private void disconnect(ConnectAttempt attempt) {
+		mConnectLock.lock();
+		try {
+			if (mSessionOwner == attempt) {
+				disconnect();
+			}
+		} finally {
+			mConnectLock.unlock();
+		}
+	}
+
+	/**
+	 * Opens the socket, logs in and starts the threads that send commands
+	 * and receive packets.  The time taken by each phase is recorded in the
+	 * attempt.
+	 */
+	private void openSession(ConnectAttempt attempt) throws UnknownHostException, IOException {
+		mSessionLock.lock();
+		try {
+			mSessionGeneration += 1;
+			mLogger.info("connecting to " + mHost + ":" + mPort);
+			long start = System.nanoTime();
+			InetAddress address = InetAddress.getByName(mHost);
+			long resolved = System.nanoTime();
+			attempt.checkCancelled();
+			Socket socket;
+			if (mEngine == null) {
+				socket = new Socket();
+			} else {
+				// Log in while the channel is still in blocking mode, then hand
+				// it over to the engine.
+				socket = SocketChannel.open().socket();
+			}
+			attempt.setSocket(socket);
+			long connected;
+			try {
+				socket.connect(new InetSocketAddress(address, mPort), mConnectTimeoutMillis);
+				connected = System.nanoTime();
+				socket.setSoTimeout(mConnectTimeoutMillis);
+				mSocket = socket;
+				mOutput = new DataOutputStream(socket.getOutputStream());
+				mInput = new DataInputStream(socket.getInputStream());
+				sendLogin(mLogin, mPassword);
+				readLoginResponse();
+				socket.setSoTimeout(0);
+			} catch (IOException e) {
+				socket.close();
+				mSocket = null;
+				mOutput = null;
+				mInput = null;
+				attempt.checkCancelled();
+				throw e;
+			}
+			attempt.setTiming(resolved - start, connected - resolved,
+					System.nanoTime() - connected);
+			CommandQueue queue = new CommandQueue(COMMAND_QUEUE_SIZE);
+			CommandProbe probe = mCommandProbe;
+			if (probe != null) {
+				probe.setSendBufferSize(mSocket.getSendBufferSize());
+				queue.setProbe(probe);
+			}
+			mCommandQueue = queue;
+			mMotorDriver = new MotorDriver(queue, mDriveRateHz, mDeadmanMillis,
+					mDriveRefreshMillis, mThreadFactory);
+			mMotorDriver.start();
+			startStreams();
+			ConnectionListener listener = new ConnectionListener(mSessionGeneration);
+			if (mEngine == null) {
+				// The writer uses the socket's stream directly, since
+				// DataOutputStream.write() is synchronized.
+				mWriter = new CommandWriter(queue, socket.getOutputStream(), mThreadFactory);
+				mWriter.start();
+				startNetworkReaderThread(listener);
+			} else {
+				mConnection = new NioConnection(mEngine, mSocket.getChannel(), queue, listener);
+			}
+		} finally {
+			mSessionLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the motors and closes the socket.  The streams are not stopped,
+	 * so that a reconnected session can carry on using them.
+	 */
+	private void closeSession() {
+		mSessionLock.lock();
+		try {
+			mSessionGeneration += 1;
+			if (mMotorDriver != null) {
+				mMotorDriver.stop();
+				mMotorDriver = null;
+			}
+			if (mCommandQueue != null) {
+				mCommandQueue.close();
+			}
+			if (mConnection != null) {
+				mConnection.close();
+				mConnection = null;
+				return;
+			}
+			try {
+				if (mOutput != null) {
+					mOutput.close();
+					mInput.close();
+					mSocket.close();
+				}
+			} catch (IOException e) {
+			}
+			mOutput = null;
+			mInput = null;
+			mWriter = null;
+		} finally {
+			mSessionLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the commands that bring a new session back to the state the
+	 * user had set up in the old one.
+	 * @param dockState the dock state before the link was lost
+	 */
+	private void restoreState(DockState dockState) {
+		if (mVideoOn) {
+			startVideo();
+		}
+		if (mAudioOn) {
+			startAudio();
+		}
+		if (mVolume >= 0) {
+			setVolume(mVolume);
+		}
+		if (dockState == DockState.DOCKING && mDockState != DockState.DOCKED) {
+			dock();
+		}
+		TelemetrySink telemetry = mDemux.getTelemetrySink();
+		if (telemetry != null) {
+			telemetry.onDockState(mDockState == DockState.DOCKED
+					? SPYKEE_DOCK_DOCKED : SPYKEE_DOCK_UNDOCKED);
+		}
+	}
+
+	/**
+	 * Called when the reader of a session stops.  Failures of sessions that
+	 * have already been closed are ignored.
+	 */
+	private void sessionFailed(int generation, String reason) {
+		ConnectionSupervisor supervisor = mSupervisor;
+		if (generation == mSessionGeneration && supervisor != null) {
+			supervisor.linkLost(reason);
+		}
+	}
+
+	/**
+	 * Closes and reopens the session for the ConnectionSupervisor.  Once
+	 * the attempt that started the supervisor no longer owns the session,
+	 * reconnecting fails, so that a supervisor that was stopped while
+	 * reconnecting can't open a session of its own.
+	 */
+	private class SessionConnection implements ConnectionSupervisor.Connection {
+		private final ConnectAttempt mOwner;
+
+		SessionConnection(ConnectAttempt owner) {
+			mOwner = owner;
+		}
+
+		public void disconnect() {
+			closeSession();
+		}
+
+		public void reconnect() throws IOException {
+			// The attempt is published before taking the lock, so that
+			// close() can cancel it.  A connect started by the user takes
+			// precedence, and replaces this session anyway.
+			ConnectAttempt attempt = new ConnectAttempt(mHost, mPort);
+			if (!mConnectAttempt.compareAndSet(null, attempt)) {
+				throw new InterruptedIOException("connect in progress");
+			}
+			mConnectLock.lock();
+			try {
+				if (mSessionOwner != mOwner) {
+					throw new InterruptedIOException("disconnected");
+				}
+				DockState dockState = mDockState;
+				openSession(attempt);
+				attempt.finish(null);
+				mLogger.info("reconnected: " + attempt);
+				restoreState(dockState);
+			} finally {
+				mConnectLock.unlock();
+				mConnectAttempt.compareAndSet(attempt, null);
+			}
+		}
+	}
+
+	/**
+	 * Passes the ConnectionSupervisor's reports on to the listener.
+	 */
+	private class SupervisorListener implements ConnectionSupervisor.Listener {
+		public void onLinkLost(String reason) {
+			mLogger.info("link lost: " + reason);
+			Listener listener = mListener;
+			if (listener != null) {
+				listener.onLinkLost(reason);
+			}
+		}
+
+		public void onReconnected(long millis, int attempts) {
+			mLogger.info("reconnected in " + millis + "ms after " + attempts + " attempts");
+			Listener listener = mListener;
+			if (listener != null) {
+				listener.onReconnected(millis, attempts);
+			}
+		}
+	}
+
+	private void sendLogin(String login, String password) throws IOException {
+		byte[] bytes = CommandEncoder.login(login, password);
+		mTrace.dump("send", bytes, 0, bytes.length);
+
+		// The login is written directly because it has to be sent before
+		// the command queue is set up.
+		mOutput.write(bytes);
+	}
+
+	private void readLoginResponse() throws IOException {
+		byte[] bytes = new byte[2048];
+		int num = readBytes(bytes, 0, 5);
+		mTrace.dump("recv", bytes, 0, num);
+
+		// The fifth byte is the number of remaining bytes to read
+		int len = bytes[4];
+		byte[] response = new byte[5 + Math.max(0, len)];
+		System.arraycopy(bytes, 0, response, 0, 5);
+		num = readBytes(bytes, 0, len);
+		mTrace.dump("recv", bytes, 0, num);
+		System.arraycopy(bytes, 0, response, 5, Math.max(0, num));
+		mLoginResponse = response;
+		if (len < 8) {
+			return;
+		}
+
+		int pos = 1;
+		int nameLen = bytes[pos++];
+		String name1 = new String(bytes, pos, nameLen, "ISO-8859-1");
+		pos += nameLen;
+		nameLen = bytes[pos++];
+		String name2 = new String(bytes, pos, nameLen, "ISO-8859-1");
+		pos += nameLen;
+		nameLen = bytes[pos++];
+		String name3 = new String(bytes, pos, nameLen, "ISO-8859-1");
+		pos += nameLen;
+		nameLen = bytes[pos++];
+		String version = new String(bytes, pos, nameLen, "ISO-8859-1");
+		pos += nameLen;
+		if (bytes[pos] == 0) {
+			mDockState = DockState.DOCKED;
+		} else {
+			mDockState = DockState.UNDOCKED;
+		}
+		mLogger.info(name1 + " " + name2 + " " + name3 + " " + version + " docked: " + mDockState);
+	}
+
+	/**
+	 * Sets how motor commands are streamed to the robot.  This takes effect
+	 * on the next connect().
+	 *
+	 * @param rateHz the maximum number of motor commands sent per second
+	 * @param deadmanMillis the motors are stopped if drive() is not called
+	 *     again within this many milliseconds
+	 */
+	public void setDriveRate(int rateHz, int deadmanMillis) {
+		mDriveRateHz = rateHz;
+		mDeadmanMillis = deadmanMillis;
+	}
+
+	/**
+	 * Makes the speeds be sent again every refreshMillis while the wheels
+	 * are turning, even if they haven't changed.  By default they are sent
+	 * only when they change.  This takes effect on the next connect().
+	 *
+	 * @param refreshMillis how often to repeat the speeds, or 0 for never
+	 */
+	public void setDriveRefresh(int refreshMillis) {
+		mDriveRefreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Sets the speed of each wheel.  Speeds are between -127 (full speed
+	 * backward) and 127 (full speed forward).  The speeds are sent to the
+	 * robot at the drive rate, and only when they change (see
+	 * setDriveRefresh()).  The robot keeps moving only as long as drive()
+	 * keeps being called.
+	 *
+	 * @param left the speed of the left wheel
+	 * @param right the speed of the right wheel
+	 */
+	public void drive(int left, int right) {
+		if (mMotorDriver != null) {
+			mMotorDriver.drive(left, right);
+		}
+	}
+
+	public void moveForward() {
+		drive(mForwardSpeed, mForwardSpeed);
+	}
+
+	public void moveBackward() {
+		drive(-mBackwardSpeed, -mBackwardSpeed);
+	}
+
+	public void moveLeft() {
+		drive(-mTurningSpeed, mTurningSpeed);
+	}
+
+	public void moveRight() {
+		drive(mTurningSpeed, -mTurningSpeed);
+	}
+
+	public void stopMotor() {
+		drive(0, 0);
+	}
+
+	public void activate() {
+		if (mDockState == DockState.DOCKED) {
+			undock();
+		}
+		startVideo();
+		startAudio();
+		setVolume(DEFAULT_VOLUME);
+	}
+
+	public DockState getDockState() {
+		return mDockState;
+	}
+
+	/**
+	 * Returns the number of commands waiting to be sent.
+	 */
+	public int getCommandQueueDepth() {
+		return mCommandQueue == null ? 0 : mCommandQueue.getDepth();
+	}
+
+	/**
+	 * Returns the largest number of commands that were waiting to be sent.
+	 */
+	public int getMaxCommandQueueDepth() {
+		return mCommandQueue == null ? 0 : mCommandQueue.getMaxDepth();
+	}
+
+	/**
+	 * Returns the number of motor commands that were replaced by a newer
+	 * motor command before they could be sent.
+	 */
+	public int getNumCoalescedCommands() {
+		return mCommandQueue == null ? 0 : mCommandQueue.getNumCoalesced();
+	}
+
+	/**
+	 * Returns the number of commands dropped because the queue was full.
+	 */
+	public int getNumDroppedCommands() {
+		return mCommandQueue == null ? 0 : mCommandQueue.getNumDropped();
+	}
+
+	/**
+	 * Returns the average time in microseconds from queueing a command to
+	 * finishing the write that sent it.
+	 */
+	public long getAverageSendLatencyMicros() {
+		return mCommandQueue == null ? 0 : mCommandQueue.getAverageLatencyMicros();
+	}
+
+	/**
+	 * Returns the largest send latency seen, in microseconds.
+	 */
+	public long getMaxSendLatencyMicros() {
+		return mCommandQueue == null ? 0 : mCommandQueue.getMaxLatencyMicros();
+	}
+
+	/**
+	 * Returns the packet trace, which can be used to turn packet dumps on
+	 * or off, filter them by command and sample them.
+	 */
+	public PacketTrace getPacketTrace() {
+		return mTrace;
+	}
+
+	/**
+	 * Returns the latency tracker.  The audio player and the UI record
+	 * their stages into it, and snapshot() reports the latencies.
+	 */
+	public LatencyTracker getLatencyTracker() {
+		return mLatencyTracker;
+	}
+
+	/**
+	 * Turns on the command measurement mode.  The probe records how long
+	 * commands take to be written and how long the robot takes to react to
+	 * motor commands.  This takes effect on the next connect().
+	 * @param probe the probe, or null to stop measuring
+	 */
+	public void setCommandProbe(CommandProbe probe) {
+		mCommandProbe = probe;
+	}
+
+	/**
+	 * Called when packets are about to start arriving, from a new session
+	 * or from playback.  Subclasses whose sinks do their work on threads of
+	 * their own start them here.
+	 */
+	protected void startStreams() {
+	}
+
+	/**
+	 * Called when no more packets will arrive, after disconnecting or
+	 * stopping playback.  This is not called when the link is lost and
+	 * restored.
+	 */
+	protected void stopStreams() {
+	}
+
+	public void dock() {
+		try {
+			sendBytes(CommandEncoder.dock());
+			mDockState = DockState.DOCKING;
+		} catch (IOException e) {
+		}
+	}
+
+	public void undock() {
+		try {
+			sendBytes(CommandEncoder.undock());
+			mDockState = DockState.UNDOCKED;
+		} catch (IOException e) {
+		}
+	}
+
+	public void cancelDock() {
+		try {
+			sendBytes(CommandEncoder.cancelDock());
+			mDockState = DockState.UNDOCKED;
+		} catch (IOException e) {
+		}
+	}
+
+	public void setVolume(int volume) {
+		mVolume = volume;
+		try {
+			sendBytes(CommandEncoder.setVolume(volume));
+		} catch (IOException e) {
+		}
+	}
+
+	public void startVideo() {
+		mVideoOn = true;
+		try {
+			sendBytes(CommandEncoder.video(true));
+		} catch (IOException e) {
+		}
+	}
+
+	public void stopVideo() {
+		mVideoOn = false;
+		try {
+			sendBytes(CommandEncoder.video(false));
+		} catch (IOException e) {
+		}
+	}
+
+	public void startAudio() {
+		mAudioOn = true;
+		try {
+			sendBytes(CommandEncoder.audio(true));
+		} catch (IOException e) {
+		}
+	}
+
+	public void stopAudio() {
+		mAudioOn = false;
+		try {
+			sendBytes(CommandEncoder.audio(false));
+		} catch (IOException e) {
+		}
+	}
+
+	public void playSoundAlarm() {
+		playSound(SOUND_ALARM);
+	}
+
+	public void playSoundBomb() {
+		playSound(SOUND_BOMB);
+	}
+
+	public void playSoundLazer() {
+		playSound(SOUND_LAZER);
+	}
+
+	public void playSoundAhAhAh() {
+		playSound(SOUND_AH_AH_AH);
+	}
+
+	public void playSoundEngine() {
+		playSound(SOUND_ENGINE);
+	}
+
+	public void playSoundRobot() {
+		playSound(SOUND_ROBOT);
+	}
+
+	public void playSoundCustom1() {
+		playSound(SOUND_CUSTOM1);
+	}
+
+	public void playSoundCustom2() {
+		playSound(SOUND_CUSTOM2);
+	}
+
+	private void playSound(int effect) {
+		try {
+			sendBytes(CommandEncoder.soundEffect(effect));
+		} catch (IOException e) {
+		}
+	}
+
+	private void startNetworkReaderThread(final ConnectionListener listener) {
+		final DataInputStream input = mInput;
+		SessionThreads.start(mThreadFactory, "SpykeeReader", new Runnable() {
+			public void run() {
+				readFromSpykee(input, listener);
+			}
+		});
+	}
+
+	/**
+	 * Reads network packets from the Spykee robot. This runs in a background
+	 * thread.  Each read takes as many bytes as the network has available,
+	 * straight into the parser's receive buffer.  When the stream fails, the
+	 * listener reports it to the supervisor.
+	 */
+	private void readFromSpykee(DataInputStream input, ConnectionListener listener) {
+		PacketParser parser = new PacketParser(listener);
+		try {
+			while (true) {
+				int num = input.read(parser.getBuffer(), parser.getWriteOffset(),
+						parser.getWriteSpace());
+				if (num < 0) {
+					listener.onClosed(null);
+					break;
+				}
+				parser.bytesWritten(num);
+			}
+		} catch (IOException e) {
+			listener.onClosed(e);
+		}
+		if (parser.getNumSkipped() > 0) {
+			mLogger.info("lost sync " + parser.getNumResyncs() + " times, skipped "
+					+ parser.getNumSkipped() + " bytes");
+		}
+	}
+
+	/**
+	 * Handles one packet received from Spykee.  This is called from the
+	 * network reader thread, or from the NioEngine's I/O thread when using
+	 * the non-blocking transport.  The payload is a slice of the receive
+	 * buffer and is only valid until this returns.
+	 *
+	 * @param cmd the packet type
+	 * @param data the array containing the payload
+	 * @param offset the index of the first byte of the payload
+	 * @param len the length of the payload
+	 * @param arrivalNanos the time the packet was read from the socket
+	 */
+	private void handlePacket(int cmd, byte[] data, int offset, int len, long arrivalNanos) {
+		if (mTrace.shouldTrace(cmd)) {
+			mTrace.tracePacket("recv", cmd, data, offset, len);
+		}
+		ConnectionSupervisor supervisor = mSupervisor;
+		if (supervisor != null) {
+			supervisor.packetReceived(arrivalNanos);
+		}
+		SessionRecorder recorder = mRecorder;
+		if (recorder != null) {
+			recorder.record(cmd, data, offset, len, arrivalNanos);
+		}
+		PacketTap tap = mPacketTap;
+		if (tap != null) {
+			tap.onPacket(cmd, data, offset, len, arrivalNanos);
+		}
+		CommandProbe probe = mCommandProbe;
+		switch (cmd) {
+		case SPYKEE_BATTERY_LEVEL:
+			if (probe != null && len > 0) {
+				probe.batteryLevelReceived(data[offset] & 0xff, arrivalNanos);
+			}
+			break;
+		case SPYKEE_VIDEO_FRAME:
+			if (probe != null) {
+				probe.videoFrameReceived(len, arrivalNanos);
+			}
+			break;
+		case SPYKEE_DOCK:
+			if (len == 0) {
+				break;
+			}
+			int val = data[offset] & 0xff;
+			if (probe != null) {
+				probe.dockStateReceived(val, arrivalNanos);
+			}
+			if (val == SPYKEE_DOCK_DOCKED) {
+				mDockState = DockState.DOCKED;
+			} else if (val == SPYKEE_DOCK_UNDOCKED) {
+				mDockState = DockState.UNDOCKED;
+			}
+			break;
+		}
+		mDemux.demux(cmd, data, offset, len, arrivalNanos);
+	}
+
+	/**
+	 * Receives packets from the packet parser, for either transport.  Both
+	 * transports parse the bytes as soon as a socket read returns, so the
+	 * time a packet is handed to this listener is the time its last bytes
+	 * were read.
+	 */
+	private class ConnectionListener implements NioConnection.Listener {
+		// The session this listener belongs to.
+		private final int mGeneration;
+
+		ConnectionListener(int generation) {
+			mGeneration = generation;
+		}
+
+		public void onPacket(int cmd, byte[] payload, int offset, int len) {
+			handlePacket(cmd, payload, offset, len, System.nanoTime());
+		}
+
+		public void onClosed(IOException error) {
+			if (mGeneration != mSessionGeneration) {
+				// We closed this session ourselves.
+				return;
+			}
+			String reason = error == null ? "connection closed by robot" : error.toString();
+			mLogger.info("connection closed: " + reason);
+			sessionFailed(mGeneration, reason);
+		}
+	}
+
+	/**
+	 * Returns the robot's login response, header included, or null if we
+	 * have not logged in yet.  The array must not be modified.
+	 */
+	byte[] getLoginResponse() {
+		return mLoginResponse;
+	}
+
+	/**
+	 * Queues a command that was encoded elsewhere, such as one forwarded
+	 * by SpykeeGateway.  Motor commands are sent as they are, without
+	 * going through the MotorDriver.
+	 * @param command the complete command, starting with 'P','K'
+	 * @return false if not connected or the command was dropped
+	 */
+	boolean sendCommand(byte[] command) {
+		CommandQueue queue = mCommandQueue;
+		if (queue == null) {
+			return false;
+		}
+		return queue.offer(command);
+	}
+
+	/**
+	 * Queues a command to be sent to Spykee.  This never blocks.  The array
+	 * must not be modified after it is passed in.
+	 * @param bytes the byte array containing the Spykee command
+	 * @throws IOException if we are not connected or the connection failed
+	 */
+	private void sendBytes(byte[] bytes) throws IOException {
+		if (mCommandQueue == null) {
+			throw new IOException("not connected");
+		}
+		if (mWriter != null && mWriter.getError() != null) {
+			throw mWriter.getError();
+		}
+		mCommandQueue.offer(bytes);
+	}
+
+	/**
+	 * Tries to read "len" bytes into the given byte array. Returns the number
+	 * of bytes actually read.
+	 *
+	 * @param bytes the destination byte array
+	 * @param offset the starting offset into the byte array for the first byte
+	 * @param len the number of bytes to read
+	 * @return the actual number of bytes read
+	 * @throws IOException
+	 */
+	private int readBytes(byte[] bytes, int offset, int len) throws IOException {
+		int remaining = len;
+		while (remaining > 0) {
+			int numRead = mInput.read(bytes, offset, remaining);
+			//mLogger.info("readBytes(): " + numRead);
+			if (numRead <= 0) {
+				break;
+			}
+			offset += numRead;
+			remaining -= numRead;
+		}
+		return len - remaining;
+	}
+}
@@ -0,0 +1,359 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs sessions with many robots at once.  The robots' sockets are shared
+ * out between a small fixed set of NioEngine I/O threads, and their video
+ * is decoded by one DecodePool.  Each robot still has its own motor driver
+ * and connection supervisor thread, and a thread while it is connecting.
+ * These come from the fleet's thread factory, which makes virtual threads
+ * where the JVM has them, so that only the I/O and decode threads are
+ * platform threads.  report() gives the throughput and video lag of each
+ * robot.
+ *
+ * Robots are added by name with add(), which starts connecting in the
+ * background and turns on the video once logged in.  Each robot has its
+ * own SpykeeClient, which can be used to drive it and to attach an audio
+ * sink.
+ */
+public class SpykeeFleet {
+	/**
+	 * Creates the decoder for each robot's video.
+	 */
+	public interface DecoderFactory {
+		DecodePool.Decoder createDecoder(String name);
+	}
+
+	/**
+	 * The state of the connection to a robot.
+	 */
+	public enum State { CONNECTING, CONNECTED, RECONNECTING, FAILED, CLOSED }
+
+	/**
+	 * One robot in the fleet.
+	 */
+	public class Robot {
+		private final String mName;
+		private final SpykeeClient mClient;
+		private final DecodePool.Stream mVideo;
+		private final int mEngineIndex;
+		private volatile State mState = State.CONNECTING;
+		private volatile String mError;
+
+		// The counters at the time of the last report.
+		private long mLastReportNanos = System.nanoTime();
+		private long mLastFrames;
+		private long mLastBytes;
+		private long mLastDecoded;
+		private long mLastDropped;
+
+		Robot(String name, int engineIndex) {
+			mName = name;
+			mEngineIndex = engineIndex;
+			mClient = new SpykeeClient(mEngines[engineIndex]);
+			mClient.setThreadFactory(mThreadFactory);
+			mVideo = mDecodePool.openStream(name, mDecoderFactory.createDecoder(name));
+			mClient.setVideoSink(mVideo);
+			mClient.setLogger(new PrefixLogger(name, mLogger));
+			mClient.setListener(new RobotListener(this));
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/** Returns the client, which can be used to drive the robot. */
+		public SpykeeClient getClient() {
+			return mClient;
+		}
+
+		/** Returns the robot's video stream in the decode pool. */
+		public DecodePool.Stream getVideoStream() {
+			return mVideo;
+		}
+
+		public State getState() {
+			return mState;
+		}
+
+		/**
+		 * Appends a line with the throughput and lag since the last report.
+		 */
+		private void report(StringBuilder builder) {
+			long now = System.nanoTime();
+			StreamDemux demux = mClient.getDemux();
+			long frames = demux.getNumVideoFrames();
+			long bytes = demux.getNumVideoBytes() + demux.getNumAudioBytes();
+			long decoded = mVideo.getNumDecoded();
+			long dropped = mVideo.getNumDropped();
+			LatencyHistogram lag = mVideo.takeLag();
+			long elapsed = Math.max(1, now - mLastReportNanos);
+
+			builder.append(mName).append(": ").append(mState);
+			if (mError != null) {
+				builder.append(" (").append(mError).append(')');
+			}
+			builder.append(", ").append(perSecond(frames - mLastFrames, elapsed)).append(" fps");
+			builder.append(' ').append((bytes - mLastBytes) * 1000000000L / elapsed / 1024)
+					.append(" KB/s");
+			builder.append(", decoded ").append(perSecond(decoded - mLastDecoded, elapsed))
+					.append(" fps, dropped ").append(dropped - mLastDropped);
+			if (lag.getCount() > 0) {
+				builder.append(", lag p50=").append(millis(lag.getValueAtPercentile(50)));
+				builder.append(" p99=").append(millis(lag.getValueAtPercentile(99)));
+				builder.append(" max=").append(millis(lag.getMax())).append("ms");
+			}
+			builder.append(", send ").append(mClient.getAverageSendLatencyMicros()).append("us");
+			builder.append(", io ").append(mEngineIndex);
+
+			mLastReportNanos = now;
+			mLastFrames = frames;
+			mLastBytes = bytes;
+			mLastDecoded = decoded;
+			mLastDropped = dropped;
+		}
+	}
+
+	/**
+	 * Tracks the state of one robot's connection.
+	 */
+	private class RobotListener implements SpykeeClient.Listener {
+		private final Robot mRobot;
+
+		RobotListener(Robot robot) {
+			mRobot = robot;
+		}
+
+		public void onConnected(ConnectAttempt attempt) {
+			mRobot.mState = State.CONNECTED;
+			mRobot.mError = null;
+			mRobot.mClient.startVideo();
+		}
+
+		public void onConnectFailed(ConnectAttempt attempt) {
+			mRobot.mState = State.FAILED;
+			mRobot.mError = String.valueOf(attempt.getError());
+		}
+
+		public void onLinkLost(String reason) {
+			mRobot.mState = State.RECONNECTING;
+			mRobot.mError = reason;
+		}
+
+		public void onReconnected(long millis, int attempts) {
+			mRobot.mState = State.CONNECTED;
+			mRobot.mError = null;
+		}
+
+		public void onPlaybackEnded(SessionPlayer player) {
+		}
+
+		public void onRecordingStopped(SessionRecorder recorder) {
+		}
+	}
+
+	/**
+	 * Puts the robot's name in front of each message from its client.
+	 */
+	private static class PrefixLogger implements SpykeeClient.Logger {
+		private final String mPrefix;
+		private final SpykeeClient.Logger mLogger;
+
+		PrefixLogger(String name, SpykeeClient.Logger logger) {
+			mPrefix = name + ": ";
+			mLogger = logger;
+		}
+
+		public void info(String message) {
+			mLogger.info(mPrefix + message);
+		}
+
+		public void warn(String message) {
+			mLogger.warn(mPrefix + message);
+		}
+	}
+
+	private final NioEngine[] mEngines;
+
+	// The number of robots using each engine.
+	private final int[] mEngineLoad;
+
+	private final DecodePool mDecodePool;
+	private final DecoderFactory mDecoderFactory;
+	private volatile SpykeeClient.Logger mLogger = SpykeeClient.STDERR_LOGGER;
+	private volatile ThreadFactory mThreadFactory = SessionThreads.hasVirtualThreads()
+			? SessionThreads.virtual() : SessionThreads.PLATFORM;
+	private final Map<String, Robot> mRobots = new LinkedHashMap<String, Robot>();
+
+	/**
+	 * Creates a fleet and starts its I/O and decode threads.
+	 * @param numIoThreads the number of I/O threads shared by all robots
+	 * @param numDecodeThreads the number of video decode threads shared by
+	 *     all robots
+	 * @param factory creates the decoder for each robot
+	 * @throws IOException if a selector can't be opened
+	 */
+	public SpykeeFleet(int numIoThreads, int numDecodeThreads, DecoderFactory factory)
+	        throws IOException {
+		mEngines = new NioEngine[numIoThreads];
+		mEngineLoad = new int[numIoThreads];
+		try {
+			for (int i = 0; i < numIoThreads; i++) {
+				mEngines[i] = new NioEngine();
+				mEngines[i].start();
+			}
+		} catch (IOException e) {
+			shutdownEngines();
+			throw e;
+		}
+		mDecoderFactory = factory;
+		mDecodePool = new DecodePool(numDecodeThreads);
+		mDecodePool.start();
+	}
+
+	/**
+	 * Sets where the robots' log messages go.  This applies to robots
+	 * added afterwards.
+	 */
+	public void setLogger(SpykeeClient.Logger logger) {
+		mLogger = logger;
+	}
+
+	/**
+	 * Sets the factory for each robot's motor driver, supervisor and
+	 * connect threads.  The default makes virtual threads where the JVM
+	 * has them, and platform threads otherwise.  This applies to robots
+	 * added afterwards.
+	 */
+	public void setThreadFactory(ThreadFactory factory) {
+		mThreadFactory = factory;
+	}
+
+	/**
+	 * Adds a robot and starts connecting to it in the background.  It is
+	 * given to the I/O thread with the fewest robots.
+	 * @param name a name for the robot, which must not already be in use
+	 * @return the robot
+	 */
+	public synchronized Robot add(String name, String host, int port, String login,
+			String password) {
+		if (mRobots.containsKey(name)) {
+			throw new IllegalArgumentException("duplicate robot name: " + name);
+		}
+		int engine = 0;
+		for (int i = 1; i < mEngines.length; i++) {
+			if (mEngineLoad[i] < mEngineLoad[engine]) {
+				engine = i;
+			}
+		}
+		mEngineLoad[engine] += 1;
+		Robot robot = new Robot(name, engine);
+		mRobots.put(name, robot);
+		robot.mClient.connectAsync(host, port, login, password);
+		return robot;
+	}
+
+	/**
+	 * Disconnects a robot and removes it from the fleet.
+	 * @return false if there is no robot with that name
+	 */
+	public boolean remove(String name) {
+		Robot robot;
+		synchronized (this) {
+			robot = mRobots.remove(name);
+			if (robot == null) {
+				return false;
+			}
+			mEngineLoad[robot.mEngineIndex] -= 1;
+		}
+		close(robot);
+		return true;
+	}
+
+	private void close(Robot robot) {
+		robot.mClient.close();
+		mDecodePool.closeStream(robot.mVideo);
+		robot.mState = State.CLOSED;
+	}
+
+	public synchronized Robot get(String name) {
+		return mRobots.get(name);
+	}
+
+	/** Returns the robots, in the order they were added. */
+	public synchronized List<Robot> getRobots() {
+		return new ArrayList<Robot>(mRobots.values());
+	}
+
+	/**
+	 * Formats the throughput and video lag of each robot since the last
+	 * report, one line per robot.
+	 */
+	public String report() {
+		StringBuilder builder = new StringBuilder();
+		for (Robot robot : getRobots()) {
+			if (builder.length() > 0) {
+				builder.append('\n');
+			}
+			synchronized (robot) {
+				robot.report(builder);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Disconnects every robot and stops the I/O and decode threads.
+	 */
+	public void shutdown() {
+		List<Robot> robots;
+		synchronized (this) {
+			robots = new ArrayList<Robot>(mRobots.values());
+			mRobots.clear();
+		}
+		for (Robot robot : robots) {
+			close(robot);
+		}
+		mDecodePool.shutdown();
+		shutdownEngines();
+	}
+
+	private void shutdownEngines() {
+		for (NioEngine engine : mEngines) {
+			if (engine != null) {
+				engine.shutdown();
+			}
+		}
+	}
+
+	private static String perSecond(long count, long elapsedNanos) {
+		long tenths = count * 10000000000L / elapsedNanos;
+		return (tenths / 10) + "." + (tenths % 10);
+	}
+
+	/** Formats microseconds as milliseconds with one decimal place. */
+	private static String millis(long micros) {
+		long tenths = (micros + 50) / 100;
+		return (tenths / 10) + "." + (tenths % 10);
+	}
+}
@@ -0,0 +1,751 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets several controllers share one robot.  Spykee only accepts a single
+ * session, so the gateway holds that session (an ordinary SpykeeClient)
+ * and accepts any number of controllers speaking the same 'P','K'
+ * protocol, such as the Spykee app pointed at the gateway instead of at
+ * the robot.
+ *
+ * Every packet from the robot is framed once and queued for each
+ * controller: telemetry goes to all of them, and video and audio to the
+ * ones that turned that stream on.  The robot streams while any controller
+ * wants the stream.  To keep the added latency low, the robot's reader
+ * thread writes each packet to every controller itself, without waiting:
+ * the controller sockets are non-blocking and serviced by an NioEngine.
+ * When a controller's socket is full, the rest of the packet and any that
+ * follow wait in a bounded queue for the engine's I/O thread, so a slow
+ * controller loses video and audio packets instead of holding up the
+ * others.
+ *
+ * Only one controller drives at a time.  A controller takes the motor
+ * lease with a motor or dock command when nobody holds it, and keeps it
+ * until LEASE_MILLIS pass without any packet from it, even while the robot
+ * is moving.  A SpykeeClient sends nothing while it holds the wheels at a
+ * steady speed, so one that drives through a gateway should have its
+ * speeds repeated with setDriveRefresh() more often than that.  A controller
+ * with a higher priority takes the lease away at once; motor commands from
+ * everyone else are dropped.  The motors are stopped if the holder
+ * disconnects or its lease lapses while they are running, so a controller
+ * that stalls can't leave the robot driving.  Sound effects and the volume
+ * are passed on from anyone.
+ *
+ * Controllers log in with any name and the gateway's password.  The name
+ * picks the priority (0 unless set with setPriority()).
+ */
+public class SpykeeGateway {
+	private static final String TAG = "SpykeeGateway";
+
+	// How long a controller keeps the motor lease after its last packet,
+	// and how often the lease is checked for lapsing.
+	static final long LEASE_MILLIS = 1000;
+	private static final long LEASE_CHECK_MILLIS = 50;
+
+	// A controller's queue holds at most this many packets, and at most
+	// this many bytes of video and audio; packets beyond that are dropped
+	// for that controller.
+	private static final int MAX_QUEUED_PACKETS = 256;
+	private static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+	private static final int LOGIN_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * One connected controller.  Its commands are read, and writes that
+	 * the socket could not take at once are finished, by the engine's I/O
+	 * thread.
+	 */
+	private class Controller implements NioEngine.Handler, PacketListener {
+		private final SocketChannel mChannel;
+		private volatile String mName = "?";
+		private volatile int mPriority;
+		private volatile boolean mWantsVideo;
+		private volatile boolean mWantsAudio;
+
+		private SelectionKey mKey;
+		private PacketParser mParser;
+		private ByteBuffer mReadView;
+
+		// The packet being written and when it arrived from the robot, or
+		// null if the socket has taken everything so far; and the ring of
+		// packets waiting behind it.
+		private final ReentrantLock mLock = new ReentrantLock();
+		private ByteBuffer mWriting;
+		private long mWritingArrival;
+		private final byte[][] mPackets = new byte[MAX_QUEUED_PACKETS][];
+		private final long[] mArrivals = new long[MAX_QUEUED_PACKETS];
+		private int mHead;
+		private int mSize;
+		private int mQueuedBytes;
+		private boolean mClosed;
+
+		private volatile long mNumSent;
+		private volatile long mNumDropped;
+
+		// The forwarding latency of the packets written to this controller.
+		// It is only recorded while holding mLock, so the threads that
+		// write to other controllers never contend for it.
+		private final LatencyHistogram mLatency = new LatencyHistogram();
+
+		Controller(SocketChannel channel) {
+			mChannel = channel;
+		}
+
+		/**
+		 * Sends a packet to this controller, writing it straight away if
+		 * nothing is waiting and queueing it otherwise.  This never blocks
+		 * on the network.
+		 * @param droppable true if the packet may be dropped when the queue
+		 *     holds too many bytes
+		 */
+		void send(byte[] packet, long arrivalNanos, boolean droppable) {
+			IOException error = null;
+			boolean requestWrite = false;
+			mLock.lock();
+			try {
+				if (mClosed) {
+					return;
+				}
+				if (mWriting == null) {
+					ByteBuffer buffer = ByteBuffer.wrap(packet);
+					try {
+						mChannel.write(buffer);
+					} catch (IOException e) {
+						error = e;
+					}
+					if (!buffer.hasRemaining()) {
+						packetWritten(arrivalNanos);
+					} else {
+						mWriting = buffer;
+						mWritingArrival = arrivalNanos;
+						requestWrite = true;
+					}
+				} else if (mSize == MAX_QUEUED_PACKETS
+						|| (droppable && mQueuedBytes + packet.length > MAX_QUEUED_BYTES)) {
+					mNumDropped += 1;
+				} else {
+					int index = (mHead + mSize) % MAX_QUEUED_PACKETS;
+					mPackets[index] = packet;
+					mArrivals[index] = arrivalNanos;
+					mSize += 1;
+					mQueuedBytes += packet.length;
+				}
+			} finally {
+				mLock.unlock();
+			}
+			if (error != null) {
+				closeWithError(error);
+			} else if (requestWrite) {
+				mEngine.requestWrite(this);
+			}
+		}
+
+		private void packetWritten(long arrivalNanos) {
+			mLatency.record((System.nanoTime() - arrivalNanos) / 1000);
+			mNumSent += 1;
+		}
+
+		/**
+		 * Logs in on a thread of its own, then hands the channel over to
+		 * the engine.
+		 */
+		void login() {
+			try {
+				Socket socket = mChannel.socket();
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(LOGIN_TIMEOUT_MILLIS);
+				byte[] response = readLogin(new DataInputStream(socket.getInputStream()));
+				if (response == null) {
+					mChannel.close();
+					return;
+				}
+				mChannel.write(ByteBuffer.wrap(response));
+				mChannel.configureBlocking(false);
+			} catch (IOException e) {
+				try {
+					mChannel.close();
+				} catch (IOException e2) {
+				}
+				return;
+			}
+			mParser = new PacketParser(this);
+			mReadView = ByteBuffer.wrap(mParser.getBuffer());
+			mControllers.add(this);
+			mLogger.info(mName + " connected with priority " + mPriority);
+			mEngine.register(this);
+		}
+
+		/**
+		 * Reads the login command and checks the password.
+		 * @return the login response to send, or null to hang up
+		 */
+		private byte[] readLogin(DataInputStream input) throws IOException {
+			byte[] header = new byte[PacketParser.HEADER_SIZE];
+			input.readFully(header);
+			byte[] payload = new byte[((header[3] & 0xff) << 8) | (header[4] & 0xff)];
+			input.readFully(payload);
+			if (header[0] != 'P' || header[1] != 'K' || header[2] != CommandEncoder.CMD_LOGIN
+					|| payload.length < 2) {
+				return null;
+			}
+			int nameLen = payload[0] & 0xff;
+			if (nameLen + 2 > payload.length
+					|| nameLen + 2 + (payload[nameLen + 1] & 0xff) > payload.length) {
+				return null;
+			}
+			String name = new String(payload, 1, nameLen, "ISO-8859-1");
+			String password = new String(payload, nameLen + 2, payload[nameLen + 1] & 0xff,
+					"ISO-8859-1");
+			if (!password.equals(mPassword)) {
+				mLogger.warn(name + " from " + mChannel.socket().getInetAddress()
+						+ ": wrong password");
+				return null;
+			}
+			byte[] response = mClient.getLoginResponse();
+			if (response == null) {
+				mLogger.warn(name + ": the robot is not connected");
+				return null;
+			}
+			mName = name;
+			mPriority = getPriority(name);
+			return response;
+		}
+
+		public SocketChannel getChannel() {
+			return mChannel;
+		}
+
+		public void setKey(SelectionKey key) {
+			mKey = key;
+			enableWrites();
+		}
+
+		public void enableWrites() {
+			if (mKey != null && mKey.isValid()) {
+				mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		/**
+		 * Writes the packet in progress and then the queued ones, until the
+		 * socket is full or nothing is left.
+		 */
+		public void onWritable() throws IOException {
+			mLock.lock();
+			try {
+				while (true) {
+					if (mWriting == null) {
+						if (mSize == 0) {
+							mKey.interestOps(SelectionKey.OP_READ);
+							return;
+						}
+						mWriting = ByteBuffer.wrap(mPackets[mHead]);
+						mWritingArrival = mArrivals[mHead];
+						mQueuedBytes -= mPackets[mHead].length;
+						mPackets[mHead] = null;
+						mHead = (mHead + 1) % MAX_QUEUED_PACKETS;
+						mSize -= 1;
+					}
+					mChannel.write(mWriting);
+					if (mWriting.hasRemaining()) {
+						return;
+					}
+					mWriting = null;
+					packetWritten(mWritingArrival);
+				}
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		public void onReadable() throws IOException {
+			int offset = mParser.getWriteOffset();
+			mReadView.limit(offset + mParser.getWriteSpace());
+			mReadView.position(offset);
+			int num = mChannel.read(mReadView);
+			if (num < 0) {
+				throw new EOFException("closed by " + mName);
+			}
+			mParser.bytesWritten(num);
+		}
+
+		/**
+		 * Handles a command from this controller, on the I/O thread.
+		 */
+		public void onPacket(int cmd, byte[] data, int offset, int len) {
+			handleCommand(this, cmd, data, offset, len);
+		}
+
+		public void closeWithError(IOException error) {
+			mLock.lock();
+			try {
+				if (mClosed) {
+					return;
+				}
+				mClosed = true;
+				mWriting = null;
+				while (mSize > 0) {
+					mPackets[mHead] = null;
+					mHead = (mHead + 1) % MAX_QUEUED_PACKETS;
+					mSize -= 1;
+				}
+			} finally {
+				mLock.unlock();
+			}
+			if (mKey != null) {
+				mKey.cancel();
+			}
+			try {
+				mChannel.close();
+			} catch (IOException e) {
+			}
+			if (mControllers.remove(this)) {
+				mClosedLatency.add(mLatency);
+				mLogger.info(mName + " disconnected" + (error == null ? "" : ": " + error));
+				mWantsVideo = false;
+				mWantsAudio = false;
+				releaseLease(this);
+				updateStreams();
+			}
+		}
+
+		void report(StringBuilder builder) {
+			builder.append("  ").append(mName).append(" (priority ").append(mPriority);
+			if (mLeaseHolder == this) {
+				builder.append(", driving");
+			}
+			builder.append("): ").append(mNumSent).append(" sent, ").append(mNumDropped)
+					.append(" dropped");
+			if (mWantsVideo) {
+				builder.append(", video");
+			}
+			if (mWantsAudio) {
+				builder.append(", audio");
+			}
+		}
+	}
+
+	private final SpykeeClient mClient;
+	private volatile SpykeeClient.Logger mLogger = SpykeeClient.STDERR_LOGGER;
+	private ThreadFactory mThreadFactory = SessionThreads.PLATFORM;
+	private final Map<String, Integer> mPriorities = new HashMap<String, Integer>();
+	private String mPassword;
+	private ServerSocketChannel mServer;
+	private NioEngine mEngine;
+	private volatile boolean mRunning;
+
+	private final CopyOnWriteArrayList<Controller> mControllers =
+			new CopyOnWriteArrayList<Controller>();
+
+	// The controller holding the motor lease, or null; whether the robot
+	// is moving under its control; and when the lease runs out.  These are
+	// guarded by "this".
+	private volatile Controller mLeaseHolder;
+	private boolean mHolderMoving;
+	private long mLeaseExpiryNanos;
+
+	// Whether the robot's streams are on; guarded by "this".
+	private boolean mVideoOn;
+	private boolean mAudioOn;
+
+	// The forwarding latency of the controllers that have disconnected.
+	// Each connected controller keeps its own.
+	private final LatencyHistogram mClosedLatency = new LatencyHistogram();
+
+	private volatile long mNumForwarded;
+	private int mNumCommands;
+	private int mNumRejected;
+	private int mNumPreempted;
+	private int mNumLapsed;
+
+	/**
+	 * Creates a gateway for the robot that "client" connects to.  The
+	 * client is connected and reconnected by the caller as usual; the
+	 * gateway only needs it to have logged in before controllers connect.
+	 */
+	public SpykeeGateway(SpykeeClient client) {
+		mClient = client;
+		mClient.setPacketTap(new SpykeeClient.PacketTap() {
+			public void onPacket(int cmd, byte[] data, int offset, int len, long arrivalNanos) {
+				fanOut(cmd, data, offset, len, arrivalNanos);
+			}
+		});
+	}
+
+	public void setLogger(SpykeeClient.Logger logger) {
+		mLogger = logger;
+	}
+
+	/**
+	 * Sets the factory for the threads that accept controllers, log them
+	 * in and watch the motor lease.  This must be called before start().
+	 */
+	public void setThreadFactory(ThreadFactory factory) {
+		mThreadFactory = factory;
+	}
+
+	/**
+	 * Sets the priority of the controller that logs in with "name".  A
+	 * controller takes the motor lease from one with a lower priority.
+	 */
+	public void setPriority(String name, int priority) {
+		synchronized (mPriorities) {
+			mPriorities.put(name, priority);
+		}
+	}
+
+	private int getPriority(String name) {
+		synchronized (mPriorities) {
+			Integer priority = mPriorities.get(name);
+			return priority == null ? 0 : priority;
+		}
+	}
+
+	/**
+	 * Starts accepting controllers.
+	 * @param port the port to listen on, or 0 to pick a free port
+	 * @param password the password that controllers must log in with
+	 * @return the port that the gateway is listening on
+	 */
+	public int start(int port, String password) throws IOException {
+		mPassword = password;
+		mEngine = new NioEngine();
+		mEngine.start();
+		mServer = ServerSocketChannel.open();
+		mServer.socket().bind(new InetSocketAddress(port));
+		mRunning = true;
+		SessionThreads.start(mThreadFactory, TAG, new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		});
+		SessionThreads.start(mThreadFactory, TAG + " lease", new Runnable() {
+			public void run() {
+				leaseLoop();
+			}
+		});
+		return mServer.socket().getLocalPort();
+	}
+
+	/**
+	 * Disconnects every controller and stops accepting new ones.  The
+	 * connection to the robot is left alone.
+	 */
+	public void close() {
+		mRunning = false;
+		try {
+			if (mServer != null) {
+				mServer.close();
+			}
+		} catch (IOException e) {
+		}
+		mClient.setPacketTap(null);
+		if (mEngine != null) {
+			// This closes every controller.
+			mEngine.shutdown();
+		}
+	}
+
+	private void acceptLoop() {
+		while (mRunning) {
+			final SocketChannel channel;
+			try {
+				channel = mServer.accept();
+			} catch (IOException e) {
+				break;
+			}
+			SessionThreads.start(mThreadFactory, TAG + " login", new Runnable() {
+				public void run() {
+					new Controller(channel).login();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Frames a packet from the robot once and sends it to every
+	 * controller that wants it.
+	 */
+	private void fanOut(int cmd, byte[] data, int offset, int len, long arrivalNanos) {
+		if (mControllers.isEmpty()) {
+			return;
+		}
+		byte[] packet = packet(cmd, data, offset, len);
+		boolean video = cmd == SpykeeClient.SPYKEE_VIDEO_FRAME;
+		boolean audio = cmd == SpykeeClient.SPYKEE_AUDIO;
+		for (Controller controller : mControllers) {
+			if ((video && !controller.mWantsVideo) || (audio && !controller.mWantsAudio)) {
+				continue;
+			}
+			controller.send(packet, arrivalNanos, video || audio);
+		}
+		mNumForwarded += 1;
+	}
+
+	/**
+	 * Handles a command from a controller, on the engine's I/O thread.
+	 */
+	private void handleCommand(Controller controller, int cmd, byte[] data, int offset,
+			int len) {
+		if (mLeaseHolder == controller) {
+			renewLease(controller);
+		}
+		switch (cmd) {
+		case CommandEncoder.CMD_MOVE:
+			if (len >= 2) {
+				boolean moving = data[offset] != 0 || data[offset + 1] != 0;
+				drive(controller, moving, packet(cmd, data, offset, len));
+			}
+			break;
+		case CommandEncoder.CMD_DOCK:
+			drive(controller, false, packet(cmd, data, offset, len));
+			break;
+		case CommandEncoder.CMD_STREAM:
+			if (len >= 2) {
+				boolean on = data[offset + 1] != 0;
+				if (data[offset] == CommandEncoder.STREAM_VIDEO) {
+					controller.mWantsVideo = on;
+				} else if (data[offset] == CommandEncoder.STREAM_AUDIO) {
+					controller.mWantsAudio = on;
+				}
+				updateStreams();
+			}
+			break;
+		case CommandEncoder.CMD_SET_VOLUME:
+			if (len >= 1) {
+				mClient.setVolume(data[offset] & 0xff);
+			}
+			break;
+		case CommandEncoder.CMD_LOGIN:
+			break;
+		default:
+			mClient.sendCommand(packet(cmd, data, offset, len));
+			break;
+		}
+	}
+
+	/**
+	 * Sends a motor or dock command if the controller holds the motor
+	 * lease or can take it.  The command is queued while holding the lock,
+	 * so that commands from two controllers are never sent out of order.
+	 * @param moving true if the command leaves the motors running
+	 */
+	private synchronized void drive(Controller controller, boolean moving, byte[] command) {
+		long now = System.nanoTime();
+		Controller holder = mLeaseHolder;
+		if (holder != null && holder != controller && now < mLeaseExpiryNanos) {
+			if (controller.mPriority <= holder.mPriority) {
+				mNumRejected += 1;
+				return;
+			}
+			mNumPreempted += 1;
+			mLogger.info(controller.mName + " took the motors from " + holder.mName);
+		}
+		mLeaseHolder = controller;
+		mHolderMoving = moving;
+		mLeaseExpiryNanos = now + LEASE_MILLIS * 1000000L;
+		mClient.sendCommand(command);
+		mNumCommands += 1;
+	}
+
+	/**
+	 * Extends the lease of a holder that sent a packet, unless it has
+	 * already lapsed.
+	 */
+	private synchronized void renewLease(Controller controller) {
+		long now = System.nanoTime();
+		if (mLeaseHolder == controller && now < mLeaseExpiryNanos) {
+			mLeaseExpiryNanos = now + LEASE_MILLIS * 1000000L;
+		}
+	}
+
+	/**
+	 * Checks the lease every LEASE_CHECK_MILLIS until the gateway is
+	 * closed.
+	 */
+	private void leaseLoop() {
+		while (mRunning) {
+			try {
+				Thread.sleep(LEASE_CHECK_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			expireLease();
+		}
+	}
+
+	/**
+	 * Ends the lease of a holder that has sent nothing for LEASE_MILLIS,
+	 * stopping the motors if it left them running.
+	 */
+	private synchronized void expireLease() {
+		Controller holder = mLeaseHolder;
+		if (holder == null || System.nanoTime() < mLeaseExpiryNanos) {
+			return;
+		}
+		if (mHolderMoving) {
+			mLogger.warn(holder.mName + " went quiet; stopping the motors");
+			mClient.sendCommand(CommandEncoder.move(0, 0));
+			mNumLapsed += 1;
+		}
+		mLeaseHolder = null;
+		mHolderMoving = false;
+	}
+
+	/**
+	 * Gives up the lease of a controller that went away, stopping the
+	 * motors if it left them running.
+	 */
+	private synchronized void releaseLease(Controller controller) {
+		if (mLeaseHolder != controller) {
+			return;
+		}
+		if (mHolderMoving) {
+			mClient.sendCommand(CommandEncoder.move(0, 0));
+		}
+		mLeaseHolder = null;
+		mHolderMoving = false;
+	}
+
+	/**
+	 * Turns the robot's streams on while any controller wants them.
+	 */
+	private synchronized void updateStreams() {
+		boolean video = false;
+		boolean audio = false;
+		for (Controller controller : mControllers) {
+			video |= controller.mWantsVideo;
+			audio |= controller.mWantsAudio;
+		}
+		if (video != mVideoOn) {
+			mVideoOn = video;
+			if (video) {
+				mClient.startVideo();
+			} else {
+				mClient.stopVideo();
+			}
+		}
+		if (audio != mAudioOn) {
+			mAudioOn = audio;
+			if (audio) {
+				mClient.startAudio();
+			} else {
+				mClient.stopAudio();
+			}
+		}
+	}
+
+	/**
+	 * Returns a complete packet with the given type and payload.
+	 */
+	private static byte[] packet(int cmd, byte[] data, int offset, int len) {
+		byte[] packet = new byte[PacketParser.HEADER_SIZE + len];
+		packet[0] = 'P';
+		packet[1] = 'K';
+		packet[2] = (byte) cmd;
+		packet[3] = (byte) (len >> 8);
+		packet[4] = (byte) len;
+		System.arraycopy(data, offset, packet, PacketParser.HEADER_SIZE, len);
+		return packet;
+	}
+
+	/** Returns the number of controllers connected. */
+	public int getNumControllers() {
+		return mControllers.size();
+	}
+
+	/**
+	 * Returns the time in microseconds from a packet arriving from the
+	 * robot to its write to a controller finishing, merged from every
+	 * controller since the last resetForwardLatency().
+	 */
+	public LatencyHistogram getForwardLatency() {
+		LatencyHistogram latency = new LatencyHistogram();
+		latency.add(mClosedLatency);
+		for (Controller controller : mControllers) {
+			latency.add(controller.mLatency);
+		}
+		return latency;
+	}
+
+	/** Clears the forwarding latency of every controller. */
+	public void resetForwardLatency() {
+		mClosedLatency.reset();
+		for (Controller controller : mControllers) {
+			controller.mLatency.reset();
+		}
+	}
+
+	/** Returns the number of packets from the robot passed on. */
+	public long getNumForwarded() {
+		return mNumForwarded;
+	}
+
+	/** Returns the number of motor and dock commands sent to the robot. */
+	public synchronized int getNumCommands() {
+		return mNumCommands;
+	}
+
+	/** Returns the number of motor and dock commands refused for lack of the lease. */
+	public synchronized int getNumRejected() {
+		return mNumRejected;
+	}
+
+	/** Returns the number of times the lease was taken by a higher priority. */
+	public synchronized int getNumPreempted() {
+		return mNumPreempted;
+	}
+
+	/** Returns the number of times the motors were stopped because a lease lapsed. */
+	public synchronized int getNumLapsed() {
+		return mNumLapsed;
+	}
+
+	/**
+	 * Returns a summary of the traffic and one line for each controller.
+	 */
+	public String report() {
+		LatencyHistogram latency = getForwardLatency();
+		StringBuilder builder = new StringBuilder();
+		builder.append(mNumForwarded).append(" packets forwarded, latency p50 ")
+				.append(latency.getValueAtPercentile(50)).append("us p99 ")
+				.append(latency.getValueAtPercentile(99)).append("us max ")
+				.append(latency.getMax()).append("us; motor commands ")
+				.append(getNumCommands()).append(" sent, ").append(getNumRejected())
+				.append(" refused, ").append(getNumPreempted()).append(" preemptions, ")
+				.append(getNumLapsed()).append(" lapsed");
+		for (Controller controller : mControllers) {
+			builder.append('\n');
+			controller.report(builder);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,150 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Splits the packets from Spykee into its separate streams and hands each
+ * one to its sink: video frames to a VideoSink, audio to an AudioSink and
+ * the battery level and dock state to a TelemetrySink.  A stream without a
+ * sink is counted and then ignored.
+ *
+ * This runs on the thread that parses the packets, so the sinks must not
+ * block.  The counts are written only by that thread and may be read from
+ * any thread.
+ */
+public class StreamDemux implements PacketListener {
+	private volatile VideoSink mVideoSink;
+
+	// Also receives every video frame, after the video sink.
+	private volatile VideoSink mVideoMirror;
+	private volatile AudioSink mAudioSink;
+	private volatile TelemetrySink mTelemetrySink;
+
+	private volatile long mNumVideoFrames;
+	private volatile long mNumVideoBytes;
+	private volatile long mNumAudioPackets;
+	private volatile long mNumAudioBytes;
+	private volatile long mNumTelemetryPackets;
+	private volatile long mNumUnknownPackets;
+
+	public void setVideoSink(VideoSink sink) {
+		mVideoSink = sink;
+	}
+
+	/**
+	 * Sets a second sink that is also handed every video frame, such as an
+	 * MjpegServer that republishes the video while the app shows it.
+	 * @param sink the sink, or null for none
+	 */
+	public void setVideoMirror(VideoSink sink) {
+		mVideoMirror = sink;
+	}
+
+	public void setAudioSink(AudioSink sink) {
+		mAudioSink = sink;
+	}
+
+	public void setTelemetrySink(TelemetrySink sink) {
+		mTelemetrySink = sink;
+	}
+
+	public TelemetrySink getTelemetrySink() {
+		return mTelemetrySink;
+	}
+
+	/**
+	 * Handles a packet straight from a PacketParser, stamped with the
+	 * current time.
+	 */
+	public void onPacket(int cmd, byte[] data, int offset, int len) {
+		demux(cmd, data, offset, len, System.nanoTime());
+	}
+
+	/**
+	 * Hands one packet to the sink for its stream.
+	 *
+	 * @param cmd the packet type (one of the SpykeeClient.SPYKEE_* constants)
+	 * @param data the array containing the payload
+	 * @param offset the index of the first byte of the payload
+	 * @param len the length of the payload
+	 * @param arrivalNanos the time the packet was read from the socket
+	 */
+	public void demux(int cmd, byte[] data, int offset, int len, long arrivalNanos) {
+		switch (cmd) {
+		case SpykeeClient.SPYKEE_VIDEO_FRAME:
+			mNumVideoFrames += 1;
+			mNumVideoBytes += len;
+			VideoSink video = mVideoSink;
+			if (video != null) {
+				video.writeVideoFrame(data, offset, len, arrivalNanos);
+			}
+			VideoSink mirror = mVideoMirror;
+			if (mirror != null) {
+				mirror.writeVideoFrame(data, offset, len, arrivalNanos);
+			}
+			break;
+		case SpykeeClient.SPYKEE_AUDIO:
+			mNumAudioPackets += 1;
+			mNumAudioBytes += len;
+			AudioSink audio = mAudioSink;
+			if (audio != null) {
+				audio.writeAudio(data, offset, len, arrivalNanos);
+			}
+			break;
+		case SpykeeClient.SPYKEE_BATTERY_LEVEL:
+		case SpykeeClient.SPYKEE_DOCK:
+			mNumTelemetryPackets += 1;
+			TelemetrySink telemetry = mTelemetrySink;
+			if (telemetry == null || len == 0) {
+				break;
+			}
+			int value = data[offset] & 0xff;
+			if (cmd == SpykeeClient.SPYKEE_BATTERY_LEVEL) {
+				telemetry.onBatteryLevel(value);
+			} else {
+				telemetry.onDockState(value);
+			}
+			break;
+		default:
+			mNumUnknownPackets += 1;
+			break;
+		}
+	}
+
+	public long getNumVideoFrames() {
+		return mNumVideoFrames;
+	}
+
+	public long getNumVideoBytes() {
+		return mNumVideoBytes;
+	}
+
+	public long getNumAudioPackets() {
+		return mNumAudioPackets;
+	}
+
+	public long getNumAudioBytes() {
+		return mNumAudioBytes;
+	}
+
+	public long getNumTelemetryPackets() {
+		return mNumTelemetryPackets;
+	}
+
+	/** Returns the number of packets of types that we don't know about. */
+	public long getNumUnknownPackets() {
+		return mNumUnknownPackets;
+	}
+}
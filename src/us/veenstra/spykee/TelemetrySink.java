@@ -0,0 +1,34 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Receives the status reports that Spykee sends: its battery level and
+ * whether it is on its dock.  The methods are called from the network
+ * reader thread.
+ */
+public interface TelemetrySink {
+	/**
+	 * Called when the robot reports its battery level.
+	 * @param level the battery level
+	 */
+	void onBatteryLevel(int level);
+
+	/**
+	 * Called when the robot reports its dock state, and after reconnecting.
+	 * @param state SpykeeClient.SPYKEE_DOCK_DOCKED or SPYKEE_DOCK_UNDOCKED
+	 */
+	void onDockState(int state);
+}
@@ -0,0 +1,453 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.lang.reflect.Field;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+
+/**
+ * Decodes the JPEG video frames from Spykee on a dedicated thread, so that
+ * a slow decode never holds up the network reader.
+ *
+ * The reader hands off each frame with writeVideoFrame() and moves on.
+ * Only the newest frame is kept: if the decoder is still busy when another
+ * frame arrives, the waiting frame is dropped without being decoded.  Likewise,
+ * only the newest decoded Bitmap is offered to the UI thread, which picks
+ * it up with takeBitmap() when it handles the SPYKEE_VIDEO_FRAME message.
+ *
+ * If a CameraSurfaceView has been set, the decode thread draws each frame
+ * into it directly instead, and the UI thread is not involved.  Frames are
+ * then decoded at the smallest power-of-two reduction that still covers
+ * the view.
+ *
+ * On Android 3.0 and later, frames are decoded into recycled Bitmaps with
+ * BitmapFactory.Options.inBitmap.  Those fields don't exist on the older
+ * versions this app supports, so they are looked up by reflection.
+ */
+class VideoDecoder implements VideoSink {
+	private static final String TAG = "VideoDecoder";
+
+	// One buffer is being filled by the reader, one is waiting in the
+	// mailbox and one is being decoded.
+	private static final int NUM_FRAME_BUFFERS = 3;
+
+	// The size of the scratch buffer that BitmapFactory uses while decoding.
+	private static final int DECODE_TEMP_STORAGE_SIZE = 16 * 1024;
+
+	private final Handler mHandler;
+	private final LatencyTracker mLatencyTracker;
+	private final FrameBufferPool mFramePool = new FrameBufferPool(NUM_FRAME_BUFFERS);
+
+	// The decode options are reused for every frame so that BitmapFactory
+	// does not have to allocate its scratch buffer each time.
+	private final BitmapFactory.Options mDecodeOptions;
+
+	// The Options.inBitmap and Options.inMutable fields, or null if this
+	// version of Android does not have them.
+	private static final Field sInBitmap;
+	private static final Field sInMutable;
+
+	// Before Android 4.4, a Bitmap can only be reused for a frame decoded at
+	// full size.
+	private static final int SDK_REUSE_SCALED = 19;
+	private static final boolean sCanReuseScaled =
+			Integer.parseInt(Build.VERSION.SDK) >= SDK_REUSE_SCALED;
+
+	static {
+		Field inBitmap = null;
+		Field inMutable = null;
+		try {
+			inBitmap = BitmapFactory.Options.class.getField("inBitmap");
+			inMutable = BitmapFactory.Options.class.getField("inMutable");
+		} catch (NoSuchFieldException e) {
+			inBitmap = null;
+		}
+		sInBitmap = inBitmap;
+		sInMutable = inBitmap == null ? null : inMutable;
+	}
+
+	// Decoded frames that have been drawn or dropped, kept for decoding the
+	// next frames into.  One is being decoded and one is waiting for the UI.
+	private static final int NUM_POOLED_BITMAPS = 2;
+	private final BitmapPool mBitmapPool = new BitmapPool(NUM_POOLED_BITMAPS);
+
+	// The pixel format to decode into, or null for the default.
+	private volatile Bitmap.Config mPixelFormat;
+
+	// The full size of the frames in the stream and the sample size and
+	// decoded size of the last frame, or 0 before the first frame.  These
+	// are only used on the decode thread.
+	private int mSourceWidth;
+	private int mSourceHeight;
+	private int mLastSampleSize;
+	private int mLastWidth;
+	private int mLastHeight;
+
+	// The newest frame that has not been decoded yet, or null.  This is the
+	// mailbox between the reader and the decode thread.
+	private byte[] mPendingFrame;
+	private int mPendingLen;
+	private long mPendingArrivalNanos;
+
+	// The newest decoded frame that the UI has not taken yet, or null, and
+	// when its packet was read and when it was decoded.
+	private Bitmap mPendingBitmap;
+	private long mBitmapArrivalNanos;
+	private long mBitmapDecodedNanos;
+
+	// When the frame last taken by the UI was read, and when it was taken.
+	// These are only used on the UI thread.
+	private long mTakenArrivalNanos;
+	private long mTakenNanos;
+
+	// The surface that frames are drawn into, or null to hand them to the
+	// UI thread.
+	private volatile CameraSurfaceView mSurface;
+
+	private Thread mThread;
+	private boolean mRunning;
+
+	private int mNumReceived;
+	private int mNumDecoded;
+	private int mNumDropped;
+	private int mNumDisplayed;
+
+	VideoDecoder(Handler handler, LatencyTracker tracker) {
+		mHandler = handler;
+		mLatencyTracker = tracker;
+		mDecodeOptions = new BitmapFactory.Options();
+		mDecodeOptions.inTempStorage = new byte[DECODE_TEMP_STORAGE_SIZE];
+		if (sInMutable != null) {
+			try {
+				sInMutable.setBoolean(mDecodeOptions, true);
+			} catch (IllegalAccessException e) {
+			}
+		}
+	}
+
+	/**
+	 * Sets the pixel format that frames are decoded into.  RGB_565 takes
+	 * half the memory of ARGB_8888 and is faster to decode and draw; the
+	 * camera frames have no alpha anyway.
+	 * @param config the pixel format, or null for the default
+	 */
+	void setPixelFormat(Bitmap.Config config) {
+		mPixelFormat = config;
+	}
+
+	/**
+	 * Sets the view that the decode thread draws frames into.
+	 * @param surface the view, or null to hand frames to the UI thread
+	 */
+	void setSurface(CameraSurfaceView surface) {
+		mSurface = surface;
+	}
+
+	synchronized void start() {
+		if (mRunning) {
+			return;
+		}
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				decodeLoop();
+			}
+		}, TAG);
+		mThread.start();
+	}
+
+	void stop() {
+		Thread thread;
+		synchronized (this) {
+			if (!mRunning) {
+				return;
+			}
+			mRunning = false;
+			thread = mThread;
+			mThread = null;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * Hands a JPEG frame to the decoder.  The bytes are copied into a
+	 * recycled buffer, so the caller's array can be reused right away.  Any
+	 * frame still waiting to be decoded is dropped.
+	 *
+	 * @param arrivalNanos the time the frame was read from the socket, from
+	 *     System.nanoTime()
+	 */
+	public void writeVideoFrame(byte[] data, int offset, int len, long arrivalNanos) {
+		byte[] frame = mFramePool.acquire(len);
+		System.arraycopy(data, offset, frame, 0, len);
+		byte[] stale;
+		synchronized (this) {
+			mNumReceived += 1;
+			stale = mPendingFrame;
+			if (stale != null) {
+				mNumDropped += 1;
+			}
+			mPendingFrame = frame;
+			mPendingLen = len;
+			mPendingArrivalNanos = arrivalNanos;
+			notifyAll();
+		}
+		if (stale != null) {
+			mFramePool.release(stale);
+		}
+	}
+
+	/**
+	 * Returns the newest decoded frame, or null if there is no new frame.
+	 * This is called on the UI thread.
+	 */
+	synchronized Bitmap takeBitmap() {
+		Bitmap bitmap = mPendingBitmap;
+		mPendingBitmap = null;
+		if (bitmap != null) {
+			mNumDisplayed += 1;
+			mTakenNanos = System.nanoTime();
+			mTakenArrivalNanos = mBitmapArrivalNanos;
+			mLatencyTracker.record(LatencyTracker.Stage.VIDEO_DECODED_TO_HANDLED,
+					mBitmapDecodedNanos, mTakenNanos);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Records that the frame returned by the last takeBitmap() is now
+	 * showing.  This is called on the UI thread.
+	 */
+	void frameDisplayed() {
+		long now = System.nanoTime();
+		mLatencyTracker.record(LatencyTracker.Stage.VIDEO_HANDLED_TO_DISPLAYED,
+				mTakenNanos, now);
+		mLatencyTracker.record(LatencyTracker.Stage.VIDEO_READ_TO_DISPLAYED,
+				mTakenArrivalNanos, now);
+	}
+
+	private void decodeLoop() {
+		while (true) {
+			byte[] frame;
+			int len;
+			long arrival;
+			synchronized (this) {
+				while (mRunning && mPendingFrame == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!mRunning) {
+					return;
+				}
+				frame = mPendingFrame;
+				len = mPendingLen;
+				arrival = mPendingArrivalNanos;
+				mPendingFrame = null;
+			}
+			Bitmap bitmap = decode(frame, len);
+			mFramePool.release(frame);
+			if (bitmap != null) {
+				long decoded = System.nanoTime();
+				mLatencyTracker.record(LatencyTracker.Stage.VIDEO_READ_TO_DECODED,
+						arrival, decoded);
+				CameraSurfaceView surface = mSurface;
+				if (surface != null) {
+					draw(surface, bitmap, arrival, decoded);
+				} else {
+					publish(bitmap, arrival, decoded);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes a frame, reusing a pooled Bitmap if possible.  This runs on the
+	 * decode thread.
+	 * @return the decoded frame, or null if it could not be decoded
+	 */
+	private Bitmap decode(byte[] frame, int len) {
+		BitmapFactory.Options options = mDecodeOptions;
+		int sampleSize = chooseSampleSize();
+		Bitmap.Config config = mPixelFormat;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = config;
+
+		// Frames are assumed to be the same size as the last one, which holds
+		// for a stream from one camera.  If a frame doesn't fit the reused
+		// Bitmap, it is decoded again into a new one.
+		Bitmap reuse = null;
+		if (sInBitmap != null && sampleSize == mLastSampleSize
+				&& (sampleSize == 1 || sCanReuseScaled)) {
+			reuse = mBitmapPool.acquire(mLastWidth, mLastHeight,
+					config != null ? config : Bitmap.Config.ARGB_8888);
+		}
+		Bitmap bitmap = null;
+		if (reuse != null) {
+			setInBitmap(reuse);
+			try {
+				bitmap = BitmapFactory.decodeByteArray(frame, 0, len, options);
+			} catch (IllegalArgumentException e) {
+				bitmap = null;
+			}
+			setInBitmap(null);
+			if (bitmap == null) {
+				reuse.recycle();
+			}
+		}
+		if (bitmap == null) {
+			bitmap = BitmapFactory.decodeByteArray(frame, 0, len, options);
+		}
+		if (bitmap != null) {
+			mLastSampleSize = sampleSize;
+			mLastWidth = bitmap.getWidth();
+			mLastHeight = bitmap.getHeight();
+			mSourceWidth = mLastWidth * sampleSize;
+			mSourceHeight = mLastHeight * sampleSize;
+		}
+		return bitmap;
+	}
+
+	private void setInBitmap(Bitmap bitmap) {
+		try {
+			sInBitmap.set(mDecodeOptions, bitmap);
+		} catch (IllegalAccessException e) {
+		}
+	}
+
+	/**
+	 * Returns the largest power of two that the frames can be reduced by and
+	 * still be at least as large as the surface they are drawn into.
+	 */
+	private int chooseSampleSize() {
+		CameraSurfaceView surface = mSurface;
+		if (surface == null || mSourceWidth == 0) {
+			return 1;
+		}
+		int width = surface.getSurfaceWidth();
+		int height = surface.getSurfaceHeight();
+		if (width <= 0 || height <= 0) {
+			return 1;
+		}
+		int sampleSize = 1;
+		while (mSourceWidth >= width * sampleSize * 2
+				&& mSourceHeight >= height * sampleSize * 2) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Draws a decoded frame into the surface and frees it.  A frame that
+	 * arrives while there is no surface (for example while the activity is
+	 * in the background) is dropped.
+	 */
+	private void draw(CameraSurfaceView surface, Bitmap bitmap, long arrivalNanos,
+			long decodedNanos) {
+		boolean drawn = surface.drawFrame(bitmap);
+		mBitmapPool.release(bitmap);
+		long now = System.nanoTime();
+		synchronized (this) {
+			mNumDecoded += 1;
+			if (drawn) {
+				mNumDisplayed += 1;
+			} else {
+				mNumDropped += 1;
+			}
+		}
+		if (drawn) {
+			mLatencyTracker.record(LatencyTracker.Stage.VIDEO_HANDLED_TO_DISPLAYED,
+					decodedNanos, now);
+			mLatencyTracker.record(LatencyTracker.Stage.VIDEO_READ_TO_DISPLAYED,
+					arrivalNanos, now);
+		}
+	}
+
+	/**
+	 * Offers a decoded frame to the UI thread.  A message is only sent if
+	 * the UI has already taken the previous frame; otherwise the previous
+	 * frame is replaced and the pending message will pick up this one.
+	 */
+	private void publish(Bitmap bitmap, long arrivalNanos, long decodedNanos) {
+		Bitmap stale;
+		boolean notify;
+		synchronized (this) {
+			mNumDecoded += 1;
+			stale = mPendingBitmap;
+			notify = stale == null;
+			if (stale != null) {
+				mNumDropped += 1;
+			}
+			mPendingBitmap = bitmap;
+			mBitmapArrivalNanos = arrivalNanos;
+			mBitmapDecodedNanos = decodedNanos;
+		}
+		if (stale != null) {
+			mBitmapPool.release(stale);
+		}
+		if (notify) {
+			mHandler.sendEmptyMessage(Spykee.SPYKEE_VIDEO_FRAME);
+		}
+	}
+
+	/** Returns the number of frames received from the network. */
+	synchronized int getNumReceived() {
+		return mNumReceived;
+	}
+
+	/** Returns the number of frames decoded. */
+	synchronized int getNumDecoded() {
+		return mNumDecoded;
+	}
+
+	/**
+	 * Returns the number of frames dropped, either before decoding or
+	 * after decoding because the UI had not displayed the previous frame.
+	 */
+	synchronized int getNumDropped() {
+		return mNumDropped;
+	}
+
+	/** Returns the number of frames taken by the UI for display. */
+	synchronized int getNumDisplayed() {
+		return mNumDisplayed;
+	}
+
+	int getFramePoolHits() {
+		return mFramePool.getHits();
+	}
+
+	int getFramePoolMisses() {
+		return mFramePool.getMisses();
+	}
+
+	int getBitmapPoolHits() {
+		return mBitmapPool.getHits();
+	}
+
+	int getBitmapPoolMisses() {
+		return mBitmapPool.getMisses();
+	}
+}
@@ -0,0 +1,123 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A file of packets captured from a Spykee robot, used to replay a real
+ * session through FakeSpykee.  The file starts with the magic "SPKC" and a
+ * version number, followed by one record per packet: the time in
+ * milliseconds since the start of the capture, then the packet exactly as
+ * it was sent ('P', 'K', command, 16-bit length, payload).
+ */
+class CaptureFile {
+	private static final int MAGIC = ('S' << 24) | ('P' << 16) | ('K' << 8) | 'C';
+	private static final int VERSION = 1;
+
+	/**
+	 * Appends packets to a capture file.
+	 */
+	static class Writer {
+		private final DataOutputStream mOutput;
+		private final long mStartNanos = System.nanoTime();
+
+		Writer(File file) throws IOException {
+			mOutput = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), 64 * 1024));
+			mOutput.writeInt(MAGIC);
+			mOutput.writeInt(VERSION);
+		}
+
+		/**
+		 * Writes one packet, stamped with the time since the capture started.
+		 */
+		synchronized void write(int cmd, byte[] payload, int offset, int len)
+		        throws IOException {
+			mOutput.writeInt((int) ((System.nanoTime() - mStartNanos) / 1000000));
+			mOutput.writeByte('P');
+			mOutput.writeByte('K');
+			mOutput.writeByte(cmd);
+			mOutput.writeShort(len);
+			mOutput.write(payload, offset, len);
+		}
+
+		synchronized void close() throws IOException {
+			mOutput.close();
+		}
+	}
+
+	/**
+	 * Reads the packets from a capture file in order.
+	 */
+	static class Reader {
+		private final DataInputStream mInput;
+		private byte[] mPacket = new byte[PacketParser.MAX_PACKET_SIZE];
+		private int mPacketLen;
+		private int mTimeMillis;
+
+		Reader(File file) throws IOException {
+			mInput = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 64 * 1024));
+			if (mInput.readInt() != MAGIC || mInput.readInt() != VERSION) {
+				mInput.close();
+				throw new IOException(file + ": not a Spykee capture file");
+			}
+		}
+
+		/**
+		 * Reads the next packet.
+		 * @return false at the end of the file
+		 */
+		boolean next() throws IOException {
+			try {
+				mTimeMillis = mInput.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			mInput.readFully(mPacket, 0, PacketParser.HEADER_SIZE);
+			int len = ((mPacket[3] & 0xff) << 8) | (mPacket[4] & 0xff);
+			mInput.readFully(mPacket, PacketParser.HEADER_SIZE, len);
+			mPacketLen = PacketParser.HEADER_SIZE + len;
+			return true;
+		}
+
+		/** Returns the capture time of the current packet in milliseconds. */
+		int getTimeMillis() {
+			return mTimeMillis;
+		}
+
+		/** Returns the current packet, including its header. */
+		byte[] getPacket() {
+			return mPacket;
+		}
+
+		int getPacketLength() {
+			return mPacketLen;
+		}
+
+		void close() throws IOException {
+			mInput.close();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends moves, stops and other commands to one SpykeeClient from several
+ * threads at once, against an in-process FakeSpykee, and fails if a single
+ * command reaches the robot torn.  FakeSpykee checks the header, length and
+ * payload of every command; on top of that, every move sent here has the
+ * same speed for both wheels, so a move whose two wheel bytes differ was
+ * put together from two different commands.
+ *
+ * Usage:
+ *   javac -d out -sourcepath src:tools tools/us/veenstra/spykee/CommandStressTest.java
+ *   java -cp out us.veenstra.spykee.CommandStressTest [--threads N] [--commands N]
+ *
+ * It exits with status 1 if any command was bad.
+ */
+public class CommandStressTest {
+	// Motor commands are streamed this often, so that the motor driver
+	// competes with the other threads for the command queue.
+	private static final int DRIVE_RATE_HZ = 1000;
+	private static final int DEADMAN_MILLIS = 1000;
+
+	private final AtomicLong mNumMoves = new AtomicLong();
+	private final AtomicLong mNumTornMoves = new AtomicLong();
+
+	/**
+	 * Checks each move that reaches the fake robot.
+	 */
+	private class MoveChecker implements PacketListener {
+		public void onPacket(int cmd, byte[] data, int offset, int len) {
+			if (cmd != CommandEncoder.CMD_MOVE) {
+				return;
+			}
+			mNumMoves.incrementAndGet();
+			if (data[offset] != data[offset + 1]) {
+				mNumTornMoves.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Sends "count" commands, mostly moves and stops, as fast as the
+	 * command queue takes them.
+	 */
+	private static void sendCommands(SpykeeClient client, int count, long seed) {
+		Random random = new Random(seed);
+		for (int i = 0; i < count; i++) {
+			int speed = random.nextInt(256);
+			switch (random.nextInt(8)) {
+			case 0:
+				client.drive((byte) speed, (byte) speed);
+				break;
+			case 1:
+				client.stopMotor();
+				break;
+			case 2:
+				send(client, CommandEncoder.soundEffect(random.nextInt(8)));
+				break;
+			case 3:
+				send(client, CommandEncoder.setVolume(random.nextInt(101)));
+				break;
+			case 4:
+			case 5:
+				send(client, CommandEncoder.move(0, 0));
+				break;
+			default:
+				send(client, CommandEncoder.move(speed, speed));
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Queues a command, waiting for room if the queue is full.
+	 */
+	private static void send(SpykeeClient client, byte[] command) {
+		while (!client.sendCommand(command)) {
+			Thread.yield();
+		}
+	}
+
+	private static void usage() {
+		System.err.println("usage: CommandStressTest [--threads N] [--commands N]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numThreads = 8;
+		int numCommands = 200000;
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			}
+			if (args[i].equals("--threads")) {
+				numThreads = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("--commands")) {
+				numCommands = Integer.parseInt(args[i + 1]);
+			} else {
+				usage();
+			}
+		}
+
+		CommandStressTest test = new CommandStressTest();
+		FakeSpykee.Config config = new FakeSpykee.Config();
+		config.commandListener = test.new MoveChecker();
+		FakeSpykee fake = new FakeSpykee(config);
+		int port = fake.start(0);
+
+		final SpykeeClient client = new SpykeeClient();
+		client.getPacketTrace().setEnabled(false);
+		client.setDriveRate(DRIVE_RATE_HZ, DEADMAN_MILLIS);
+		client.connect("127.0.0.1", port, "admin", "admin");
+
+		long start = System.nanoTime();
+		Thread[] threads = new Thread[numThreads];
+		final int perThread = numCommands / numThreads;
+		for (int i = 0; i < numThreads; i++) {
+			final long seed = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					sendCommands(client, perThread, seed);
+				}
+			}, "CommandStressTest " + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		while (client.getCommandQueueDepth() > 0) {
+			Thread.sleep(10);
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		// Closing the client makes the fake robot count any torn headers
+		// left in its parser.
+		Thread.sleep(200);
+		client.close();
+		Thread.sleep(200);
+		fake.stop();
+
+		long bad = fake.getNumBadCommands();
+		long torn = test.mNumTornMoves.get();
+		System.out.println(numThreads + " threads sent " + perThread * numThreads
+				+ " commands in " + millis + "ms: " + fake.getNumCommands()
+				+ " reached the robot (" + test.mNumMoves.get() + " moves), "
+				+ client.getNumCoalescedCommands() + " moves coalesced, "
+				+ bad + " bad, " + torn + " torn moves");
+		if (bad > 0 || torn > 0 || fake.getNumCommands() == 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("PASSED");
+	}
+}
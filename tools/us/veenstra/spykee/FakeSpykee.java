@@ -0,0 +1,447 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fake Spykee robot that speaks the 'P','K' protocol over a loopback
+ * socket, so that the client can be exercised without a real robot.
+ *
+ * After a client logs in, the fake robot sends a battery level packet every
+ * second, and audio and video packets at the configured rates and sizes
+ * while the client has the streams turned on.  The first 8 bytes after the
+ * JPEG start-of-image marker in each synthetic video frame hold the
+ * System.nanoTime() at which the frame was sent, so that a client in the
+ * same process can measure latency.  Alternatively, a session captured by
+ * RecordingProxy can be replayed with its original timing.
+ *
+ * Every command from a client is checked: it must start with 'P','K',
+ * be a command that the robot understands, and have the payload length
+ * and values that the command calls for.  Commands that fail the check,
+ * and bytes that the parser had to skip to find the next header, are
+ * counted as bad commands.
+ *
+ * Run it from the project directory with:
+ *   javac -d out -sourcepath src:tools tools/us/veenstra/spykee/FakeSpykee.java
+ *   java -cp out us.veenstra.spykee.FakeSpykee [options]
+ */
+public class FakeSpykee {
+	// The packet types sent by the robot.
+	static final int CMD_AUDIO = SpykeeClient.SPYKEE_AUDIO;
+	static final int CMD_VIDEO_FRAME = SpykeeClient.SPYKEE_VIDEO_FRAME;
+	static final int CMD_BATTERY_LEVEL = SpykeeClient.SPYKEE_BATTERY_LEVEL;
+	static final int CMD_LOGIN_RESPONSE = 0x0b;
+
+	// The offset of the timestamp inside a synthetic video frame.
+	static final int FRAME_TIMESTAMP_OFFSET = 2;
+
+	/**
+	 * The rates and sizes of the synthetic streams.
+	 */
+	public static class Config {
+		int videoFps = 10;
+		int videoFrameSize = 8000;
+		int audioPacketsPerSecond = 8;
+		int audioPacketSize = 4000;
+		int batteryIntervalMillis = 1000;
+		boolean docked;
+
+		// If not null, replay this capture instead of synthetic streams.
+		File replayFile;
+
+		// Creates the two threads that serve each client.
+		ThreadFactory threadFactory = SessionThreads.PLATFORM;
+
+		// If not null, told about every good command, on the thread that
+		// read it.
+		PacketListener commandListener;
+	}
+
+	private final Config mConfig;
+	private ServerSocket mServer;
+	private volatile boolean mRunning;
+
+	private final AtomicLong mNumCommands = new AtomicLong();
+	private final AtomicLong mNumBadCommands = new AtomicLong();
+
+	public FakeSpykee(Config config) {
+		mConfig = config;
+	}
+
+	/**
+	 * Starts accepting clients on the loopback interface.
+	 * @param port the port to listen on, or 0 to pick a free port
+	 * @return the port that the fake robot is listening on
+	 */
+	public int start(int port) throws IOException {
+		mServer = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		mRunning = true;
+		new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "FakeSpykee").start();
+		return mServer.getLocalPort();
+	}
+
+	public void stop() {
+		mRunning = false;
+		try {
+			mServer.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/** Returns the number of good commands received from all clients. */
+	public long getNumCommands() {
+		return mNumCommands.get();
+	}
+
+	/**
+	 * Returns the number of commands that were malformed or had a bad
+	 * header, length or payload.
+	 */
+	public long getNumBadCommands() {
+		return mNumBadCommands.get();
+	}
+
+	private void acceptLoop() {
+		while (mRunning) {
+			final Socket socket;
+			try {
+				socket = mServer.accept();
+			} catch (IOException e) {
+				break;
+			}
+			SessionThreads.start(mConfig.threadFactory, "FakeSpykee session", new Runnable() {
+				public void run() {
+					new Session(socket).run();
+				}
+			});
+		}
+	}
+
+	/**
+	 * One connected client.
+	 */
+	private class Session implements PacketListener {
+		private final Socket mSocket;
+		private OutputStream mOutput;
+		private volatile boolean mVideoOn;
+		private volatile boolean mAudioOn;
+		private volatile boolean mClosed;
+
+		Session(Socket socket) {
+			mSocket = socket;
+		}
+
+		void run() {
+			try {
+				mSocket.setTcpNoDelay(true);
+				mOutput = new BufferedOutputStream(mSocket.getOutputStream(), 64 * 1024);
+				DataInputStream input = new DataInputStream(mSocket.getInputStream());
+				byte[] header = new byte[PacketParser.HEADER_SIZE];
+				input.readFully(header);
+				int len = ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+				input.readFully(new byte[len]);
+				if (header[0] != 'P' || header[1] != 'K'
+						|| header[2] != CommandEncoder.CMD_LOGIN) {
+					mNumBadCommands.incrementAndGet();
+					return;
+				}
+				startCommandReader(input);
+				if (mConfig.replayFile != null) {
+					replay();
+				} else {
+					sendLoginResponse();
+					stream();
+				}
+			} catch (IOException e) {
+				// The client went away
+			} catch (InterruptedException e) {
+			} finally {
+				mClosed = true;
+				try {
+					mSocket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		/**
+		 * Reads the commands from the client on a separate thread.
+		 */
+		private void startCommandReader(final InputStream input) {
+			SessionThreads.start(mConfig.threadFactory, "FakeSpykee commands", new Runnable() {
+				public void run() {
+					PacketParser parser = new PacketParser(Session.this);
+					try {
+						while (!mClosed) {
+							int num = input.read(parser.getBuffer(), parser.getWriteOffset(),
+									parser.getWriteSpace());
+							if (num < 0) {
+								break;
+							}
+							parser.bytesWritten(num);
+						}
+					} catch (IOException e) {
+					}
+					// Each time the parser lost sync, a header was torn.
+					mNumBadCommands.addAndGet(parser.getNumResyncs());
+					mClosed = true;
+				}
+			});
+		}
+
+		public void onPacket(int cmd, byte[] data, int offset, int len) {
+			if (!isGoodCommand(cmd, data, offset, len)) {
+				mNumBadCommands.incrementAndGet();
+				return;
+			}
+			mNumCommands.incrementAndGet();
+			if (cmd == CommandEncoder.CMD_STREAM) {
+				boolean on = data[offset + 1] != 0;
+				if (data[offset] == CommandEncoder.STREAM_VIDEO) {
+					mVideoOn = on;
+				} else {
+					mAudioOn = on;
+				}
+			}
+			PacketListener listener = mConfig.commandListener;
+			if (listener != null) {
+				listener.onPacket(cmd, data, offset, len);
+			}
+		}
+
+		private void sendLoginResponse() throws IOException {
+			String[] names = { "Spykee", "fake", "robot", "1.0" };
+			byte[] payload = new byte[64];
+			int pos = 1;
+			for (String name : names) {
+				payload[pos++] = (byte) name.length();
+				for (int i = 0; i < name.length(); i++) {
+					payload[pos++] = (byte) name.charAt(i);
+				}
+			}
+			payload[pos++] = (byte) (mConfig.docked ? 0 : 1);
+			writePacket(CMD_LOGIN_RESPONSE, payload, pos);
+			mOutput.flush();
+		}
+
+		/**
+		 * Sends the synthetic battery, audio and video streams until the
+		 * client disconnects.
+		 */
+		private void stream() throws IOException, InterruptedException {
+			Config config = mConfig;
+			byte[] video = new byte[config.videoFrameSize];
+			video[0] = (byte) 0xff;
+			video[1] = (byte) 0xd8;
+			video[video.length - 2] = (byte) 0xff;
+			video[video.length - 1] = (byte) 0xd9;
+			byte[] audio = new byte[config.audioPacketSize];
+			byte[] battery = new byte[1];
+
+			long videoPeriod = 1000000000L / config.videoFps;
+			long audioPeriod = 1000000000L / config.audioPacketsPerSecond;
+			long batteryPeriod = config.batteryIntervalMillis * 1000000L;
+			long now = System.nanoTime();
+			long nextVideo = now;
+			long nextAudio = now;
+			long nextBattery = now;
+			int level = 100;
+			while (!mClosed && mRunning) {
+				now = System.nanoTime();
+				if (now >= nextBattery) {
+					battery[0] = (byte) level;
+					level = level > 0 ? level - 1 : 100;
+					writePacket(CMD_BATTERY_LEVEL, battery, 1);
+					nextBattery += batteryPeriod;
+				}
+				if (now >= nextAudio) {
+					if (mAudioOn) {
+						fillTone(audio, now);
+						writePacket(CMD_AUDIO, audio, audio.length);
+					}
+					nextAudio += audioPeriod;
+				}
+				if (now >= nextVideo) {
+					if (mVideoOn) {
+						putLong(video, FRAME_TIMESTAMP_OFFSET, System.nanoTime());
+						writePacket(CMD_VIDEO_FRAME, video, video.length);
+					}
+					nextVideo += videoPeriod;
+				}
+				mOutput.flush();
+				long next = Math.min(nextBattery, Math.min(nextAudio, nextVideo));
+				long sleepNanos = next - System.nanoTime();
+				if (sleepNanos > 0) {
+					Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+				}
+			}
+		}
+
+		/**
+		 * Sends the packets from the capture file with their original
+		 * timing.  The first packet is the login response.
+		 */
+		private void replay() throws IOException, InterruptedException {
+			CaptureFile.Reader reader = new CaptureFile.Reader(mConfig.replayFile);
+			try {
+				long start = System.nanoTime();
+				while (!mClosed && mRunning && reader.next()) {
+					long due = start + reader.getTimeMillis() * 1000000L;
+					long sleepNanos = due - System.nanoTime();
+					if (sleepNanos > 0) {
+						mOutput.flush();
+						Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+					}
+					mOutput.write(reader.getPacket(), 0, reader.getPacketLength());
+				}
+				mOutput.flush();
+			} finally {
+				reader.close();
+			}
+		}
+
+		private void writePacket(int cmd, byte[] payload, int len) throws IOException {
+			mOutput.write('P');
+			mOutput.write('K');
+			mOutput.write(cmd);
+			mOutput.write(len >> 8);
+			mOutput.write(len);
+			mOutput.write(payload, 0, len);
+		}
+	}
+
+	/**
+	 * Returns true if the command is one that the robot understands, with
+	 * the payload length and values that it calls for.
+	 */
+	static boolean isGoodCommand(int cmd, byte[] data, int offset, int len) {
+		switch (cmd) {
+		case CommandEncoder.CMD_MOVE:
+			return len == 2;
+		case CommandEncoder.CMD_SOUND_EFFECT:
+			return len == 1 && data[offset] >= 0 && data[offset] <= 7;
+		case CommandEncoder.CMD_SET_VOLUME:
+			return len == 1 && data[offset] >= 0 && data[offset] <= 100;
+		case CommandEncoder.CMD_STREAM:
+			return len == 2 && (data[offset] == CommandEncoder.STREAM_VIDEO
+					|| data[offset] == CommandEncoder.STREAM_AUDIO)
+					&& (data[offset + 1] == 0 || data[offset + 1] == 1);
+		case CommandEncoder.CMD_DOCK:
+			return len == 1 && (data[offset] == CommandEncoder.DOCK_DOCK
+					|| data[offset] == CommandEncoder.DOCK_UNDOCK
+					|| data[offset] == CommandEncoder.DOCK_CANCEL);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Fills an audio packet with a 500 Hz tone so that the audio is not
+	 * all silence (which the jitter buffer would happily drop).
+	 */
+	private static void fillTone(byte[] audio, long now) {
+		int start = (int) (now / 62500);  // samples at 16 KHz
+		for (int i = 0; i + 1 < audio.length; i += 2) {
+			int phase = (start + i / 2) % 32;
+			int sample = phase < 16 ? 8000 : -8000;
+			audio[i] = (byte) sample;
+			audio[i + 1] = (byte) (sample >> 8);
+		}
+	}
+
+	static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>= 8;
+		}
+	}
+
+	static long getLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	private static void usage() {
+		System.err.println("usage: FakeSpykee [--port N] [--fps N] [--frame-size BYTES]"
+				+ " [--audio-rate N] [--audio-size BYTES] [--docked] [--replay FILE]");
+		System.exit(1);
+	}
+
+	/**
+	 * Parses one command line option into the config.
+	 * @return the number of arguments consumed, or 0 if it wasn't a config option
+	 */
+	static int parseOption(Config config, String[] args, int i) {
+		String arg = args[i];
+		if (arg.equals("--docked")) {
+			config.docked = true;
+			return 1;
+		}
+		if (i + 1 >= args.length) {
+			return 0;
+		}
+		String value = args[i + 1];
+		if (arg.equals("--fps")) {
+			config.videoFps = Integer.parseInt(value);
+		} else if (arg.equals("--frame-size")) {
+			config.videoFrameSize = Integer.parseInt(value);
+		} else if (arg.equals("--audio-rate")) {
+			config.audioPacketsPerSecond = Integer.parseInt(value);
+		} else if (arg.equals("--audio-size")) {
+			config.audioPacketSize = Integer.parseInt(value);
+		} else if (arg.equals("--replay")) {
+			config.replayFile = new File(value);
+		} else {
+			return 0;
+		}
+		return 2;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Config config = new Config();
+		int port = 9000;
+		for (int i = 0; i < args.length; ) {
+			int num = parseOption(config, args, i);
+			if (num == 0 && args[i].equals("--port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[i + 1]);
+				num = 2;
+			}
+			if (num == 0) {
+				usage();
+			}
+			i += num;
+		}
+		port = new FakeSpykee(config).start(port);
+		System.out.println("fake Spykee listening on 127.0.0.1:" + port);
+	}
+}
@@ -0,0 +1,192 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Measures the gateway's forwarding latency with the robot, the gateway and
+ * the controllers each in a process of their own, as they would be in use.
+ * LoadTest --gateway runs all three in one JVM, where the controllers'
+ * threads compete with the gateway's reader.
+ *
+ * "controllers" connects CLIENTS controllers that turn on video and audio
+ * and read everything they are sent.  Run it against a GatewayLauncher,
+ * which prints the forwarding latency:
+ *
+ *   java -cp out us.veenstra.spykee.FakeSpykee --port 9000
+ *   java -cp out us.veenstra.spykee.GatewayLauncher 9001 127.0.0.1 9000 admin admin
+ *   java -cp out us.veenstra.spykee.GatewayBench controllers 127.0.0.1 9001 CLIENTS SECONDS
+ *
+ * "baseline" stands in for the gateway.  It reads the robot's packets and
+ * writes each one to every controller straight from the reader thread,
+ * measured the same way, with none of the gateway's queues, locks or
+ * lease.  This is the floor that the machine itself puts under the
+ * gateway's latency:
+ *
+ *   java -cp out us.veenstra.spykee.GatewayBench baseline 9001 127.0.0.1 9000 CLIENTS SECONDS
+ *   java -cp out us.veenstra.spykee.GatewayBench controllers 127.0.0.1 9001 CLIENTS SECONDS
+ *
+ * Build it from the project directory with:
+ *   javac -d out -sourcepath src:tools tools/us/veenstra/spykee/GatewayBench.java
+ */
+public class GatewayBench {
+	// The baseline prints its latency this often, as GatewayLauncher does.
+	private static final int REPORT_INTERVAL_MILLIS = 10000;
+
+	// How long a read waits before checking whether the time is up.
+	private static final int POLL_MILLIS = 1000;
+
+	private static void usage() {
+		System.err.println("usage: GatewayBench controllers HOST PORT CLIENTS SECONDS\n"
+				+ "       GatewayBench baseline LOCAL_PORT ROBOT_HOST ROBOT_PORT CLIENTS SECONDS");
+		System.exit(1);
+	}
+
+	/**
+	 * Connects the controllers and reads from all of them on this thread
+	 * until the time is up.
+	 */
+	private static void runControllers(String host, int port, int numClients, int seconds)
+			throws IOException {
+		Selector selector = Selector.open();
+		for (int i = 0; i < numClients; i++) {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.socket().setTcpNoDelay(true);
+			channel.write(ByteBuffer.wrap(CommandEncoder.login("bench" + i, "admin")));
+			channel.write(ByteBuffer.wrap(CommandEncoder.video(true)));
+			channel.write(ByteBuffer.wrap(CommandEncoder.audio(true)));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+		System.out.println(numClients + " controllers connected to " + host + ":" + port);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+		long bytes = 0;
+		long end = System.currentTimeMillis() + seconds * 1000L;
+		while (System.currentTimeMillis() < end) {
+			selector.select(POLL_MILLIS);
+			for (SelectionKey key : selector.selectedKeys()) {
+				buffer.clear();
+				int num = ((SocketChannel) key.channel()).read(buffer);
+				if (num < 0) {
+					key.cancel();
+				} else {
+					bytes += num;
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+		System.out.println("read " + bytes / 1024 + " KB");
+	}
+
+	/**
+	 * Accepts the controllers, then logs in to the robot and forwards its
+	 * packets to them until the time is up.
+	 */
+	private static void runBaseline(int localPort, String robotHost, int robotPort,
+			int numClients, int seconds) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", localPort));
+		System.out.println("baseline listening on port " + server.socket().getLocalPort());
+		final SocketChannel[] controllers = new SocketChannel[numClients];
+		for (int i = 0; i < numClients; i++) {
+			controllers[i] = server.accept();
+			controllers[i].socket().setTcpNoDelay(true);
+			controllers[i].configureBlocking(false);
+		}
+
+		Socket robot = new Socket(robotHost, robotPort);
+		robot.setTcpNoDelay(true);
+		OutputStream output = robot.getOutputStream();
+		output.write(CommandEncoder.login("admin", "admin"));
+		output.write(CommandEncoder.video(true));
+		output.write(CommandEncoder.audio(true));
+		output.flush();
+		robot.setSoTimeout(POLL_MILLIS);
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		PacketParser parser = new PacketParser(new PacketListener() {
+			public void onPacket(int cmd, byte[] data, int offset, int len) {
+				long arrival = System.nanoTime();
+				byte[] packet = new byte[PacketParser.HEADER_SIZE + len];
+				packet[0] = 'P';
+				packet[1] = 'K';
+				packet[2] = (byte) cmd;
+				packet[3] = (byte) (len >> 8);
+				packet[4] = (byte) len;
+				System.arraycopy(data, offset, packet, PacketParser.HEADER_SIZE, len);
+				for (SocketChannel controller : controllers) {
+					try {
+						// The controllers keep up, so a short write only
+						// happens if one went away.
+						controller.write(ByteBuffer.wrap(packet));
+					} catch (IOException e) {
+					}
+					latency.record((System.nanoTime() - arrival) / 1000);
+				}
+			}
+		});
+
+		DataInputStream input = new DataInputStream(robot.getInputStream());
+		long end = System.currentTimeMillis() + seconds * 1000L;
+		long nextReport = System.currentTimeMillis() + REPORT_INTERVAL_MILLIS;
+		while (System.currentTimeMillis() < end) {
+			try {
+				int num = input.read(parser.getBuffer(), parser.getWriteOffset(),
+						parser.getWriteSpace());
+				if (num < 0) {
+					break;
+				}
+				parser.bytesWritten(num);
+			} catch (SocketTimeoutException e) {
+			}
+			if (System.currentTimeMillis() >= nextReport) {
+				nextReport += REPORT_INTERVAL_MILLIS;
+				System.out.println("forwarding p50 " + latency.getValueAtPercentile(50)
+						+ "us p99 " + latency.getValueAtPercentile(99) + "us max "
+						+ latency.getMax() + "us, " + latency.getCount() + " writes");
+				latency.reset();
+			}
+		}
+		robot.close();
+		for (SocketChannel controller : controllers) {
+			controller.close();
+		}
+		server.close();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 5 && args[0].equals("controllers")) {
+			runControllers(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+					Integer.parseInt(args[4]));
+		} else if (args.length == 6 && args[0].equals("baseline")) {
+			runBaseline(Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]),
+					Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+		} else {
+			usage();
+		}
+		System.exit(0);
+	}
+}
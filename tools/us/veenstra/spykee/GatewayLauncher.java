@@ -0,0 +1,61 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+/**
+ * Runs a SpykeeGateway from the command line, so that several controllers
+ * can share a robot, and prints the gateway's report every ten seconds.
+ *
+ * Run it from the project directory with:
+ *   javac -d out -sourcepath src:tools tools/us/veenstra/spykee/GatewayLauncher.java
+ *   java -cp out us.veenstra.spykee.GatewayLauncher LOCAL_PORT ROBOT_HOST ROBOT_PORT
+ *       LOGIN PASSWORD [NAME=PRIORITY ...]
+ *
+ * Controllers log in with any name and the robot's password.  The name
+ * picks the priority (0 unless given on the command line).
+ */
+public class GatewayLauncher {
+	private static final int REPORT_INTERVAL_MILLIS = 10000;
+
+	private static void usage() {
+		System.err.println("usage: GatewayLauncher LOCAL_PORT ROBOT_HOST ROBOT_PORT LOGIN"
+				+ " PASSWORD [NAME=PRIORITY ...]");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			usage();
+		}
+		SpykeeClient client = new SpykeeClient();
+		SpykeeGateway gateway = new SpykeeGateway(client);
+		for (int i = 5; i < args.length; i++) {
+			int equals = args[i].indexOf('=');
+			if (equals < 0) {
+				usage();
+			}
+			gateway.setPriority(args[i].substring(0, equals),
+					Integer.parseInt(args[i].substring(equals + 1)));
+		}
+		client.connect(args[1], Integer.parseInt(args[2]), args[3], args[4]);
+		int port = gateway.start(Integer.parseInt(args[0]), args[4]);
+		System.out.println("gateway listening on port " + port);
+		while (true) {
+			Thread.sleep(REPORT_INTERVAL_MILLIS);
+			System.out.println(gateway.report());
+			gateway.resetForwardLatency();
+		}
+	}
+}
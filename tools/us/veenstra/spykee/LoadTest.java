@@ -0,0 +1,384 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs SpykeeClient, the same protocol core that the app uses, against
+ * in-process fake robots, and prints throughput, video latency and memory
+ * use once a second.  Each client logs in, turns on video and audio, and
+ * hands the streams to counting sinks.
+ *
+ * Usage:
+ *   javac -d out -sourcepath src:tools tools/us/veenstra/spykee/LoadTest.java
+ *   java -cp out us.veenstra.spykee.LoadTest [--clients N] [--seconds N]
+ *       [--nio | --virtual | --fleet [--io-threads N] [--decoders N] [--decode-micros N]]
+ *       [--gateway] [FakeSpykee options]
+ *
+ * With --fleet, the clients are run by a SpykeeFleet instead, sharing
+ * "--io-threads" I/O threads and a pool of "--decoders" decode threads,
+ * and the fleet's report of each robot is printed every second.  Each
+ * decode is simulated by spinning for "--decode-micros" microseconds.
+ * The fleet runs each robot's motor driver and supervisor on virtual
+ * threads where the JVM has them.
+ *
+ * With --virtual, each client's reader, writer, motor driver and
+ * supervisor, and the fake robots' threads, run on virtual threads (this
+ * needs Java 21 or later).  Once the clients are connected, the heap and
+ * resident memory per session (client and fake robot together) and the
+ * number of platform threads are printed.  In every mode except --fleet,
+ * a probe thread made the same way as the session threads sleeps for
+ * PROBE_MILLIS at a time, and how late it wakes up is printed every second
+ * as the scheduling latency.
+ *
+ * With --gateway, the clients connect to a SpykeeGateway that holds the
+ * only connection to the fake robot.  Every client asks to drive once a
+ * second, so that the gateway has to arbitrate, and the gateway's
+ * forwarding latency and motor command counts are printed every second.
+ * The controllers share the CPU with the gateway here; GatewayBench
+ * measures the latency with them in a process of their own.
+ */
+public class LoadTest {
+	private final AtomicLong mPackets = new AtomicLong();
+	private final AtomicLong mBytes = new AtomicLong();
+	private final AtomicLong mFrames = new AtomicLong();
+	private final AtomicLong mLatencyNanos = new AtomicLong();
+	private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+
+	// How long the scheduling probe sleeps, and how late it woke up, in
+	// microseconds.
+	private static final int PROBE_MILLIS = 5;
+	private final LatencyHistogram mSchedulingLatency = new LatencyHistogram();
+
+	/**
+	 * Counts the packets from every client and measures the latency of the
+	 * synthetic video frames.
+	 */
+	private class Counter implements VideoSink, AudioSink, TelemetrySink {
+		public void writeVideoFrame(byte[] data, int offset, int len, long arrivalNanos) {
+			count(len);
+			if (len >= FakeSpykee.FRAME_TIMESTAMP_OFFSET + 8) {
+				long sent = FakeSpykee.getLong(data, offset + FakeSpykee.FRAME_TIMESTAMP_OFFSET);
+				long latency = arrivalNanos - sent;
+				mFrames.incrementAndGet();
+				mLatencyNanos.addAndGet(latency);
+				long max;
+				while (latency > (max = mMaxLatencyNanos.get())
+						&& !mMaxLatencyNanos.compareAndSet(max, latency)) {
+				}
+			}
+		}
+
+		public void writeAudio(byte[] data, int offset, int len, long arrivalNanos) {
+			count(len);
+		}
+
+		public void onBatteryLevel(int level) {
+			count(1);
+		}
+
+		public void onDockState(int state) {
+			count(1);
+		}
+
+		private void count(int len) {
+			mPackets.incrementAndGet();
+			mBytes.addAndGet(len + PacketParser.HEADER_SIZE);
+		}
+	}
+
+	private final Counter mCounter = new Counter();
+
+	// Logs only the warnings, since there may be thousands of clients.
+	private final SpykeeClient.Logger mQuietLogger = new SpykeeClient.Logger() {
+		public void info(String message) {
+		}
+
+		public void warn(String message) {
+			SpykeeClient.STDERR_LOGGER.warn(message);
+		}
+	};
+
+	/**
+	 * Connects a client to the fake robot and turns on the streams.
+	 * @param engine the NIO engine, or null to use a blocking socket
+	 * @param threads creates the client's session threads
+	 */
+	private SpykeeClient startClient(NioEngine engine, ThreadFactory threads, int port)
+			throws IOException {
+		SpykeeClient client = new SpykeeClient(engine);
+		client.setThreadFactory(threads);
+		client.setLogger(mQuietLogger);
+		client.getPacketTrace().setEnabled(false);
+		client.setVideoSink(mCounter);
+		client.setAudioSink(mCounter);
+		client.setTelemetrySink(mCounter);
+		client.connect("127.0.0.1", port, "admin", "admin");
+		client.startVideo();
+		client.startAudio();
+		return client;
+	}
+
+	/**
+	 * Sleeps over and over, recording how late each sleep ends.
+	 */
+	private void probeScheduling() {
+		while (true) {
+			long start = System.nanoTime();
+			try {
+				Thread.sleep(PROBE_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long late = System.nanoTime() - start - PROBE_MILLIS * 1000000L;
+			mSchedulingLatency.record(Math.max(0, late / 1000));
+		}
+	}
+
+	/**
+	 * Runs the clients in a SpykeeFleet and prints its report every second.
+	 */
+	private static void runFleet(int port, int numClients, int seconds, int ioThreads,
+			int decoders, final int decodeMicros) throws Exception {
+		SpykeeFleet fleet = new SpykeeFleet(ioThreads, decoders, new SpykeeFleet.DecoderFactory() {
+			public DecodePool.Decoder createDecoder(String name) {
+				return new DecodePool.Decoder() {
+					public void decode(byte[] frame, int len, long arrivalNanos) {
+						long end = System.nanoTime() + decodeMicros * 1000L;
+						while (System.nanoTime() < end) {
+						}
+					}
+				};
+			}
+		});
+		for (int i = 0; i < numClients; i++) {
+			SpykeeFleet.Robot robot = fleet.add("robot" + i, "127.0.0.1", port, "admin", "admin");
+			robot.getClient().getPacketTrace().setEnabled(false);
+		}
+		for (int s = 1; s <= seconds; s++) {
+			Thread.sleep(1000);
+			System.out.println(s + "s: threads " + Thread.activeCount() + ", gcs " + gcCount()
+					+ "\n" + fleet.report());
+		}
+		fleet.shutdown();
+	}
+
+	/**
+	 * Returns the heap in use after a garbage collection, in kilobytes.
+	 */
+	private static long usedHeapAfterGc() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+	}
+
+	/**
+	 * Returns the resident set size of this process in kilobytes, or -1 if
+	 * it isn't known (outside of Linux).
+	 */
+	private static long residentKb() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("VmRSS:")) {
+						return Long.parseLong(line.substring(6).replace("kB", "").trim());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+		}
+		return -1;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws Exception {
+		FakeSpykee.Config config = new FakeSpykee.Config();
+		int numClients = 1;
+		int seconds = 10;
+		boolean nio = false;
+		boolean virtual = false;
+		boolean useGateway = false;
+		boolean fleet = false;
+		int ioThreads = 2;
+		int decoders = 2;
+		int decodeMicros = 2000;
+		for (int i = 0; i < args.length; ) {
+			int num = FakeSpykee.parseOption(config, args, i);
+			if (num == 0) {
+				if (args[i].equals("--nio")) {
+					nio = true;
+					num = 1;
+				} else if (args[i].equals("--virtual")) {
+					virtual = true;
+					num = 1;
+				} else if (args[i].equals("--gateway")) {
+					useGateway = true;
+					num = 1;
+				} else if (args[i].equals("--clients") && i + 1 < args.length) {
+					numClients = Integer.parseInt(args[i + 1]);
+					num = 2;
+				} else if (args[i].equals("--seconds") && i + 1 < args.length) {
+					seconds = Integer.parseInt(args[i + 1]);
+					num = 2;
+				} else if (args[i].equals("--fleet")) {
+					fleet = true;
+					num = 1;
+				} else if (args[i].equals("--io-threads") && i + 1 < args.length) {
+					ioThreads = Integer.parseInt(args[i + 1]);
+					num = 2;
+				} else if (args[i].equals("--decoders") && i + 1 < args.length) {
+					decoders = Integer.parseInt(args[i + 1]);
+					num = 2;
+				} else if (args[i].equals("--decode-micros") && i + 1 < args.length) {
+					decodeMicros = Integer.parseInt(args[i + 1]);
+					num = 2;
+				} else {
+					System.err.println("usage: LoadTest [--clients N] [--seconds N]"
+							+ " [--nio | --virtual | --fleet [--io-threads N] [--decoders N]"
+							+ " [--decode-micros N]] [--gateway] [FakeSpykee options]");
+					System.exit(1);
+				}
+			}
+			i += num;
+		}
+
+		ThreadFactory threads = SessionThreads.PLATFORM;
+		if (virtual) {
+			if (!SessionThreads.hasVirtualThreads()) {
+				System.err.println("--virtual needs Java 21 or later");
+				System.exit(1);
+			}
+			threads = SessionThreads.virtual();
+			config.threadFactory = threads;
+		}
+		long heapBefore = usedHeapAfterGc();
+		long residentBefore = residentKb();
+		FakeSpykee robot = new FakeSpykee(config);
+		int port = robot.start(0);
+		if (fleet) {
+			runFleet(port, numClients, seconds, ioThreads, decoders, decodeMicros);
+			robot.stop();
+			System.exit(0);
+		}
+		LoadTest test = new LoadTest();
+		SpykeeGateway gateway = null;
+		if (useGateway) {
+			SpykeeClient upstream = new SpykeeClient();
+			upstream.getPacketTrace().setEnabled(false);
+			upstream.setLogger(test.mQuietLogger);
+			upstream.setThreadFactory(threads);
+			upstream.connect("127.0.0.1", port, "admin", "admin");
+			gateway = new SpykeeGateway(upstream);
+			gateway.setLogger(test.mQuietLogger);
+			gateway.setThreadFactory(threads);
+			port = gateway.start(0, "admin");
+		}
+		NioEngine engine = null;
+		if (nio) {
+			engine = new NioEngine();
+			engine.start();
+		}
+		SpykeeClient[] clients = new SpykeeClient[numClients];
+		long connectStart = System.nanoTime();
+		for (int i = 0; i < numClients; i++) {
+			clients[i] = test.startClient(engine, threads, port);
+		}
+		long connectMillis = (System.nanoTime() - connectStart) / 1000000;
+		final LoadTest probe = test;
+		SessionThreads.start(threads, "SchedulingProbe", new Runnable() {
+			public void run() {
+				probe.probeScheduling();
+			}
+		});
+		long heapPerSession = (usedHeapAfterGc() - heapBefore) / numClients;
+		long resident = residentKb();
+		System.out.println(numClients + " clients connected in " + connectMillis + "ms, "
+				+ ManagementFactory.getThreadMXBean().getThreadCount()
+				+ " platform threads, per session: heap " + heapPerSession + " KB"
+				+ (resident < 0 ? "" : ", resident " + (resident - residentBefore) / numClients
+						+ " KB"));
+
+		Runtime runtime = Runtime.getRuntime();
+		long lastPackets = 0;
+		long lastBytes = 0;
+		long lastFrames = 0;
+		long lastLatency = 0;
+		for (int s = 1; s <= seconds; s++) {
+			Thread.sleep(1000);
+			long packets = test.mPackets.get();
+			long bytes = test.mBytes.get();
+			long frames = test.mFrames.get();
+			long latency = test.mLatencyNanos.get();
+			long avgLatency = frames == lastFrames ? 0
+					: (latency - lastLatency) / (frames - lastFrames) / 1000;
+			long heap = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+			System.out.println(s + "s: " + (packets - lastPackets) + " packets/s, "
+					+ (bytes - lastBytes) / 1024 + " KB/s, video latency avg "
+					+ avgLatency + "us max " + test.mMaxLatencyNanos.getAndSet(0) / 1000
+					+ "us, sched p50 " + test.mSchedulingLatency.getValueAtPercentile(50)
+					+ "us p99 " + test.mSchedulingLatency.getValueAtPercentile(99)
+					+ "us max " + test.mSchedulingLatency.getMax()
+					+ "us, heap " + heap + " KB, gcs " + gcCount());
+			test.mSchedulingLatency.reset();
+			if (gateway != null) {
+				LatencyHistogram forward = gateway.getForwardLatency();
+				System.out.println("    gateway: forwarding p50 " + forward.getValueAtPercentile(50)
+						+ "us p99 " + forward.getValueAtPercentile(99) + "us max "
+						+ forward.getMax() + "us, motor commands " + gateway.getNumCommands()
+						+ " sent, " + gateway.getNumRejected() + " refused");
+				gateway.resetForwardLatency();
+				for (SpykeeClient client : clients) {
+					client.drive(MotorDriver.MAX_SPEED / 2, MotorDriver.MAX_SPEED / 2);
+				}
+			}
+			lastPackets = packets;
+			lastBytes = bytes;
+			lastFrames = frames;
+			lastLatency = latency;
+		}
+		for (SpykeeClient client : clients) {
+			client.close();
+		}
+		if (gateway != null) {
+			gateway.close();
+		}
+		robot.stop();
+		if (engine != null) {
+			engine.shutdown();
+		}
+		System.exit(0);
+	}
+}
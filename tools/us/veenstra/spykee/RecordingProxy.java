@@ -0,0 +1,99 @@
+// Copyright 2011 Jack Veenstra
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package us.veenstra.spykee;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A TCP proxy that sits between the Spykee app and a real robot and
+ * records every packet the robot sends into a CaptureFile.  The capture
+ * can then be replayed with "FakeSpykee --replay FILE".
+ *
+ * Usage:
+ *   java -cp out us.veenstra.spykee.RecordingProxy LOCAL_PORT ROBOT_HOST ROBOT_PORT FILE
+ *
+ * Point the app at this machine's LOCAL_PORT instead of at the robot.  One
+ * client session is recorded; the proxy exits when it ends.
+ */
+public class RecordingProxy {
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4) {
+			System.err.println("usage: RecordingProxy LOCAL_PORT ROBOT_HOST ROBOT_PORT FILE");
+			System.exit(1);
+		}
+		ServerSocket server = new ServerSocket(Integer.parseInt(args[0]));
+		System.out.println("waiting for the app on port " + server.getLocalPort());
+		Socket client = server.accept();
+		server.close();
+		Socket robot = new Socket(args[1], Integer.parseInt(args[2]));
+		final CaptureFile.Writer writer = new CaptureFile.Writer(new File(args[3]));
+
+		// Commands from the app are passed through untouched.
+		pump(client.getInputStream(), robot.getOutputStream());
+
+		// Packets from the robot are parsed so that each one is recorded
+		// with the time it arrived.
+		final OutputStream toClient = client.getOutputStream();
+		PacketParser parser = new PacketParser(new PacketListener() {
+			public void onPacket(int cmd, byte[] data, int offset, int len) {
+				try {
+					writer.write(cmd, data, offset, len);
+				} catch (IOException e) {
+					System.err.println("capture: " + e);
+				}
+			}
+		});
+		InputStream fromRobot = robot.getInputStream();
+		long total = 0;
+		try {
+			while (true) {
+				int offset = parser.getWriteOffset();
+				int num = fromRobot.read(parser.getBuffer(), offset, parser.getWriteSpace());
+				if (num < 0) {
+					break;
+				}
+				toClient.write(parser.getBuffer(), offset, num);
+				parser.bytesWritten(num);
+				total += num;
+			}
+		} catch (IOException e) {
+			System.err.println("robot: " + e);
+		}
+		writer.close();
+		client.close();
+		robot.close();
+		System.out.println("recorded " + parser.getNumPackets() + " packets, " + total + " bytes");
+	}
+
+	private static void pump(final InputStream in, final OutputStream out) {
+		new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[4096];
+				try {
+					int num;
+					while ((num = in.read(buffer)) >= 0) {
+						out.write(buffer, 0, num);
+					}
+				} catch (IOException e) {
+				}
+			}
+		}, "RecordingProxy pump").start();
+	}
+}